@@ -0,0 +1,39 @@
+package luca.bench;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with JMH's usual command line, always adding the
+ * GC profiler so that every result comes with its allocation rate.
+ */
+public class Benchmarks {
+
+    public static void main(String[] args) throws IOException, RunnerException {
+	CommandLineOptions options;
+	try {
+	    options = new CommandLineOptions(args);
+	}
+	catch (CommandLineOptionException e) {
+	    System.err.println("Error parsing command line: " + e.getMessage());
+	    System.exit(64);
+	    return;
+	}
+
+	if (options.shouldHelp() || options.shouldList() || options.shouldListWithParams()
+	    || options.shouldListProfilers() || options.shouldListResultFormats()) {
+	    Main.main(args); // nothing to run
+	    return;
+	}
+
+	new Runner(new OptionsBuilder().parent(options).addProfiler(GCProfiler.class).build()).run();
+    }
+
+}
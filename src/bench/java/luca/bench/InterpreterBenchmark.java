@@ -0,0 +1,56 @@
+package luca.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import luca.Pipeline;
+
+/**
+ * Runs each program on the tree-walker. The tree is compiled once and
+ * run by the same Session every time, as the caches it leaves in the
+ * tree belong to that Session's Interpreter.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class InterpreterBenchmark {
+
+    @Param({ "fib", "loops", "strings", "closures", "instances" })
+    public String program;
+
+    private Pipeline.Session session;
+    private Pipeline.Program compiled;
+
+    @Setup
+    public void setup() {
+	session = new Pipeline.Session();
+	compiled = Pipeline.compile(Programs.source(program));
+    }
+
+    @Benchmark
+    public Object interpret() {
+	session.run(compiled);
+	return session.global("result");
+    }
+
+    @TearDown
+    public void tearDown() {
+	session.close();
+    }
+
+}
@@ -0,0 +1,43 @@
+package luca.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import luca.Pipeline;
+
+/** Parses each program, scanning included, as the Parser pulls its tokens from the Scanner. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ParserBenchmark {
+
+    @Param({ "fib", "loops", "strings", "closures", "instances" })
+    public String program;
+
+    private String source;
+
+    @Setup
+    public void setup() {
+	source = Programs.source(program);
+    }
+
+    @Benchmark
+    public Pipeline.Program parse() {
+	return Pipeline.parse(source);
+    }
+
+}
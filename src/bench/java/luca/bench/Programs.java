@@ -0,0 +1,47 @@
+package luca.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The canonical programs the benchmarks run, kept under programs/ in
+ * src/bench/resources. Each leaves what it computed in the global
+ * result, so that the work can't be optimized away.
+ */
+final class Programs {
+
+    static final String[] NAMES = { "fib", "loops", "strings", "closures", "instances" };
+
+    private Programs() {}
+
+    static String source(String name) {
+	try (InputStream in = Programs.class.getResourceAsStream("/programs/" + name + ".luca")) {
+	    if (in == null) { throw new IllegalArgumentException("No program " + name); }
+
+	    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	    byte[] chunk = new byte[4096];
+	    for (int n; (n = in.read(chunk)) != -1; ) {
+		bytes.write(chunk, 0, n);
+	    }
+	    return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+	}
+	catch (IOException e) {
+	    throw new UncheckedIOException(e);
+	}
+    }
+
+    /** Returns every program, one after another, repeated copies times. */
+    static String all(int copies) {
+	StringBuilder source = new StringBuilder();
+	for (int i = 0; i < copies; ++i) {
+	    for (String name : NAMES) {
+		source.append(source(name)).append('\n');
+	    }
+	}
+	return source.toString();
+    }
+
+}
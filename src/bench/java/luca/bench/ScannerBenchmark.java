@@ -0,0 +1,49 @@
+package luca.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import luca.Pipeline;
+
+/** Scans every program, repeated copies times, the way the Parser pulls tokens. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ScannerBenchmark {
+
+    @Param({ "1", "100" })
+    public int copies;
+
+    private String source;
+
+    @Setup
+    public void setup() {
+	source = Programs.all(copies);
+    }
+
+    @Benchmark
+    public int scan() {
+	return Pipeline.scan(source);
+    }
+
+    /** Also makes the Token objects the Parser would keep. */
+    @Benchmark
+    public long scanTokens() {
+	return Pipeline.scanTokens(source);
+    }
+
+}
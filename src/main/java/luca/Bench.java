@@ -0,0 +1,231 @@
+package luca;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs a directory of .luca scripts end to end, in this process, for
+ * `luca bench`. Each run scans, parses, resolves and executes the script
+ * from its source as Luca would with the cache off, printing nothing,
+ * on a backend of its own each time. After the warmup runs, the measured
+ * ones give each script's median and slowest wall time and its median
+ * allocation on this thread. With at least P99_RUNS of them there are
+ * enough for a 99th percentile too.
+ *
+ * Results are written as JSON, one script to a line, which is also the
+ * only form of it read back as a baseline.
+ */
+final class Bench {
+
+    /** What the measured runs of one script came to. Times are in nanoseconds. */
+    static final class Result {
+	final String name;
+	final long median;
+	final long max;
+	final long p99; // -1 with too few runs to tell it from the max
+	final long allocated; // -1 where the JVM can't tell
+
+	Result(String name, long median, long max, long p99, long allocated) {
+	    this.name = name;
+	    this.median = median;
+	    this.max = max;
+	    this.p99 = p99;
+	    this.allocated = allocated;
+	}
+    }
+
+    static final int P99_RUNS = 100;
+
+    private static final Pattern NAME = Pattern.compile("\"name\": \"((?:[^\"\\\\]|\\\\.)*)\"");
+    private static final Pattern MEDIAN = Pattern.compile("\"medianNanos\": (\\d+)");
+    private static final Pattern MAX = Pattern.compile("\"maxNanos\": (\\d+)");
+    private static final Pattern P99 = Pattern.compile("\"p99Nanos\": (\\d+)");
+    private static final Pattern ALLOCATED = Pattern.compile("\"allocatedBytes\": (-?\\d+)");
+
+    private static final PrintStream NOWHERE = new PrintStream(new OutputStream() {
+	    @Override
+	    public void write(int b) {}
+
+	    @Override
+	    public void write(byte[] b, int off, int len) {}
+	});
+
+    private final int warmup;
+    private final int iterations;
+
+    Bench(int warmup, int iterations) {
+	this.warmup = warmup;
+	this.iterations = iterations;
+    }
+
+    /** Returns the .luca scripts in the directory, by name. */
+    static List<Path> scripts(Path directory) throws IOException {
+	List<Path> scripts = new ArrayList<>();
+	try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.luca")) {
+	    for (Path file : files) {
+		scripts.add(file);
+	    }
+	}
+
+	scripts.sort((a, b) -> a.getFileName().toString().compareTo(b.getFileName().toString()));
+	return scripts;
+    }
+
+    /** Runs the script, or returns null if it can't be read or has errors, which are reported. */
+    Result run(Path script) {
+	String name = script.getFileName().toString();
+	String source;
+	try {
+	    source = new String(Files.readAllBytes(script), Charset.defaultCharset());
+	}
+	catch (IOException e) {
+	    System.err.println("Can't read " + script + ": " + e.getMessage());
+	    return null;
+	}
+	long[] times = new long[iterations];
+	long[] allocations = new long[iterations];
+
+	for (int i = 0; i < warmup + iterations; ++i) {
+	    long bytes = allocatedBytes();
+	    long start = System.nanoTime();
+	    boolean ran = runQuietly(source);
+	    long time = System.nanoTime() - start;
+	    bytes = bytes < 0 ? -1 : allocatedBytes() - bytes;
+
+	    if (!ran) {
+		System.err.println(name + ": failed, so not measured");
+		return null;
+	    }
+	    if (i >= warmup) {
+		times[i - warmup] = time;
+		allocations[i - warmup] = bytes;
+	    }
+	}
+
+	Arrays.sort(times);
+	Arrays.sort(allocations);
+	long p99 = iterations >= P99_RUNS ? times[(int) Math.ceil(iterations * 0.99) - 1] : -1;
+	return new Result(name, times[iterations / 2], times[iterations - 1], p99, allocations[iterations / 2]);
+    }
+
+    /** Runs the source with its output thrown away, and returns whether it ran without errors. */
+    private static boolean runQuietly(String source) {
+	PrintStream out = System.out;
+	System.setOut(NOWHERE);
+	try {
+	    List<Stmt> statements = Luca.compile(new Scanner(source));
+	    if (statements != null) { Luca.executeAlone(statements); }
+	}
+	finally {
+	    System.setOut(out);
+	}
+
+	boolean ran = !Luca.hadError && !Luca.hadRuntimeError;
+	Luca.hadError = false;
+	Luca.hadRuntimeError = false;
+	return ran;
+    }
+
+    /** Returns the bytes this thread has allocated so far, or -1 if the JVM doesn't count them. */
+    private static long allocatedBytes() {
+	java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	if (!(threads instanceof com.sun.management.ThreadMXBean)) { return -1; }
+
+	com.sun.management.ThreadMXBean counting = (com.sun.management.ThreadMXBean) threads;
+	return counting.isThreadAllocatedMemoryEnabled()
+	    ? counting.getThreadAllocatedBytes(Thread.currentThread().getId()) : -1;
+    }
+
+    static String format(Result result) {
+	return String.format("%-24s median %9.2f ms   max %9.2f ms   %sallocated %s", result.name,
+			     result.median / 1e6, result.max / 1e6,
+			     result.p99 < 0 ? "" : String.format("p99 %9.2f ms   ", result.p99 / 1e6),
+			     result.allocated < 0 ? "?" : String.format("%.1f MB", result.allocated / 1e6));
+    }
+
+    static void write(Path file, List<Result> results) throws IOException {
+	StringBuilder json = new StringBuilder("[\n");
+	for (int i = 0; i < results.size(); ++i) {
+	    Result result = results.get(i);
+	    json.append("  {\"name\": \"").append(result.name.replace("\\", "\\\\").replace("\"", "\\\""))
+		.append("\", \"medianNanos\": ").append(result.median)
+		.append(", \"maxNanos\": ").append(result.max);
+	    if (result.p99 >= 0) { json.append(", \"p99Nanos\": ").append(result.p99); }
+	    json.append(", \"allocatedBytes\": ").append(result.allocated)
+		.append(i + 1 < results.size() ? "},\n" : "}\n");
+	}
+	json.append("]\n");
+
+	Files.write(file, json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Reads results written by write(), by script name. Lines without a name and median are skipped. */
+    static Map<String,Result> read(Path file) throws IOException {
+	Map<String,Result> results = new HashMap<>();
+	for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+	    Matcher name = NAME.matcher(line);
+	    long median = field(MEDIAN, line);
+	    if (!name.find() || median < 0) { continue; }
+
+	    String script = name.group(1).replace("\\\"", "\"").replace("\\\\", "\\");
+	    results.put(script, new Result(script, median, field(MAX, line), field(P99, line), field(ALLOCATED, line)));
+	}
+
+	return results;
+    }
+
+    /** Returns the field's value on the line, or -1 if it isn't there. */
+    private static long field(Pattern field, String line) {
+	Matcher match = field.matcher(line);
+	return match.find() ? Long.parseLong(match.group(1)) : -1;
+    }
+
+    /**
+     * Reports each result whose median time or allocation is more than
+     * threshold percent above its baseline, and returns how many there are.
+     * Scripts the baseline doesn't have are left out.
+     */
+    static int compare(List<Result> results, Map<String,Result> baseline, double threshold) {
+	int regressions = 0;
+	for (Result result : results) {
+	    Result base = baseline.get(result.name);
+	    if (base == null) { continue; }
+
+	    if (regressed(result.median, base.median, threshold)) {
+		System.err.println(String.format("%s: median time regressed %.1f%%, %.2f ms to %.2f ms", result.name,
+						 change(result.median, base.median), base.median / 1e6, result.median / 1e6));
+		++regressions;
+	    }
+	    if (base.allocated >= 0 && result.allocated >= 0 && regressed(result.allocated, base.allocated, threshold)) {
+		System.err.println(String.format("%s: allocation regressed %.1f%%, %d to %d bytes", result.name,
+						 change(result.allocated, base.allocated), base.allocated, result.allocated));
+		++regressions;
+	    }
+	}
+
+	return regressions;
+    }
+
+    private static boolean regressed(long value, long base, double threshold) {
+	return value > base * (1 + threshold / 100);
+    }
+
+    private static double change(long value, long base) {
+	return base == 0 ? Double.POSITIVE_INFINITY : 100.0 * (value - base) / base;
+    }
+
+}
@@ -0,0 +1,48 @@
+package luca;
+
+/**
+ * Inline cache for an Expr.Call site. It remembers up to MAX_TARGETS
+ * callees whose arity already matched the site's argument count, so a
+ * repeated call to one of them skips the callable and arity checks.
+ * Luca functions are keyed by their declaration, or their class once
+ * compiled, so every closure made from the same declaration hits the
+ * same entry. A site that sees more targets than that is megamorphic
+ * and keeps taking the checked path.
+ */
+final class CallCache {
+
+    private static final int MAX_TARGETS = 4;
+
+    private final Object[] targets = new Object[MAX_TARGETS];
+    private int size = 0;
+
+    /** Returns the key a callee is cached under. */
+    static Object keyOf(Object callee) {
+	if (callee instanceof LucaFunction) {
+	    return ((LucaFunction) callee).declaration;
+	}
+	else if (callee instanceof ClosureFunction) {
+	    return ((ClosureFunction) callee).code;
+	}
+	else if (callee instanceof CompiledFunction) {
+	    return callee.getClass(); // one class per declaration
+	}
+
+	return callee;
+    }
+
+    boolean contains(Object key) {
+	for (int i = 0; i < size; ++i) {
+	    if (targets[i] == key) { return true; }
+	}
+
+	return false;
+    }
+
+    void add(Object key) {
+	if (size < MAX_TARGETS) {
+	    targets[size++] = key;
+	}
+    }
+    
+}
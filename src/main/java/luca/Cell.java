@@ -0,0 +1,12 @@
+package luca;
+
+/** Heap box for a local variable that is captured by a closure. */
+class Cell {
+
+    Object value;
+
+    Cell(Object value) {
+	this.value = value;
+    }
+    
+}
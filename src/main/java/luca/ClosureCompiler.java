@@ -0,0 +1,647 @@
+package luca;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A backend between the tree-walker and the VM: compiles each node of a
+ * resolved tree once into a lambda that runs it, with its children's
+ * lambdas already linked in. What the Interpreter works out on every
+ * visit, the operator, where a variable lives, which Cell a global is,
+ * is worked out here at compile time instead.
+ *
+ * A function call gets one Frame, with a slot for every local of the
+ * body, those of nested blocks included, so blocks don't allocate
+ * Environments and a local is one array access away.
+ */
+class ClosureCompiler implements Expr.Visitor<ClosureCompiler.Node>, Stmt.Visitor<ClosureCompiler.Action> {
+
+    /** The locals of a running function, or of the top level's blocks. */
+    static final class Frame {
+	final Object[] slots;
+	Cell[] upvalues;
+	Object returnValue = null; // set along with Completion.RETURN
+	ClosureFunction tailCallee = null; // set along with Completion.TAIL_CALL
+	Object[] tailArguments = null;
+
+	Frame(int size, Cell[] upvalues) {
+	    this.slots = new Object[size];
+	    this.upvalues = upvalues;
+	}
+    }
+
+    interface Node {
+	Object evaluate(Frame frame);
+    }
+
+    /** An expression NumericInference has proven numeric, evaluated unboxed. */
+    interface NumberNode {
+	double evaluate(Frame frame);
+    }
+
+    /** An expression evaluated for its truth. */
+    interface Test {
+	boolean test(Frame frame);
+    }
+
+    interface Action {
+	Completion execute(Frame frame);
+    }
+
+    /** The slots of one Environment the Interpreter would make, starting at base in the frame. */
+    private static final class Scope {
+	final Scope enclosing;
+	final int base;
+
+	Scope(Scope enclosing, int base) {
+	    this.enclosing = enclosing;
+	    this.base = base;
+	}
+    }
+
+    private static final Object[] NO_ARGUMENTS = new Object[0];
+
+    private final Globals globals = new Globals();
+    private Scope scope = null; // null outside of functions and blocks
+    private int next = 0; // first free slot of the frame
+    private int size = 0; // slots the frame needs
+
+    ClosureCompiler() {
+	globals.define(Symbols.intern("clock"), Interpreter.CLOCK);
+    }
+
+    void interpret(List<Stmt> statements) {
+	scope = null;
+	next = 0;
+	size = 0;
+	Action script = compile(statements);
+	try {
+	    script.execute(new Frame(size, null));
+	}
+	catch (RuntimeError error) {
+	    Luca.runtimeError(error);
+	}
+    }
+
+    private Action compile(Stmt stmt) {
+	return stmt.accept(this);
+    }
+
+    private Node compile(Expr expr) {
+	return expr.accept(this);
+    }
+
+    private Action compile(List<Stmt> statements) {
+	Action[] actions = new Action[statements.size()];
+	for (int i = 0; i < actions.length; ++i) {
+	    actions[i] = compile(statements.get(i));
+	}
+
+	switch (actions.length) {
+	    case 0:
+		return frame -> Completion.NORMAL;
+	    case 1:
+		return actions[0];
+	    default:
+		return frame -> {
+		    for (Action action : actions) {
+			Completion completion = action.execute(frame);
+			if (completion != Completion.NORMAL) { return completion; }
+		    }
+		    return Completion.NORMAL;
+		};
+	}
+    }
+
+    /** Returns the frame slot of a local, from the Resolver's depth and slot. */
+    private int slot(int depth, int slot) {
+	Scope scope = this.scope;
+	for (int i = 0; i < depth; ++i) {
+	    scope = scope.enclosing;
+	}
+
+	return scope.base + slot;
+    }
+
+    // statements
+
+    @Override
+    public Action visitBlockStmt(Stmt.Block stmt) {
+	if (stmt.frameSize == 0) { return compile(stmt.statements); }
+
+	Scope enclosing = scope;
+	int base = next;
+	scope = new Scope(enclosing, base);
+	next += stmt.frameSize;
+	size = Math.max(size, next);
+	try {
+	    return compile(stmt.statements);
+	}
+	finally {
+	    scope = enclosing;
+	    next = base; // the block's slots are free again after it
+	}
+    }
+
+    @Override
+    public Action visitClassStmt(Stmt.Class stmt) {
+	String name = stmt.name.lexeme;
+	return define(stmt.name, stmt.slot, stmt.captured, frame -> new LucaClass(name));
+    }
+
+    @Override
+    public Action visitExpressionStmt(Stmt.Expression stmt) {
+	Node expression = compile(stmt.expression);
+	return frame -> {
+	    expression.evaluate(frame);
+	    return Completion.NORMAL;
+	};
+    }
+
+    @Override
+    public Action visitFunctionStmt(Stmt.Function stmt) {
+	ClosureFunction.Code code = compileFunction(stmt);
+	int[] depths = stmt.upvalueDepths;
+	int[] slots = new int[depths.length];
+	for (int i = 0; i < slots.length; ++i) {
+	    slots[i] = depths[i] == -1 ? stmt.upvalueSlots[i] : slot(depths[i], stmt.upvalueSlots[i]);
+	}
+	Node closure = frame -> {
+	    Cell[] cells = new Cell[slots.length];
+	    for (int i = 0; i < cells.length; ++i) {
+		cells[i] = depths[i] == -1 ? frame.upvalues[slots[i]] : (Cell) frame.slots[slots[i]];
+	    }
+	    return new ClosureFunction(code, cells);
+	};
+
+	if (stmt.captured) {
+	    // the function can see itself, so its Cell must exist before capture
+	    int slot = slot(0, stmt.slot);
+	    return frame -> {
+		Cell cell = new Cell(null);
+		frame.slots[slot] = cell;
+		cell.value = closure.evaluate(frame);
+		return Completion.NORMAL;
+	    };
+	}
+
+	return define(stmt.name, stmt.slot, false, closure);
+    }
+
+    private ClosureFunction.Code compileFunction(Stmt.Function stmt) {
+	Scope enclosingScope = scope;
+	int enclosingNext = next;
+	int enclosingSize = size;
+	try {
+	    scope = new Scope(null, 0);
+	    next = stmt.frameSize;
+	    size = stmt.frameSize;
+	    Action body = compile(stmt.body);
+	    return new ClosureFunction.Code(stmt.name.lexeme, stmt.params.size(), size, stmt.capturedParams, body);
+	}
+	finally {
+	    scope = enclosingScope;
+	    next = enclosingNext;
+	    size = enclosingSize;
+	}
+    }
+
+    @Override
+    public Action visitIfStmt(Stmt.If stmt) {
+	Test condition = test(stmt.condition);
+	Action thenBranch = compile(stmt.thenBranch);
+	if (stmt.elseBranch == null) {
+	    return frame -> condition.test(frame) ? thenBranch.execute(frame) : Completion.NORMAL;
+	}
+
+	Action elseBranch = compile(stmt.elseBranch);
+	return frame -> condition.test(frame) ? thenBranch.execute(frame) : elseBranch.execute(frame);
+    }
+
+    @Override
+    public Action visitPrintStmt(Stmt.Print stmt) {
+	Node expression = compile(stmt.expression);
+	return frame -> {
+	    System.out.println(Interpreter.stringify(expression.evaluate(frame)));
+	    return Completion.NORMAL;
+	};
+    }
+
+    @Override
+    public Action visitReturnStmt(Stmt.Return stmt) {
+	if (stmt.tailCall) {
+	    Expr.Call call = (Expr.Call) stmt.value;
+	    Node callee = compile(call.callee);
+	    Node[] arguments = compileAll(call.arguments);
+	    return frame -> {
+		Object function = callee.evaluate(frame);
+		Object[] values = evaluate(arguments, frame);
+		LucaCallable checked = checkCall(call, function, values);
+		if (checked instanceof ClosureFunction) {
+		    // unwind this call first, ClosureFunction.invoke then runs the callee
+		    frame.tailCallee = (ClosureFunction) checked;
+		    frame.tailArguments = values;
+		    return Completion.TAIL_CALL;
+		}
+
+		frame.returnValue = checked.call(null, Arrays.asList(values));
+		return Completion.RETURN;
+	    };
+	}
+
+	if (stmt.value == null) {
+	    return frame -> {
+		frame.returnValue = null;
+		return Completion.RETURN;
+	    };
+	}
+
+	Node value = compile(stmt.value);
+	return frame -> {
+	    frame.returnValue = value.evaluate(frame);
+	    return Completion.RETURN;
+	};
+    }
+
+    @Override
+    public Action visitVarStmt(Stmt.Var stmt) {
+	Node initializer = stmt.initializer != null ? compile(stmt.initializer) : frame -> null;
+	return define(stmt.name, stmt.slot, stmt.captured, initializer);
+    }
+
+    @Override
+    public Action visitWhileStmt(Stmt.While stmt) {
+	Test condition = test(stmt.condition);
+	Action body = compile(stmt.body);
+	return frame -> {
+	    while (condition.test(frame)) {
+		Completion completion = body.execute(frame);
+		if (completion != Completion.NORMAL) { return completion; }
+	    }
+	    return Completion.NORMAL;
+	};
+    }
+
+    private Action define(Token name, int slot, boolean captured, Node value) {
+	if (slot == -1) {
+	    Cell global = globals.cell(name.symbol);
+	    return frame -> {
+		global.value = value.evaluate(frame);
+		return Completion.NORMAL;
+	    };
+	}
+
+	int index = slot(0, slot);
+	if (captured) {
+	    return frame -> {
+		frame.slots[index] = new Cell(value.evaluate(frame));
+		return Completion.NORMAL;
+	    };
+	}
+
+	return frame -> {
+	    frame.slots[index] = value.evaluate(frame);
+	    return Completion.NORMAL;
+	};
+    }
+
+    // expressions
+
+    @Override
+    public Node visitAssignExpr(Expr.Assign expr) {
+	Node value = compile(expr.value);
+	if (expr.depth != -1) {
+	    int slot = slot(expr.depth, expr.slot);
+	    if (expr.cell) {
+		return frame -> ((Cell) frame.slots[slot]).value = value.evaluate(frame);
+	    }
+	    return frame -> frame.slots[slot] = value.evaluate(frame);
+	}
+	else if (expr.upvalue) {
+	    int slot = expr.slot;
+	    return frame -> frame.upvalues[slot].value = value.evaluate(frame);
+	}
+
+	Cell global = globals.cell(expr.name.symbol);
+	Token name = expr.name;
+	return frame -> {
+	    Object result = value.evaluate(frame);
+	    globals.assign(global, name, result);
+	    return result;
+	};
+    }
+
+    @Override
+    public Node visitBinaryExpr(Expr.Binary expr) {
+	if (expr.numericOperands) {
+	    switch (expr.operator.type) {
+		case PLUS: case MINUS: case STAR: case SLASH: {
+		    NumberNode number = number(expr);
+		    return frame -> number.evaluate(frame);
+		}
+		default: {
+		    Test test = test(expr);
+		    return frame -> test.test(frame);
+		}
+	    }
+	}
+
+	Node left = compile(expr.left);
+	Node right = compile(expr.right);
+	Token operator = expr.operator;
+	switch (operator.type) {
+	    case PLUS:
+		return frame -> {
+		    Object a = left.evaluate(frame);
+		    Object b = right.evaluate(frame);
+		    if (a instanceof Double && b instanceof Double) { return (double) a + (double) b; }
+		    if (ConcatString.isString(a) && ConcatString.isString(b)) { return ConcatString.concat(a, b); }
+		    throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
+		};
+	    case MINUS:
+		return frame -> {
+		    Object a = left.evaluate(frame);
+		    Object b = right.evaluate(frame);
+		    checkNumberOperands(operator, a, b);
+		    return (double) a - (double) b;
+		};
+	    case STAR:
+		return frame -> {
+		    Object a = left.evaluate(frame);
+		    Object b = right.evaluate(frame);
+		    checkNumberOperands(operator, a, b);
+		    return (double) a * (double) b;
+		};
+	    case SLASH:
+		return frame -> {
+		    Object a = left.evaluate(frame);
+		    Object b = right.evaluate(frame);
+		    checkNumberOperands(operator, a, b);
+		    return (double) a / (double) b;
+		};
+	    case GREATER: case GREATER_EQUAL: case LESS: case LESS_EQUAL: {
+		Test test = test(expr);
+		return frame -> test.test(frame);
+	    }
+	    case BANG_EQUAL:
+		return frame -> !Interpreter.isEqual(left.evaluate(frame), right.evaluate(frame));
+	    case EQUAL_EQUAL:
+		return frame -> Interpreter.isEqual(left.evaluate(frame), right.evaluate(frame));
+	}
+
+	throw new IllegalArgumentException("no binary operator " + operator.type);
+    }
+
+    /** Compiles an expression NumericInference has proven numeric, like Interpreter.evaluateDouble(). */
+    private NumberNode number(Expr expr) {
+	if (expr instanceof Expr.Binary) {
+	    Expr.Binary binary = (Expr.Binary) expr;
+	    NumberNode left = number(binary.left);
+	    NumberNode right = number(binary.right);
+	    switch (binary.operator.type) {
+		case PLUS:  return frame -> left.evaluate(frame) + right.evaluate(frame);
+		case MINUS: return frame -> left.evaluate(frame) - right.evaluate(frame);
+		case STAR:  return frame -> left.evaluate(frame) * right.evaluate(frame);
+		case SLASH: return frame -> left.evaluate(frame) / right.evaluate(frame);
+	    }
+	}
+	else if (expr instanceof Expr.Literal) {
+	    double value = (double) ((Expr.Literal) expr).value;
+	    return frame -> value;
+	}
+	else if (expr instanceof Expr.Grouping) {
+	    return number(((Expr.Grouping) expr).expression);
+	}
+	else if (expr instanceof Expr.Unary) {
+	    NumberNode right = number(((Expr.Unary) expr).right);
+	    return frame -> -right.evaluate(frame);
+	}
+
+	// variables and assignments, whose values are stored boxed
+	Node node = compile(expr);
+	return frame -> (double) node.evaluate(frame);
+    }
+
+    /** Compiles a condition, comparisons straight to a boolean rather than through a boxed one. */
+    private Test test(Expr expr) {
+	if (expr instanceof Expr.Binary) {
+	    Expr.Binary binary = (Expr.Binary) expr;
+	    TokenType operator = binary.operator.type;
+	    if (binary.numericOperands) {
+		NumberNode left = number(binary.left);
+		NumberNode right = number(binary.right);
+		switch (operator) {
+		    case GREATER:       return frame -> left.evaluate(frame) > right.evaluate(frame);
+		    case GREATER_EQUAL: return frame -> left.evaluate(frame) >= right.evaluate(frame);
+		    case LESS:          return frame -> left.evaluate(frame) < right.evaluate(frame);
+		    case LESS_EQUAL:    return frame -> left.evaluate(frame) <= right.evaluate(frame);
+		    // same as Double.equals(), which isEqual() relies on
+		    case BANG_EQUAL:
+			return frame -> Double.doubleToLongBits(left.evaluate(frame))
+			    != Double.doubleToLongBits(right.evaluate(frame));
+		    case EQUAL_EQUAL:
+			return frame -> Double.doubleToLongBits(left.evaluate(frame))
+			    == Double.doubleToLongBits(right.evaluate(frame));
+		}
+	    }
+	    else if (operator != TokenType.PLUS && operator != TokenType.MINUS
+		     && operator != TokenType.STAR && operator != TokenType.SLASH) {
+		Node left = compile(binary.left);
+		Node right = compile(binary.right);
+		Token token = binary.operator;
+		switch (operator) {
+		    case GREATER:
+			return frame -> {
+			    Object a = left.evaluate(frame);
+			    Object b = right.evaluate(frame);
+			    checkNumberOperands(token, a, b);
+			    return (double) a > (double) b;
+			};
+		    case GREATER_EQUAL:
+			return frame -> {
+			    Object a = left.evaluate(frame);
+			    Object b = right.evaluate(frame);
+			    checkNumberOperands(token, a, b);
+			    return (double) a >= (double) b;
+			};
+		    case LESS:
+			return frame -> {
+			    Object a = left.evaluate(frame);
+			    Object b = right.evaluate(frame);
+			    checkNumberOperands(token, a, b);
+			    return (double) a < (double) b;
+			};
+		    case LESS_EQUAL:
+			return frame -> {
+			    Object a = left.evaluate(frame);
+			    Object b = right.evaluate(frame);
+			    checkNumberOperands(token, a, b);
+			    return (double) a <= (double) b;
+			};
+		    case BANG_EQUAL:
+			return frame -> !Interpreter.isEqual(left.evaluate(frame), right.evaluate(frame));
+		    case EQUAL_EQUAL:
+			return frame -> Interpreter.isEqual(left.evaluate(frame), right.evaluate(frame));
+		}
+	    }
+	}
+	else if (expr instanceof Expr.Grouping) {
+	    return test(((Expr.Grouping) expr).expression);
+	}
+
+	Node node = compile(expr);
+	return frame -> Interpreter.isTruthy(node.evaluate(frame));
+    }
+
+    private static void checkNumberOperands(Token operator, Object left, Object right) {
+	if (left instanceof Double && right instanceof Double) { return; }
+	throw new RuntimeError(operator, "Operands must be numbers.");
+    }
+
+    @Override
+    public Node visitCallExpr(Expr.Call expr) {
+	Node callee = compile(expr.callee);
+	Node[] arguments = compileAll(expr.arguments);
+	return frame -> {
+	    Object function = callee.evaluate(frame);
+	    Object[] values = evaluate(arguments, frame);
+	    LucaCallable checked = checkCall(expr, function, values);
+	    if (checked instanceof ClosureFunction) {
+		return ((ClosureFunction) checked).invoke(values);
+	    }
+	    return checked.call(null, Arrays.asList(values));
+	};
+    }
+
+    private Node[] compileAll(List<Expr> exprs) {
+	Node[] nodes = new Node[exprs.size()];
+	for (int i = 0; i < nodes.length; ++i) {
+	    nodes[i] = compile(exprs.get(i));
+	}
+
+	return nodes;
+    }
+
+    private static Object[] evaluate(Node[] nodes, Frame frame) {
+	if (nodes.length == 0) { return NO_ARGUMENTS; }
+
+	Object[] values = new Object[nodes.length];
+	for (int i = 0; i < values.length; ++i) {
+	    values[i] = nodes[i].evaluate(frame);
+	}
+
+	return values;
+    }
+
+    /** Checks that callee can take the arguments, unless the site's cache already knows it can. */
+    private static LucaCallable checkCall(Expr.Call expr, Object callee, Object[] arguments) {
+	Object key = CallCache.keyOf(callee);
+	if (expr.cache.contains(key)) { return (LucaCallable) callee; }
+
+	if (!(callee instanceof LucaCallable)) {
+	    throw new RuntimeError(expr.paren, "Can only call functions and classes.");
+	}
+
+	LucaCallable function = (LucaCallable) callee;
+	if (arguments.length != function.arity()) {
+	    throw new RuntimeError(expr.paren, "Expected " +
+				   function.arity() + " arguments but got " +
+				   arguments.length + ".");
+	}
+
+	expr.cache.add(key);
+	return function;
+    }
+
+    @Override
+    public Node visitGetExpr(Expr.Get expr) {
+	Node object = compile(expr.object);
+	return frame -> {
+	    Object instance = object.evaluate(frame);
+	    if (instance instanceof LucaInstance) {
+		return ((LucaInstance) instance).get(expr);
+	    }
+
+	    throw new RuntimeError(expr.name, "Only instances have properties.");
+	};
+    }
+
+    @Override
+    public Node visitGroupingExpr(Expr.Grouping expr) {
+	return compile(expr.expression);
+    }
+
+    @Override
+    public Node visitLiteralExpr(Expr.Literal expr) {
+	Object value = expr.value;
+	return frame -> value;
+    }
+
+    @Override
+    public Node visitLogicalExpr(Expr.Logical expr) {
+	Node left = compile(expr.left);
+	Node right = compile(expr.right);
+	if (expr.operator.type == TokenType.OR) {
+	    return frame -> {
+		Object value = left.evaluate(frame);
+		return Interpreter.isTruthy(value) ? value : right.evaluate(frame);
+	    };
+	}
+
+	return frame -> {
+	    Object value = left.evaluate(frame);
+	    return !Interpreter.isTruthy(value) ? value : right.evaluate(frame);
+	};
+    }
+
+    @Override
+    public Node visitSetExpr(Expr.Set expr) {
+	Node object = compile(expr.object);
+	Node value = compile(expr.value);
+	return frame -> {
+	    Object instance = object.evaluate(frame);
+	    Object result = value.evaluate(frame);
+	    if (!(instance instanceof LucaInstance)) {
+		throw new RuntimeError(expr.name, "Only instances have fields.");
+	    }
+
+	    ((LucaInstance) instance).set(expr, result);
+	    return result;
+	};
+    }
+
+    @Override
+    public Node visitUnaryExpr(Expr.Unary expr) {
+	Node right = compile(expr.right);
+	if (expr.operator.type == TokenType.BANG) {
+	    return frame -> !Interpreter.isTruthy(right.evaluate(frame));
+	}
+
+	Token operator = expr.operator;
+	return frame -> {
+	    Object value = right.evaluate(frame);
+	    if (!(value instanceof Double)) {
+		throw new RuntimeError(operator, "Operand must be a number.");
+	    }
+	    return -(double) value;
+	};
+    }
+
+    @Override
+    public Node visitVariableExpr(Expr.Variable expr) {
+	if (expr.depth != -1) {
+	    int slot = slot(expr.depth, expr.slot);
+	    if (expr.cell) { return frame -> ((Cell) frame.slots[slot]).value; }
+	    return frame -> frame.slots[slot];
+	}
+	else if (expr.upvalue) {
+	    int slot = expr.slot;
+	    return frame -> frame.upvalues[slot].value;
+	}
+
+	Cell global = globals.cell(expr.name.symbol);
+	Token name = expr.name;
+	return frame -> globals.get(global, name);
+    }
+
+}
@@ -0,0 +1,84 @@
+package luca;
+
+import java.util.Arrays;
+import java.util.List;
+
+/** A Luca function as the ClosureCompiler runs it: compiled code and the Cells it captured. */
+final class ClosureFunction implements LucaCallable {
+
+    /** What a declaration compiles to, shared by every closure made from it. */
+    static final class Code {
+	final String name;
+	final int arity;
+	final int frameSize; // every local of the body, blocks included, has its own slot
+	final boolean[] capturedParams;
+	final ClosureCompiler.Action body;
+
+	Code(String name, int arity, int frameSize, boolean[] capturedParams, ClosureCompiler.Action body) {
+	    this.name = name;
+	    this.arity = arity;
+	    this.frameSize = frameSize;
+	    this.capturedParams = capturedParams;
+	    this.body = body;
+	}
+    }
+
+    final Code code;
+    private final Cell[] upvalues;
+
+    ClosureFunction(Code code, Cell[] upvalues) {
+	this.code = code;
+	this.upvalues = upvalues;
+    }
+
+    @Override
+    public int arity() {
+	return code.arity;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+	return invoke(arguments.toArray());
+    }
+
+    Object invoke(Object[] arguments) {
+	ClosureFunction function = this;
+	ClosureCompiler.Frame frame = new ClosureCompiler.Frame(code.frameSize, upvalues);
+	while (true) {
+	    Code code = function.code;
+	    for (int i = 0; i < code.arity; ++i) {
+		// params take the first slots
+		frame.slots[i] = code.capturedParams[i] ? new Cell(arguments[i]) : arguments[i];
+	    }
+
+	    Completion completion = code.body.execute(frame);
+	    if (completion == Completion.RETURN) {
+		return frame.returnValue;
+	    }
+	    else if (completion != Completion.TAIL_CALL) {
+		return null;
+	    }
+
+	    // trampoline: run the tail call here instead of one frame deeper
+	    ClosureFunction callee = frame.tailCallee;
+	    arguments = frame.tailArguments;
+	    if (callee.code == code) {
+		// closures hold Cells, never the frame, so it can be run in again
+		Arrays.fill(frame.slots, null);
+		frame.upvalues = callee.upvalues;
+		frame.tailCallee = null;
+		frame.tailArguments = null;
+	    }
+	    else {
+		frame = new ClosureCompiler.Frame(callee.code.frameSize, callee.upvalues);
+	    }
+	    function = callee;
+	}
+    }
+
+    @Override
+    public String toString() {
+	return "<fn " + code.name + ">";
+    }
+
+}
@@ -0,0 +1,54 @@
+package luca;
+
+import java.util.List;
+
+/**
+ * A closure in a program compiled by JvmCompiler. Each Stmt.Function is
+ * compiled to a static method taking the closure's upvalues and its
+ * arguments, and to a subclass of this whose invoke() calls that method.
+ */
+abstract class CompiledFunction implements LucaCallable {
+
+    private final String name;
+    private final int arity;
+    protected final Cell[] upvalues; // only the variables the body captures
+
+    protected CompiledFunction(String name, int arity, Cell[] upvalues) {
+	this.name = name;
+	this.arity = arity;
+	this.upvalues = upvalues;
+    }
+
+    /** Runs the body once. Returns JvmRuntime.TAIL_CALL if it ended in a tail call to a compiled function. */
+    protected abstract Object invoke(Object[] arguments);
+
+    /** Calls the function, running the tail calls it makes here rather than one frame deeper. */
+    final Object run(Object[] arguments) {
+	CompiledFunction function = this;
+	while (true) {
+	    Object result = function.invoke(arguments);
+	    if (result != JvmRuntime.TAIL_CALL) { return result; }
+
+	    function = JvmRuntime.tailCallee;
+	    arguments = JvmRuntime.tailArguments;
+	    JvmRuntime.tailCallee = null;
+	    JvmRuntime.tailArguments = null;
+	}
+    }
+
+    @Override
+    public int arity() {
+	return arity;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+	return run(arguments.toArray());
+    }
+
+    @Override
+    public String toString() {
+	return "<fn " + name + ">";
+    }
+
+}
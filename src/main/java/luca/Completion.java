@@ -0,0 +1,17 @@
+package luca;
+
+/**
+ * How a statement finished, returned by the Interpreter's statement
+ * visitors in place of throwing. Anything but NORMAL stops the enclosing
+ * statement lists and loops until something handles it: RETURN is
+ * handled by LucaFunction.call, which finds the value in
+ * Interpreter.returnValue. TAIL_CALL is a 'return f(...)' whose callee
+ * and arguments are waiting in Interpreter.tailCallee and tailArguments
+ * for LucaFunction.call to run in place of the returning call. A future
+ * break or continue would be handled by its loop.
+ */
+enum Completion {
+    NORMAL,
+    RETURN,
+    TAIL_CALL
+}
@@ -0,0 +1,96 @@
+package luca;
+
+/**
+ * A Luca string built by '+'. A plain String is used while the result is
+ * short. Past FLAT_LIMIT chars the result is the first length chars of a
+ * StringBuilder, and appending to the newest string on a builder extends
+ * the builder in place. That makes 's = s + x' in a loop amortized linear
+ * instead of copying s every time. The String is only made, and then
+ * cached, when the value is printed or compared.
+ */
+final class ConcatString implements CharSequence {
+
+    private static final int FLAT_LIMIT = 64;
+
+    private final StringBuilder builder; // shared by a chain of appends
+    private final int length;
+    private String flat = null;
+
+    private ConcatString(StringBuilder builder) {
+	this.builder = builder;
+	this.length = builder.length();
+    }
+
+    static boolean isString(Object value) {
+	return value instanceof String || value instanceof ConcatString;
+    }
+
+    /** Returns left + right, where both are Luca strings. */
+    static Object concat(Object left, Object right) {
+	CharSequence a = (CharSequence) left;
+	CharSequence b = (CharSequence) right;
+	if (a.length() + b.length() <= FLAT_LIMIT) {
+	    return a.toString() + b.toString();
+	}
+
+	if (a instanceof ConcatString) {
+	    ConcatString prefix = (ConcatString) a;
+	    if (prefix.builder.length() == prefix.length) {
+		// nothing has been appended after a yet, so b can be
+		appendTo(prefix.builder, b);
+		return new ConcatString(prefix.builder);
+	    }
+	}
+
+	StringBuilder builder = new StringBuilder(2 * (a.length() + b.length()));
+	appendTo(builder, a);
+	appendTo(builder, b);
+	return new ConcatString(builder);
+    }
+
+    private static void appendTo(StringBuilder builder, CharSequence text) {
+	if (text instanceof ConcatString && ((ConcatString) text).builder != builder) {
+	    ConcatString string = (ConcatString) text;
+	    builder.append(string.builder, 0, string.length);
+	}
+	else {
+	    builder.append(text.toString()); // s + s has to flatten s first
+	}
+    }
+
+    @Override
+    public int length() {
+	return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+	if (index >= length) { throw new IndexOutOfBoundsException(); }
+	return builder.charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+	return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+	if (flat == null) {
+	    flat = builder.substring(0, length);
+	}
+
+	return flat;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+	return other instanceof ConcatString && toString().equals(other.toString());
+    }
+
+    @Override
+    public int hashCode() {
+	return toString().hashCode();
+    }
+
+}
@@ -1,27 +1,22 @@
 package luca;
 
-import java.util.Map;
-import java.util.HashMap;
-
+/** A local scope. Variables live in fixed slots assigned by the Resolver. */
 class Environment {
 
     final Environment enclosing;
-    private final Map<String,Object> values = new HashMap<>();
+    final Object[] values;
 
-    Environment(Environment enclosing) {
+    Environment(Environment enclosing, int size) {
 	this.enclosing = enclosing;
+	this.values = new Object[size];
     }
 
-    Environment() {
-	this(null); // global scope constructor, no parent
-    }
-
-    void define(String name, Object value) {
-	values.put(name, value);
+    Object getAt(int distance, int slot) {
+	return ancestor(distance).values[slot];
     }
 
-    Object getAt(int distance, String name) {
-	return ancestor(distance).values.get(name);
+    void assignAt(int distance, int slot, Object value) {
+	ancestor(distance).values[slot] = value;
     }
 
     Environment ancestor(int distance) {
@@ -33,28 +28,4 @@ class Environment {
 	return environment;
     }
     
-    Object get(Token name) {
-	if (values.containsKey(name.lexeme)) { return values.get(name.lexeme); }
-
-	if (enclosing != null) { return enclosing.get(name); }
-
-	throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'."); 
-    }
-
-    void assign(Token name, Object value) {
-	if (values.containsKey(name.lexeme)) {
-	    values.put(name.lexeme, value);
-	}
-	else if (enclosing != null) {
-	    enclosing.assign(name, value);
-	}
-	else {
-	    throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
-	}
-    }
-
-    void assignAt(int distance, Token name, Object value) {
-	ancestor(distance).values.put(name.lexeme, value);
-    }
-    
 }
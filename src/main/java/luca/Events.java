@@ -0,0 +1,70 @@
+package luca;
+
+/**
+ * The Java Flight Recorder events Luca emits, where there is a Flight
+ * Recorder: JfrEvents makes them, and is only loaded once jdk.jfr is known
+ * to be there, so that a Java 8 without it runs Luca with no events at
+ * all. Where nothing records an event, asking for it returns null.
+ */
+final class Events {
+
+    /** An event begun, which ends when it is finished. */
+    interface Span {
+	void finish();
+    }
+
+    interface Recorder {
+	Span phase(String phase);
+	Span call(Stmt.Function declaration);
+	void instance(LucaClass klass);
+	void runtimeError(RuntimeError error);
+    }
+
+    /** Records nothing, where there is no Flight Recorder. */
+    private static final class None implements Recorder {
+	@Override
+	public Span phase(String phase) { return null; }
+
+	@Override
+	public Span call(Stmt.Function declaration) { return null; }
+
+	@Override
+	public void instance(LucaClass klass) {}
+
+	@Override
+	public void runtimeError(RuntimeError error) {}
+    }
+
+    private static final Recorder RECORDER = recorder();
+
+    private Events() {}
+
+    private static Recorder recorder() {
+	try {
+	    Class.forName("jdk.jfr.Event");
+	    return (Recorder) Class.forName("luca.JfrEvents").getDeclaredConstructor().newInstance();
+	}
+	catch (ReflectiveOperationException | LinkageError e) {
+	    return new None();
+	}
+    }
+
+    /** Returns the phase's event, begun, or null if nothing records it. */
+    static Span phase(String phase) {
+	return RECORDER.phase(phase);
+    }
+
+    /** Returns the call's event, begun, or null if nothing records it. */
+    static Span call(Stmt.Function declaration) {
+	return RECORDER.call(declaration);
+    }
+
+    static void instance(LucaClass klass) {
+	RECORDER.instance(klass);
+    }
+
+    static void runtimeError(RuntimeError error) {
+	RECORDER.runtimeError(error);
+    }
+
+}
@@ -2,8 +2,8 @@ package luca;
 
 import java.util.List;
 
-abstract class Expr {
-  interface Visitor<R> {
+public abstract class Expr {
+  public interface Visitor<R> {
     R visitAssignExpr(Assign expr);
     R visitBinaryExpr(Binary expr);
     R visitCallExpr(Call expr);
@@ -15,148 +15,178 @@ abstract class Expr {
     R visitUnaryExpr(Unary expr);
     R visitVariableExpr(Variable expr);
   }
-  static class Assign extends Expr {
-    Assign(Token name, Expr value) {
+  public static class Assign extends Expr {
+    public Assign(Token name, Expr value) {
       this.name = name;
       this.value = value;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitAssignExpr(this);
     }
 
-    final Token name;
-    final Expr value;
+    public final Token name;
+    public final Expr value;
+
+    // Not set by the Parser
+    public int depth = -1;
+    public int slot = -1;
+    public boolean upvalue;
+    public boolean cell;
+    public Globals.Global global;
   }
-  static class Binary extends Expr {
-    Binary(Expr left, Token operator, Expr right) {
+  public static class Binary extends Expr {
+    public Binary(Expr left, Token operator, Expr right) {
       this.left = left;
       this.operator = operator;
       this.right = right;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitBinaryExpr(this);
     }
 
-    final Expr left;
-    final Token operator;
-    final Expr right;
+    public final Expr left;
+    public final Token operator;
+    public final Expr right;
+
+    // Not set by the Parser
+    public int specialization;
+    public boolean numericOperands;
   }
-  static class Call extends Expr {
-    Call(Expr callee, Token paren, List<Expr> arguments) {
+  public static class Call extends Expr {
+    public Call(Expr callee, Token paren, List<Expr> arguments) {
       this.callee = callee;
       this.paren = paren;
       this.arguments = arguments;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitCallExpr(this);
     }
 
-    final Expr callee;
-    final Token paren;
-    final List<Expr> arguments;
+    public final Expr callee;
+    public final Token paren;
+    public final List<Expr> arguments;
+
+    // Not set by the Parser
+    public CallCache cache = new CallCache();
   }
-  static class Get extends Expr {
-    Get(Expr object, Token name) {
+  public static class Get extends Expr {
+    public Get(Expr object, Token name) {
       this.object = object;
       this.name = name;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitGetExpr(this);
     }
 
-    final Expr object;
-    final Token name;
+    public final Expr object;
+    public final Token name;
+
+    // Not set by the Parser
+    public Shape cachedShape;
+    public int cachedOffset;
   }
-  static class Grouping extends Expr {
-    Grouping(Expr expression) {
+  public static class Grouping extends Expr {
+    public Grouping(Expr expression) {
       this.expression = expression;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitGroupingExpr(this);
     }
 
-    final Expr expression;
+    public final Expr expression;
   }
-  static class Literal extends Expr {
-    Literal(Object value) {
+  public static class Literal extends Expr {
+    public Literal(Object value) {
       this.value = value;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitLiteralExpr(this);
     }
 
-    final Object value;
+    public final Object value;
   }
-  static class Logical extends Expr {
-    Logical(Expr left, Token operator, Expr right) {
+  public static class Logical extends Expr {
+    public Logical(Expr left, Token operator, Expr right) {
       this.left = left;
       this.operator = operator;
       this.right = right;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitLogicalExpr(this);
     }
 
-    final Expr left;
-    final Token operator;
-    final Expr right;
+    public final Expr left;
+    public final Token operator;
+    public final Expr right;
   }
-  static class Set extends Expr {
-    Set(Expr object, Token name, Expr value) {
+  public static class Set extends Expr {
+    public Set(Expr object, Token name, Expr value) {
       this.object = object;
       this.name = name;
       this.value = value;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitSetExpr(this);
     }
 
-    final Expr object;
-    final Token name;
-    final Expr value;
+    public final Expr object;
+    public final Token name;
+    public final Expr value;
+
+    // Not set by the Parser
+    public Shape cachedShape;
+    public Shape cachedTransition;
+    public int cachedOffset;
   }
-  static class Unary extends Expr {
-    Unary(Token operator, Expr right) {
+  public static class Unary extends Expr {
+    public Unary(Token operator, Expr right) {
       this.operator = operator;
       this.right = right;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitUnaryExpr(this);
     }
 
-    final Token operator;
-    final Expr right;
+    public final Token operator;
+    public final Expr right;
   }
-  static class Variable extends Expr {
-    Variable(Token name) {
+  public static class Variable extends Expr {
+    public Variable(Token name) {
       this.name = name;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitVariableExpr(this);
     }
 
-    final Token name;
+    public final Token name;
+
+    // Not set by the Parser
+    public int depth = -1;
+    public int slot = -1;
+    public boolean upvalue;
+    public boolean cell;
+    public Globals.Global global;
   }
 
-  abstract <R> R accept(Visitor<R> visitor);
+  public abstract <R> R accept(Visitor<R> visitor);
 }
@@ -0,0 +1,73 @@
+package luca;
+
+import java.util.Arrays;
+
+/**
+ * The top-level scope. Each global lives in a Cell, made the first time
+ * its name is defined or looked up and kept from then on, so a reference
+ * can hold on to the Cell after its first use. Redefining a global, as
+ * the REPL allows, only changes what the Cell holds.
+ */
+class Globals {
+
+    /**
+     * A global's Cell. It knows which Globals it belongs to, as a reference
+     * that caches it may be run again by another Interpreter.
+     */
+    static final class Global extends Cell {
+	final Globals owner;
+
+	Global(Globals owner) {
+	    super(UNDEFINED);
+	    this.owner = owner;
+	}
+    }
+
+    static final Object UNDEFINED = new Object(); // the value of a global not yet defined
+
+    private Global[] cells = new Global[0]; // indexed by symbol
+    private volatile int size = 0; // written only by define(), read by the MBean's thread too
+
+    /** Returns how many globals define() has defined. Safe to call from any thread. */
+    int size() {
+	return size;
+    }
+
+    void define(int symbol, Object value) {
+	Global cell = cell(symbol);
+	if (cell.value == UNDEFINED) { size = size + 1; } // only the Interpreter's thread defines
+	cell.value = value;
+    }
+
+    /** Returns the global's Cell, which holds UNDEFINED until the global is defined. */
+    Global cell(int symbol) {
+	if (symbol >= cells.length) {
+	    cells = Arrays.copyOf(cells, Math.max(symbol + 1, Symbols.count()));
+	}
+
+	Global cell = cells[symbol];
+	if (cell == null) {
+	    cell = new Global(this);
+	    cells[symbol] = cell;
+	}
+
+	return cell;
+    }
+
+    Object get(Cell cell, Token name) {
+	Object value = cell.value;
+	if (value != UNDEFINED) { return value; }
+
+	throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'."); 
+    }
+
+    void assign(Cell cell, Token name, Object value) {
+	if (cell.value != UNDEFINED) {
+	    cell.value = value;
+	}
+	else {
+	    throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+	}
+    }
+    
+}
@@ -2,154 +2,259 @@ package luca;
 
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Map;
-import java.util.HashMap;
 
 
-class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
+class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Completion>, AutoCloseable {
 
-    final Environment globals = new Environment();
-    private Environment environment = globals;
-    private final Map<Expr,Integer> locals = new HashMap<>();
+    static final LucaCallable CLOCK = new LucaCallable() {
+	    @Override
+	    public int arity() { return 0; }
 
-    Interpreter() {
-	globals.define("clock", new LucaCallable() {
-		@Override
-		public int arity() { return 0; }
+	    @Override
+	    public Object call(Interpreter interpreter, List<Object> arguments) {
+		return ((double) (System.currentTimeMillis() / 1000.0));
+	    }
 
-		@Override
-		public Object call(Interpreter interpreter, List<Object> arguments) {
-		    return ((double) (System.currentTimeMillis() / 1000.0));
-		}
+	    @Override
+	    public String toString() {
+		return "<native fn>";
+	    }
+	};
+
+    final Globals globals = new Globals();
+    final Jit jit = new Jit(this);
+    final InterpreterCounters counters = new InterpreterCounters(globals);
+    private Environment environment = null; // null while at the top level
+    private Cell[] upvalues = null; // variables captured by the running function
+    private Stmt.Function function = null; // the running function's declaration, while interpreted
+    Object returnValue = null; // set along with Completion.RETURN
+    LucaFunction tailCallee = null; // set along with Completion.TAIL_CALL
+    List<Object> tailArguments = null;
+    long callCacheHits = 0;
+    long callCacheMisses = 0;
+    Profiler profiler = null; // set by --profile
 
-		@Override
-		public String toString() {
-		    return "<native fn>";
-		}
-	    });
+    Interpreter() {
+	globals.define(Symbols.intern("clock"), CLOCK);
+	if (InterpreterCounters.REGISTER) { counters.register(); }
+    }
+
+    /** Unregisters the Interpreter's MBean, if it has one, and stops its JIT compiler. */
+    @Override
+    public void close() {
+	counters.unregister();
+	jit.close();
     }
     
     void interpret(List<Stmt> statements) {
+	if (profiler != null) { profiler.start(); }
 	try {
 	    for (Stmt statement : statements) {
 		execute(statement);
 	    }
 	}
 	catch (RuntimeError error) {
+	    counters.error();
+	    counters.unwind();
 	    Luca.runtimeError(error);
 	}
+	finally {
+	    counters.publish();
+	}
     }
 
-    private void execute(Stmt stmt) {
-	stmt.accept(this);
+    private Completion execute(Stmt stmt) {
+	counters.statement();
+	return stmt.accept(this);
     }
     
     private Object evaluate(Expr expr) {
 	return expr.accept(this);
     }
 
-    void resolve(Expr expr, int depth) {
-	locals.put(expr, depth);
-    }
-
     @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
+    public Completion visitWhileStmt(Stmt.While stmt) {
 	while (isTruthy(evaluate(stmt.condition))) {
-	    execute(stmt.body);
+	    Completion completion = execute(stmt.body);
+	    if (completion != Completion.NORMAL) { return completion; }
+	    if (function != null && ++function.hotness >= Jit.THRESHOLD) { jit.hot(function); } // a back-edge
 	}
 
-	return null;
+	return Completion.NORMAL;
     }
     
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
-	executeBlock(stmt.statements, new Environment(environment));
-	return null;
+    public Completion visitBlockStmt(Stmt.Block stmt) {
+	if (stmt.frameSize == 0) {
+	    // declares nothing, so the Resolver didn't count it as a scope
+	    return executeStatements(stmt.statements);
+	}
+
+	counters.frame();
+	return executeBlock(stmt.statements, new Environment(environment, stmt.frameSize));
     }
 
     @Override
-    public Void visitClassStmt(Stmt.Class stmt) {
-	environment.define(stmt.name.lexeme, null);
+    public Completion visitClassStmt(Stmt.Class stmt) {
 	LucaClass _class = new LucaClass(stmt.name.lexeme);
-	environment.assign(stmt.name, _class);
+	define(stmt.name, stmt.slot, stmt.captured, _class);
+	return Completion.NORMAL;
+    }
+
+    /** Indexed rather than for-each, so that loop bodies don't allocate an Iterator. */
+    private Completion executeStatements(List<Stmt> statements) {
+	for (int i = 0, n = statements.size(); i < n; ++i) {
+	    Completion completion = execute(statements.get(i));
+	    if (completion != Completion.NORMAL) { return completion; }
+	}
+
+	return Completion.NORMAL;
     }
 
-    void executeBlock(List<Stmt> statements, Environment environment) {
+    Completion executeBlock(List<Stmt> statements, Environment environment) {
 	Environment previous = this.environment;
 	try {
 	    this.environment = environment;
-	    for (Stmt statement : statements) {
-		execute(statement);
-	    }
+	    return executeStatements(statements);
 	}
 	finally {
 	    this.environment = previous; // restore previous environment
 	}
     }
 
+    Completion executeFunction(Stmt.Function declaration, Environment environment, Cell[] upvalues) {
+	Cell[] previous = this.upvalues;
+	Stmt.Function previousFunction = function;
+	try {
+	    this.upvalues = upvalues;
+	    function = declaration;
+	    return executeBlock(declaration.body, environment);
+	}
+	finally {
+	    this.upvalues = previous;
+	    function = previousFunction;
+	}
+    }
+
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
+    public Completion visitVarStmt(Stmt.Var stmt) {
 	Object value = null;
 	if (stmt.initializer != null) {
 	    value = evaluate(stmt.initializer);
 	}
 
-	environment.define(stmt.name.lexeme, value);
-	return null;
+	define(stmt.name, stmt.slot, stmt.captured, value);
+	return Completion.NORMAL;
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
-	LucaFunction function = new LucaFunction(stmt, environment);
-	environment.define(stmt.name.lexeme, function);
-	return null;
+    public Completion visitFunctionStmt(Stmt.Function stmt) {
+	if (stmt.captured) {
+	    // the function can see itself, so its Cell must exist before capture
+	    Cell cell = new Cell(null);
+	    environment.values[stmt.slot] = cell;
+	    cell.value = new LucaFunction(stmt, capture(stmt));
+	}
+	else {
+	    define(stmt.name, stmt.slot, false, new LucaFunction(stmt, capture(stmt)));
+	}
+	return Completion.NORMAL;
+    }
+
+    private Cell[] capture(Stmt.Function stmt) {
+	Cell[] cells = new Cell[stmt.upvalueSlots.length];
+	for (int i = 0; i < cells.length; ++i) {
+	    int depth = stmt.upvalueDepths[i];
+	    int slot = stmt.upvalueSlots[i];
+	    cells[i] = depth == -1 ? upvalues[slot] : (Cell) environment.getAt(depth, slot);
+	}
+
+	return cells;
+    }
+
+    private void define(Token name, int slot, boolean captured, Object value) {
+	if (slot == -1) {
+	    globals.define(name.symbol, value);
+	}
+	else {
+	    environment.values[slot] = captured ? new Cell(value) : value;
+	}
     }
     
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
 	Object value = evaluate(expr.value);
 
-	if (locals.containsKey(expr)) {
-	    environment.assignAt(locals.get(expr), expr.name, value);
+	if (expr.depth != -1) {
+	    if (expr.cell) {
+		((Cell) environment.getAt(expr.depth, expr.slot)).value = value;
+	    }
+	    else {
+		environment.assignAt(expr.depth, expr.slot, value);
+	    }
+	}
+	else if (expr.upvalue) {
+	    upvalues[expr.slot].value = value;
 	}
 	else {
-	    globals.assign(expr.name, value);
+	    Globals.Global global = expr.global;
+	    if (global == null || global.owner != globals) {
+		global = globals.cell(expr.name.symbol); // bound on first use, and by each Interpreter that runs the tree
+		expr.global = global;
+	    }
+	    globals.assign(global, expr.name, value);
 	}
 
 	return value;
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
+    public Completion visitExpressionStmt(Stmt.Expression stmt) {
 	evaluate(stmt.expression);
-	return null;
+	return Completion.NORMAL;
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
+    public Completion visitIfStmt(Stmt.If stmt) {
 	if (isTruthy(evaluate(stmt.condition))) {
-	    execute(stmt.thenBranch);
+	    return execute(stmt.thenBranch);
 	}
 	else if (stmt.elseBranch != null) {
-	    execute(stmt.elseBranch);
+	    return execute(stmt.elseBranch);
 	}
 
-	return null;
+	return Completion.NORMAL;
     }
 
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
+    public Completion visitPrintStmt(Stmt.Print stmt) {
 	Object value = evaluate(stmt.expression);
 	System.out.println(stringify(value));
-	return null;
+	return Completion.NORMAL;
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
-	Object value = null;
-	if (stmt.value != null) { value = evaluate(stmt.value); }
+    public Completion visitReturnStmt(Stmt.Return stmt) {
+	if (stmt.tailCall) {
+	    Expr.Call call = (Expr.Call) stmt.value;
+	    Object callee = evaluate(call.callee);
+	    List<Object> arguments = evaluateArguments(call);
+	    LucaCallable function = checkCall(call, callee, arguments);
+	    if (function instanceof LucaFunction) {
+		// unwind this call first, LucaFunction.call then runs the callee
+		tailCallee = (LucaFunction) function;
+		tailArguments = arguments;
+		return Completion.TAIL_CALL;
+	    }
+
+	    returnValue = profiler == null ? function.call(this, arguments) : profiled(function, arguments);
+	    return Completion.RETURN;
+	}
+
+	returnValue = null;
+	if (stmt.value != null) { returnValue = evaluate(stmt.value); }
 
-	throw new Return(value);
+	return Completion.RETURN;
     }
 
     @Override
@@ -188,15 +293,20 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-	return lookUpVariable(expr.name, expr);
-    }
-
-    private Object lookUpVariable(Token name, Expr expr) {
-	if (locals.containsKey(expr)) {
-	    return environment.getAt(locals.get(expr), name.lexeme);
+	if (expr.depth != -1) {
+	    Object value = environment.getAt(expr.depth, expr.slot);
+	    return expr.cell ? ((Cell) value).value : value;
+	}
+	else if (expr.upvalue) {
+	    return upvalues[expr.slot].value;
 	}
 	else {
-	    return globals.get(name);
+	    Globals.Global global = expr.global;
+	    if (global == null || global.owner != globals) {
+		global = globals.cell(expr.name.symbol); // bound on first use, and by each Interpreter that runs the tree
+		expr.global = global;
+	    }
+	    return globals.get(global, expr.name);
 	}
     }
 
@@ -205,12 +315,12 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 	throw new RuntimeError(operator, "Operand must be a number.");
     }
 
-    private void checkNumberOperands(Token operator, Object left, Object right) {
+    private static void checkNumberOperands(Token operator, Object left, Object right) {
 	if (left instanceof Double && right instanceof Double) { return; }
 	throw new RuntimeError(operator, "Operands must be numbers."); 
     }
 
-    private boolean isTruthy(Object obj) {
+    static boolean isTruthy(Object obj) {
 	// false and null are false, all else is true
 	if (obj == null) { return false; }
 	else if (obj instanceof Boolean) { return (boolean) obj; }
@@ -224,9 +334,122 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
+	if (expr.numericOperands) {
+	    return binaryNumeric(expr);
+	}
+
 	Object left = evaluate(expr.left);
 	Object right = evaluate(expr.right);
 
+	switch (expr.specialization) {
+	    case Specialization.ADD_NUMBERS:
+		if (left instanceof Double && right instanceof Double) {
+		    return (double) left + (double) right;
+		}
+		break;
+	    case Specialization.ADD_STRINGS:
+		if (ConcatString.isString(left) && ConcatString.isString(right)) {
+		    return ConcatString.concat(left, right);
+		}
+		break;
+	    case Specialization.SUBTRACT_NUMBERS:
+		if (left instanceof Double && right instanceof Double) {
+		    return (double) left - (double) right;
+		}
+		break;
+	    case Specialization.MULTIPLY_NUMBERS:
+		if (left instanceof Double && right instanceof Double) {
+		    return (double) left * (double) right;
+		}
+		break;
+	    case Specialization.DIVIDE_NUMBERS:
+		if (left instanceof Double && right instanceof Double) {
+		    return (double) left / (double) right;
+		}
+		break;
+	    case Specialization.GREATER_NUMBERS:
+		if (left instanceof Double && right instanceof Double) {
+		    return (double) left > (double) right;
+		}
+		break;
+	    case Specialization.GREATER_EQUAL_NUMBERS:
+		if (left instanceof Double && right instanceof Double) {
+		    return (double) left >= (double) right;
+		}
+		break;
+	    case Specialization.LESS_NUMBERS:
+		if (left instanceof Double && right instanceof Double) {
+		    return (double) left < (double) right;
+		}
+		break;
+	    case Specialization.LESS_EQUAL_NUMBERS:
+		if (left instanceof Double && right instanceof Double) {
+		    return (double) left <= (double) right;
+		}
+		break;
+	    case Specialization.GENERIC:
+		return binaryGeneric(expr, left, right);
+	    case Specialization.UNINITIALIZED:
+		expr.specialization = Specialization.forOperands(expr.operator.type, left, right);
+		return binaryGeneric(expr, left, right);
+	}
+
+	// a guard failed, so the site is polymorphic
+	expr.specialization = Specialization.GENERIC;
+	return binaryGeneric(expr, left, right);
+    }
+
+    /** Operands proven numeric by NumericInference: only the result is boxed. */
+    private Object binaryNumeric(Expr.Binary expr) {
+	double left = evaluateDouble(expr.left);
+	double right = evaluateDouble(expr.right);
+
+	switch (expr.operator.type) {
+	    case GREATER:       return left > right;
+	    case GREATER_EQUAL: return left >= right;
+	    case LESS:          return left < right;
+	    case LESS_EQUAL:    return left <= right;
+	    case PLUS:          return left + right;
+	    case MINUS:         return left - right;
+	    case STAR:          return left * right;
+	    case SLASH:         return left / right;
+	    // same as Double.equals(), which isEqual() relies on
+	    case BANG_EQUAL:    return Double.doubleToLongBits(left) != Double.doubleToLongBits(right);
+	    case EQUAL_EQUAL:   return Double.doubleToLongBits(left) == Double.doubleToLongBits(right);
+	}
+
+	// unreachable
+	return null;
+    }
+
+    /** Evaluates an expression NumericInference has proven numeric, without boxing. */
+    private double evaluateDouble(Expr expr) {
+	if (expr instanceof Expr.Binary) {
+	    Expr.Binary binary = (Expr.Binary) expr;
+	    double left = evaluateDouble(binary.left);
+	    double right = evaluateDouble(binary.right);
+	    switch (binary.operator.type) {
+		case PLUS:  return left + right;
+		case MINUS: return left - right;
+		case STAR:  return left * right;
+		case SLASH: return left / right;
+	    }
+	}
+	else if (expr instanceof Expr.Literal) {
+	    return (double) ((Expr.Literal) expr).value;
+	}
+	else if (expr instanceof Expr.Grouping) {
+	    return evaluateDouble(((Expr.Grouping) expr).expression);
+	}
+	else if (expr instanceof Expr.Unary) {
+	    return -evaluateDouble(((Expr.Unary) expr).right);
+	}
+
+	// variables and assignments, whose values are stored boxed
+	return (double) evaluate(expr);
+    }
+
+    static Object binaryGeneric(Expr.Binary expr, Object left, Object right) {
 	switch (expr.operator.type) {
 	    case GREATER:
 		checkNumberOperands(expr.operator, left, right);
@@ -251,8 +474,8 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 		    return (double) left + (double) right;
 		}
 
-		if (left instanceof String && right instanceof String) {
-		    return (String) left + (String) right;
+		if (ConcatString.isString(left) && ConcatString.isString(right)) {
+		    return ConcatString.concat(left, right);
 		}
 
 		throw new RuntimeError(expr.operator,
@@ -273,12 +496,51 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @Override
     public Object visitCallExpr(Expr.Call expr) {
 	Object callee = evaluate(expr.callee);
+	return call(expr, callee, evaluateArguments(expr));
+    }
+
+    /** Calls callee as the call expression does, once its callee and arguments are evaluated. */
+    Object call(Expr.Call expr, Object callee, List<Object> arguments) {
+	LucaCallable function = checkCall(expr, callee, arguments);
+	if (profiler != null) {
+	    return profiled(function, arguments);
+	}
+	if (function instanceof LucaFunction) {
+	    return ((LucaFunction) function).call(this, arguments);
+	}
+	return function.call(this, arguments);
+    }
 
+    /** Calls the function with the profiler following it. */
+    Object profiled(LucaCallable function, List<Object> arguments) {
+	profiler.enter(function);
+	try {
+	    return function.call(this, arguments);
+	}
+	finally {
+	    profiler.exit();
+	}
+    }
+
+    private List<Object> evaluateArguments(Expr.Call expr) {
 	List<Object> arguments = new ArrayList<>();
 	for (Expr argument : expr.arguments) {
 	    arguments.add(evaluate(argument));
 	}
 
+	return arguments;
+    }
+
+    /** Checks that callee can take the arguments, unless the site's cache already knows it can. */
+    LucaCallable checkCall(Expr.Call expr, Object callee, List<Object> arguments) {
+	counters.call();
+	Object key = CallCache.keyOf(callee);
+	if (expr.cache.contains(key)) {
+	    ++callCacheHits;
+	    return (LucaCallable) callee;
+	}
+
+	++callCacheMisses;
 	if (!(callee instanceof LucaCallable)) {
 	    throw new RuntimeError(expr.paren, "Can only call functions and classes.");
 	}
@@ -290,20 +552,37 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 				   arguments.size() + ".");
 	}
 
-	return function.call(this, arguments);
+	expr.cache.add(key);
+	return function;
     }
 
     @Override
     public Object visitGetExpr(Expr.Get expr) {
 	Object object = evaluate(expr.object);
 	if (object instanceof LucaInstance) {
-	    return ((LucaInstance) object).get(expr.name);
+	    return ((LucaInstance) object).get(expr);
 	}
 
 	throw new RuntimeError(expr.name, "Only instances have properties.");
     }
 
-    private boolean isEqual(Object a, Object b) {
+    @Override
+    public Object visitSetExpr(Expr.Set expr) {
+	Object object = evaluate(expr.object);
+	Object value = evaluate(expr.value);
+	if (!(object instanceof LucaInstance)) {
+	    throw new RuntimeError(expr.name, "Only instances have fields.");
+	}
+
+	((LucaInstance) object).set(expr, value);
+	return value;
+    }
+
+    static boolean isEqual(Object a, Object b) {
+	// strings compare by content however they were built
+	if (a instanceof ConcatString) { a = a.toString(); }
+	if (b instanceof ConcatString) { b = b.toString(); }
+
 	if (a == null && b == null) {
 	    return true;
 	}
@@ -315,7 +594,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 	}
     }
 
-    private String stringify(Object object) {
+    static String stringify(Object object) {
 	if (object == null) { return "nil"; }
 
 	if (object instanceof Double) {
@@ -0,0 +1,158 @@
+package luca;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * The Interpreter's counters, and the MBean that reads them. Only the
+ * Interpreter's thread writes them, as plain fields, and it publishes
+ * them to volatile copies the MBean reads every PUBLISH_EVERY statements
+ * or calls, and when a script ends or fails, so a JMX client sees them a
+ * little behind. Code the Jit compiled counts its calls and frames but
+ * not its statements.
+ *
+ * The MBean is registered only when asked, with --jmx or the luca.jmx
+ * system property, and close() unregisters it, as the MBean server would
+ * otherwise keep the Interpreter's globals reachable.
+ */
+final class InterpreterCounters implements InterpreterMXBean {
+
+    static final boolean REGISTER = Boolean.getBoolean("luca.jmx");
+
+    private static final int PUBLISH_EVERY = 4096; // a power of two
+
+    private static final AtomicInteger IDS = new AtomicInteger();
+
+    private final Globals globals;
+    private ObjectName name = null; // while registered
+    private long statements = 0;
+    private long calls = 0;
+    private long frames = 0;
+    private long instances = 0;
+    private long errors = 0;
+    private int depth = 0;
+
+    // what the MBean reads
+    private volatile long publishedStatements = 0;
+    private volatile long publishedCalls = 0;
+    private volatile long publishedFrames = 0;
+    private volatile long publishedInstances = 0;
+    private volatile long publishedErrors = 0;
+    private volatile int publishedDepth = 0;
+
+    InterpreterCounters(Globals globals) {
+	this.globals = globals;
+    }
+
+    /** Registers the MBean as luca:type=Interpreter,id=n, unless it already is. */
+    void register() {
+	if (name != null) { return; }
+
+	try {
+	    ObjectName name = new ObjectName("luca:type=Interpreter,id=" + IDS.incrementAndGet());
+	    ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+	    this.name = name;
+	}
+	catch (JMException | SecurityException e) {
+	    System.err.println("Can't register the interpreter over JMX: " + e.getMessage());
+	}
+    }
+
+    void unregister() {
+	if (name == null) { return; }
+
+	try {
+	    ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+	}
+	catch (JMException | SecurityException e) {
+	    // already gone
+	}
+	name = null;
+    }
+
+    void statement() {
+	if ((++statements & (PUBLISH_EVERY - 1)) == 0) { publish(); }
+    }
+
+    void call() {
+	if ((++calls & (PUBLISH_EVERY - 1)) == 0) { publish(); }
+    }
+
+    void frame() {
+	++frames;
+    }
+
+    void instance() {
+	++instances;
+    }
+
+    void error() {
+	++errors;
+    }
+
+    void enter() {
+	++depth;
+    }
+
+    void exit() {
+	--depth;
+    }
+
+    /** A runtime error unwound every call. */
+    void unwind() {
+	depth = 0;
+    }
+
+    /** Makes the counts so far what the MBean reads. */
+    void publish() {
+	publishedStatements = statements;
+	publishedCalls = calls;
+	publishedFrames = frames;
+	publishedInstances = instances;
+	publishedErrors = errors;
+	publishedDepth = depth;
+    }
+
+    @Override
+    public long getStatementsExecuted() {
+	return publishedStatements;
+    }
+
+    @Override
+    public long getFunctionCalls() {
+	return publishedCalls;
+    }
+
+    @Override
+    public long getFramesAllocated() {
+	return publishedFrames;
+    }
+
+    @Override
+    public long getInstancesCreated() {
+	return publishedInstances;
+    }
+
+    @Override
+    public long getRuntimeErrors() {
+	return publishedErrors;
+    }
+
+    @Override
+    public int getCallDepth() {
+	return publishedDepth;
+    }
+
+    @Override
+    public int getSymbolCount() {
+	return Symbols.count();
+    }
+
+    @Override
+    public int getGlobalCount() {
+	return globals.size();
+    }
+
+}
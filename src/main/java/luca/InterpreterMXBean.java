@@ -0,0 +1,27 @@
+package luca;
+
+/**
+ * What an Interpreter exposes over JMX, under luca:type=Interpreter.
+ * Counts start at the Interpreter's creation and only go up, except
+ * CallDepth, the number of Luca calls running right now.
+ */
+public interface InterpreterMXBean {
+
+    long getStatementsExecuted();
+
+    long getFunctionCalls();
+
+    long getFramesAllocated();
+
+    long getInstancesCreated();
+
+    long getRuntimeErrors();
+
+    int getCallDepth();
+
+    /** Names interned so far. Locals are resolved into slots in the tree, so this is the only table that grows. */
+    int getSymbolCount();
+
+    int getGlobalCount();
+
+}
@@ -0,0 +1,127 @@
+package luca;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The Java Flight Recorder events Luca emits, under the Luca category,
+ * which Events loads where there is a Flight Recorder. Loading an event
+ * class, or asking about its type, starts the Flight Recorder up, which
+ * takes a few hundred ms, so none is touched until something else has
+ * started it. After that each event is made and then checked with
+ * isEnabled(). Calls and instances come by the million, so a recording
+ * only gets them when its settings turn them on, e.g. with
+ * luca.Call#enabled=true.
+ */
+final class JfrEvents implements Events.Recorder {
+
+    @Name("luca.Phase")
+    @Label("Phase")
+    @Category("Luca")
+    @Description("A stage of running a script: parse (scanning included), resolve, optimize or execute")
+    @StackTrace(false)
+    static final class Phase extends Event implements Events.Span {
+	@Label("Phase")
+	String phase;
+
+	@Override
+	public void finish() {
+	    commit();
+	}
+    }
+
+    @Name("luca.Call")
+    @Label("Function Call")
+    @Category("Luca")
+    @Description("A Luca function, from entry to exit. A tail call ends its caller's event and starts its own")
+    @Enabled(false)
+    @StackTrace(false)
+    static final class Call extends Event implements Events.Span {
+	@Label("Function")
+	String function;
+
+	@Label("Line")
+	int line;
+
+	@Override
+	public void finish() {
+	    commit();
+	}
+    }
+
+    @Name("luca.InstanceAllocation")
+    @Label("Instance Allocation")
+    @Category("Luca")
+    @Enabled(false)
+    @StackTrace(false)
+    static final class InstanceAllocation extends Event {
+	@Label("Class")
+	String className;
+    }
+
+    @Name("luca.RuntimeError")
+    @Label("Runtime Error")
+    @Category("Luca")
+    static final class Failure extends Event {
+	@Label("Message")
+	String message;
+
+	@Label("Line")
+	int line;
+    }
+
+    @Override
+    public Events.Span phase(String phase) {
+	if (!FlightRecorder.isInitialized()) { return null; }
+
+	Phase event = new Phase();
+	if (!event.isEnabled()) { return null; }
+
+	event.phase = phase;
+	event.begin();
+	return event;
+    }
+
+    @Override
+    public Events.Span call(Stmt.Function declaration) {
+	if (!FlightRecorder.isInitialized()) { return null; }
+
+	Call event = new Call();
+	if (!event.isEnabled()) { return null; }
+
+	event.function = declaration.name.lexeme;
+	event.line = declaration.name.line;
+	event.begin();
+	return event;
+    }
+
+    @Override
+    public void instance(LucaClass klass) {
+	if (!FlightRecorder.isInitialized()) { return; }
+
+	InstanceAllocation event = new InstanceAllocation();
+	if (!event.isEnabled()) { return; }
+
+	event.className = klass.name;
+	event.commit();
+    }
+
+    @Override
+    public void runtimeError(RuntimeError error) {
+	if (!FlightRecorder.isInitialized()) { return; }
+
+	Failure event = new Failure();
+	if (!event.isEnabled()) { return; }
+
+	event.message = error.getMessage();
+	event.line = error.line;
+	event.commit();
+    }
+
+}
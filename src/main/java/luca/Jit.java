@@ -0,0 +1,286 @@
+package luca;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.tools.ToolProvider;
+
+/**
+ * Compiles the functions the Interpreter spends its time in to JVM
+ * bytecode while it runs. A function is hot once its calls and loop
+ * back-edges add up to THRESHOLD. JitCompiler then turns its body into a
+ * class on a background thread, and the next call after that finds it
+ * finished and runs it from then on. Everything else stays interpreted.
+ *
+ * The class is defined as a hidden class in this package. A binary
+ * operator the Interpreter has specialized becomes a MutableCallSite
+ * whose target tests the operand types before taking the fast path. If
+ * the test ever fails, the site is relinked to the generic operation
+ * and the function goes back to the Interpreter for good.
+ *
+ * Needs a JDK, for javac, running on Java 15 or later, for hidden
+ * classes. Without them, every function stays interpreted. A call
+ * already running when its function is compiled finishes interpreted,
+ * so a function that is only ever called once never benefits.
+ */
+final class Jit {
+
+    /** A compiled function body. Returns TAIL_CALL when it leaves a tail call to LucaFunction.call. */
+    interface Code {
+	Object run(Interpreter interpreter, Cell[] upvalues, List<Object> arguments);
+
+	/** The Jit it was compiled by. Its constants hold that Interpreter's globals, so no other may run it. */
+	Jit owner();
+    }
+
+    // calls and back-edges, at least a few tens of ms interpreted; the tests set it lower
+    static final int THRESHOLD = Integer.getInteger("luca.jit.threshold", 100_000);
+    static final Object TAIL_CALL = new Object();
+
+    private static final Method DEFINE_HIDDEN_CLASS = defineHiddenClass();
+    private static final MethodType BINARY = MethodType.methodType(Object.class, Object.class, Object.class);
+    private static final MethodHandle NUMBERS, STRINGS, GENERIC, MISS;
+    private static final MethodHandle[] FAST = new MethodHandle[Specialization.LESS_EQUAL_NUMBERS + 1];
+
+    static {
+	MethodHandles.Lookup lookup = MethodHandles.lookup();
+	try {
+	    MethodType test = MethodType.methodType(boolean.class, Object.class, Object.class);
+	    NUMBERS = lookup.findStatic(Jit.class, "numbers", test);
+	    STRINGS = lookup.findStatic(Jit.class, "strings", test);
+	    GENERIC = lookup.findStatic(Interpreter.class, "binaryGeneric",
+					BINARY.insertParameterTypes(0, Expr.Binary.class));
+	    MISS = lookup.findStatic(Jit.class, "miss",
+				     BINARY.insertParameterTypes(0, Expr.Binary.class, Stmt.Function.class,
+								 MutableCallSite.class));
+	    FAST[Specialization.ADD_NUMBERS] = lookup.findStatic(Jit.class, "addNumbers", BINARY);
+	    FAST[Specialization.ADD_STRINGS] = lookup.findStatic(ConcatString.class, "concat", BINARY);
+	    FAST[Specialization.SUBTRACT_NUMBERS] = lookup.findStatic(Jit.class, "subtractNumbers", BINARY);
+	    FAST[Specialization.MULTIPLY_NUMBERS] = lookup.findStatic(Jit.class, "multiplyNumbers", BINARY);
+	    FAST[Specialization.DIVIDE_NUMBERS] = lookup.findStatic(Jit.class, "divideNumbers", BINARY);
+	    FAST[Specialization.GREATER_NUMBERS] = lookup.findStatic(Jit.class, "greaterNumbers", BINARY);
+	    FAST[Specialization.GREATER_EQUAL_NUMBERS] = lookup.findStatic(Jit.class, "greaterEqualNumbers", BINARY);
+	    FAST[Specialization.LESS_NUMBERS] = lookup.findStatic(Jit.class, "lessNumbers", BINARY);
+	    FAST[Specialization.LESS_EQUAL_NUMBERS] = lookup.findStatic(Jit.class, "lessEqualNumbers", BINARY);
+	}
+	catch (ReflectiveOperationException e) {
+	    throw new AssertionError(e);
+	}
+    }
+
+    static boolean enabled = false; // set by --jit, as javac's own warm-up takes a second of CPU
+
+    private static final ThreadLocal<Jit> INSTALLING = new ThreadLocal<>(); // the Jit defining a class on this thread
+
+    private final Interpreter interpreter;
+    private Object[] constants = null; // for the class it is defining, see constants()
+    private ExecutorService compiler = null; // started by the first hot function
+    private final Map<Stmt.Function,Future<JitCompiler.Result>> compiling = new HashMap<>();
+
+    Jit(Interpreter interpreter) {
+	this.interpreter = interpreter;
+    }
+
+    /** Returns the Lookup method that defines hidden classes, or null before Java 15. */
+    private static Method defineHiddenClass() {
+	try {
+	    Class<?> option = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+	    return MethodHandles.Lookup.class.getMethod("defineHiddenClass", byte[].class, boolean.class,
+							Array.newInstance(option, 0).getClass());
+	}
+	catch (ReflectiveOperationException e) {
+	    return null;
+	}
+    }
+
+    /**
+     * Called each time a function's hotness reaches THRESHOLD: starts
+     * compiling it the first time, and installs the result once it is
+     * done. The hotness is reset either way, so a function still being
+     * compiled checks back after another THRESHOLD.
+     */
+    void hot(Stmt.Function declaration) {
+	declaration.hotness = 0;
+	if (!enabled || DEFINE_HIDDEN_CLASS == null) {
+	    declaration.hotness = Integer.MIN_VALUE; // never hot again
+	    return;
+	}
+
+	Future<JitCompiler.Result> result = compiling.get(declaration);
+	if (result == null) {
+	    if (compiler == null) {
+		if (ToolProvider.getSystemJavaCompiler() == null) {
+		    enabled = false;
+		    declaration.hotness = Integer.MIN_VALUE;
+		    return;
+		}
+		compiler = Executors.newSingleThreadExecutor(task -> {
+			Thread thread = new Thread(task, "luca-jit");
+			thread.setDaemon(true); // don't keep a finished script waiting
+			return thread;
+		    });
+	    }
+	    // generated here, as the tree's caches change under a background thread
+	    JitCompiler generator = new JitCompiler(declaration);
+	    String source = generator.generate();
+	    compiling.put(declaration, compiler.submit(() -> generator.compile(source)));
+	    return;
+	}
+	if (!result.isDone()) { return; }
+
+	compiling.remove(declaration);
+	declaration.hotness = Integer.MIN_VALUE; // compiled, or not compilable
+	try {
+	    JitCompiler.Result compiled = result.get();
+	    if (compiled != null) { declaration.compiled = install(compiled); }
+	}
+	catch (InterruptedException | ExecutionException e) {
+	    // stays interpreted
+	}
+    }
+
+    /** Defines the compiled class, on the Interpreter's thread as its static initializer binds globals. */
+    private Code install(JitCompiler.Result compiled) {
+	Object[] values = compiled.constants.clone();
+	for (int i = 0; i < values.length; ++i) {
+	    if (values[i] instanceof Token) {
+		values[i] = interpreter.globals.cell(((Token) values[i]).symbol); // a global's name
+	    }
+	}
+
+	constants = values;
+	INSTALLING.set(this);
+	try {
+	    Object options = Array.newInstance(DEFINE_HIDDEN_CLASS.getParameterTypes()[2].getComponentType(), 0);
+	    MethodHandles.Lookup lookup =
+		(MethodHandles.Lookup) DEFINE_HIDDEN_CLASS.invoke(MethodHandles.lookup(), compiled.bytes, true, options);
+	    return (Code) lookup.lookupClass().getDeclaredConstructor().newInstance();
+	}
+	catch (ReflectiveOperationException | LinkageError e) {
+	    return null;
+	}
+	finally {
+	    constants = null;
+	    INSTALLING.remove();
+	}
+    }
+
+    /** Hands the class being defined the values its constants stand for. */
+    static Object[] constants() {
+	return INSTALLING.get().constants;
+    }
+
+    /** Hands the class being defined the Jit defining it. */
+    static Jit owner() {
+	return INSTALLING.get();
+    }
+
+    /** Stops the compiler thread, abandoning whatever it is compiling. */
+    void close() {
+	if (compiler != null) { compiler.shutdownNow(); }
+    }
+
+    static List<Object> arguments(Object[] values) {
+	return Arrays.asList(values);
+    }
+
+    static Object call(Interpreter interpreter, Expr.Call site, Object callee, List<Object> arguments) {
+	return interpreter.call(site, callee, arguments);
+    }
+
+    /** Same as call, but leaves a Luca function to the caller's LucaFunction.call. */
+    static Object tailCall(Interpreter interpreter, Expr.Call site, Object callee, List<Object> arguments) {
+	LucaCallable function = interpreter.checkCall(site, callee, arguments);
+	if (function instanceof LucaFunction) {
+	    interpreter.tailCallee = (LucaFunction) function;
+	    interpreter.tailArguments = arguments;
+	    return TAIL_CALL;
+	}
+
+	return interpreter.profiler == null ? function.call(interpreter, arguments)
+	    : interpreter.profiled(function, arguments);
+    }
+
+    /** Returns an invoker for a binary operator site, guarded by the Interpreter's specialization. */
+    static MethodHandle binarySite(Expr.Binary expr, Stmt.Function declaration) {
+	MutableCallSite site = new MutableCallSite(BINARY);
+	MethodHandle test = expr.specialization == Specialization.ADD_STRINGS ? STRINGS : NUMBERS;
+	MethodHandle miss = MethodHandles.insertArguments(MISS, 0, expr, declaration, site);
+	site.setTarget(MethodHandles.guardWithTest(test, FAST[expr.specialization], miss));
+	return site.dynamicInvoker();
+    }
+
+    static Object invoke(MethodHandle site, Object left, Object right) {
+	try {
+	    return (Object) site.invokeExact(left, right);
+	}
+	catch (RuntimeException | Error e) {
+	    throw e;
+	}
+	catch (Throwable e) {
+	    throw new AssertionError(e); // the targets throw nothing checked
+	}
+    }
+
+    /** A guard failed: the site goes generic, as it would in the Interpreter, and so does the function. */
+    private static Object miss(Expr.Binary expr, Stmt.Function declaration, MutableCallSite site,
+			       Object left, Object right) {
+	site.setTarget(MethodHandles.insertArguments(GENERIC, 0, expr));
+	expr.specialization = Specialization.GENERIC;
+	declaration.compiled = null; // the running call finishes compiled
+	declaration.hotness = Integer.MIN_VALUE;
+	return Interpreter.binaryGeneric(expr, left, right);
+    }
+
+    private static boolean numbers(Object left, Object right) {
+	return left instanceof Double && right instanceof Double;
+    }
+
+    private static boolean strings(Object left, Object right) {
+	return ConcatString.isString(left) && ConcatString.isString(right);
+    }
+
+    private static Object addNumbers(Object left, Object right) {
+	return (double) left + (double) right;
+    }
+
+    private static Object subtractNumbers(Object left, Object right) {
+	return (double) left - (double) right;
+    }
+
+    private static Object multiplyNumbers(Object left, Object right) {
+	return (double) left * (double) right;
+    }
+
+    private static Object divideNumbers(Object left, Object right) {
+	return (double) left / (double) right;
+    }
+
+    private static Object greaterNumbers(Object left, Object right) {
+	return (double) left > (double) right;
+    }
+
+    private static Object greaterEqualNumbers(Object left, Object right) {
+	return (double) left >= (double) right;
+    }
+
+    private static Object lessNumbers(Object left, Object right) {
+	return (double) left < (double) right;
+    }
+
+    private static Object lessEqualNumbers(Object left, Object right) {
+	return (double) left <= (double) right;
+    }
+
+}
@@ -0,0 +1,168 @@
+package luca;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/**
+ * Compiles one function for the Jit, the way JvmCompiler compiles a
+ * whole program, except that the result runs alongside the Interpreter:
+ * globals are the Interpreter's, calls go through its call caches, and
+ * functions declared in the body are made as LucaFunctions that are
+ * interpreted until they get hot themselves. Tree nodes and globals
+ * reach the class through Jit.constants(), as its source can't name them.
+ */
+class JitCompiler extends JvmCompiler {
+
+    static final String CLASS_NAME = "JitCode";
+
+    /** The class file and the values of its constants, a Token standing for the global it names. */
+    static final class Result {
+	final byte[] bytes;
+	final Object[] constants;
+
+	Result(byte[] bytes, Object[] constants) {
+	    this.bytes = bytes;
+	    this.constants = constants;
+	}
+    }
+
+    private final Stmt.Function declaration;
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<String,String> globals = new HashMap<>();
+    private final String function; // the field holding declaration
+
+    JitCompiler(Stmt.Function declaration) {
+	this.declaration = declaration;
+	this.function = handOff("Stmt.Function", declaration);
+    }
+
+    /** Returns the source of the class. It reads the tree, so it runs on the Interpreter's thread. */
+    String generate() {
+	compileFunction(declaration, "public Object run(Interpreter interpreter, Cell[] up, List<Object> a)");
+
+	return "package luca;\n\n"
+	    + "import java.util.List;\n\n"
+	    + "public final class " + CLASS_NAME + " implements Jit.Code {\n\n"
+	    + "    private static final Object[] K = Jit.constants();\n"
+	    + "    private static final Jit OWNER = Jit.owner();\n\n"
+	    + "    public Jit owner() { return OWNER; }\n"
+	    + fields
+	    + methods
+	    + "\n}\n";
+    }
+
+    /** Compiles the source, or returns null if javac won't. */
+    Result compile(String source) throws IOException {
+	JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+	DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+	StandardJavaFileManager files = javac.getStandardFileManager(diagnostics, null, null);
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	JavaFileManager output = new ForwardingJavaFileManager<StandardJavaFileManager>(files) {
+		@Override
+		public JavaFileObject getJavaFileForOutput(Location location, String name,
+							   JavaFileObject.Kind kind, FileObject sibling) {
+		    return new SimpleJavaFileObject(URI.create("mem:///" + name.replace('.', '/') + kind.extension),
+						    kind) {
+			@Override
+			public OutputStream openOutputStream() {
+			    return bytes;
+			}
+		    };
+		}
+	    };
+	JavaFileObject unit = new SimpleJavaFileObject(URI.create("mem:///luca/" + CLASS_NAME + ".java"),
+						       JavaFileObject.Kind.SOURCE) {
+		@Override
+		public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+		    return source;
+		}
+	    };
+
+	List<String> options = Arrays.asList("-source", "1.8", "-target", "1.8", "-Xlint:-options", "-nowarn",
+					     "-g:none", "-classpath", System.getProperty("java.class.path"));
+	try {
+	    boolean compiled = javac.getTask(null, output, diagnostics, options, null, Arrays.asList(unit)).call();
+	    return compiled ? new Result(bytes.toByteArray(), constants.toArray()) : null;
+	}
+	finally {
+	    output.close();
+	}
+    }
+
+    /** Returns a new field holding the value, which the class gets from Jit.constants(). */
+    private String handOff(String type, Object value) {
+	constants.add(value);
+	return constant(type, "(" + type + ") K[" + (constants.size() - 1) + "]");
+    }
+
+    @Override
+    String closure(Stmt.Function stmt) {
+	return "new LucaFunction(" + handOff("Stmt.Function", stmt) + ", " + upvalues(stmt) + ")";
+    }
+
+    @Override
+    String binary(Expr.Binary expr, String left, String right) {
+	switch (expr.specialization) {
+	    case Specialization.UNINITIALIZED:
+	    case Specialization.GENERIC:
+		return "Interpreter.binaryGeneric(" + handOff("Expr.Binary", expr) + ", " + left + ", " + right + ")";
+	}
+
+	String node = handOff("Expr.Binary", expr);
+	String site = constant("java.lang.invoke.MethodHandle", "Jit.binarySite(" + node + ", " + function + ")");
+	return "Jit.invoke(" + site + ", " + left + ", " + right + ")";
+    }
+
+    @Override
+    String call(String callee, String arguments, String site) {
+	return "Jit.call(interpreter, " + site + ", " + callee + ", " + arguments + ")";
+    }
+
+    @Override
+    String tailCall(String callee, String arguments, String site) {
+	return "Jit.tailCall(interpreter, " + site + ", " + callee + ", " + arguments + ")";
+    }
+
+    @Override
+    String argument(int i) {
+	return "a.get(" + i + ")";
+    }
+
+    @Override
+    String arguments(Expr.Call expr) {
+	return "Jit.arguments(" + super.arguments(expr) + ")";
+    }
+
+    @Override
+    String callSite(Expr.Call expr) {
+	return handOff("Expr.Call", expr);
+    }
+
+    @Override
+    String global(Token name) {
+	String field = globals.get(name.lexeme);
+	if (field == null) {
+	    field = handOff("Cell", name);
+	    globals.put(name.lexeme, field);
+	}
+
+	return field;
+    }
+
+}
@@ -0,0 +1,733 @@
+package luca;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+/**
+ * Compiles a resolved program ahead of time into a runnable jar, so that
+ * HotSpot compiles its functions like any other Java code.
+ *
+ * The program becomes the source of one class, luca.Script, which the
+ * JDK's own compiler turns into class files. Each Stmt.Function becomes
+ * a static method, and each top-level statement a line of main(). Locals
+ * become Java locals, Cells if they are captured, and operators that
+ * NumericInference proved numeric work on unboxed doubles. The rest goes
+ * through JvmRuntime. The jar holds the compiled program and the classes
+ * of this package, which JvmRuntime builds on.
+ *
+ * Java's limits on the size of a method or a class also apply, so a
+ * function too big for one method won't compile.
+ */
+class JvmCompiler implements Stmt.Visitor<Void>, Expr.Visitor<String> {
+
+    static final String CLASS_NAME = "Script";
+
+    private static final int PART_SIZE = 1 << 14; // chars of top-level code per method of main
+    private static final int STRING_CHUNK = 1 << 13; // chars per constant of a long string
+
+    /** The Java names of one scope's locals, laid out like the Environment it stands for. */
+    private static class Frame {
+	final Frame enclosing;
+	final String[] names;
+	final boolean[] cells;
+
+	Frame(Frame enclosing, int size) {
+	    this.enclosing = enclosing;
+	    this.names = new String[size];
+	    this.cells = new boolean[size];
+	}
+
+	Frame ancestor(int distance) {
+	    Frame frame = this;
+	    for (int i = 0; i < distance; ++i) {
+		frame = frame.enclosing;
+	    }
+
+	    return frame;
+	}
+    }
+
+    final StringBuilder fields = new StringBuilder();
+    final StringBuilder methods = new StringBuilder();
+    private final Map<String,String> globals = new HashMap<>();
+    private final Map<Double,String> numbers = new HashMap<>();
+    private int constants = 0; // fields made so far, of any kind
+    private int functions = 0;
+    private int locals = 0;
+
+    // the method being compiled
+    private StringBuilder out;
+    private int indent;
+    private int temps;
+    private Frame frame = null; // null while at the top level
+
+    /** Returns the source of the class the program compiles to. */
+    String generate(List<Stmt> statements) {
+	List<String> parts = new ArrayList<>();
+	StringBuilder part = null;
+	for (Stmt statement : statements) {
+	    if (part == null || part.length() > PART_SIZE) {
+		if (part != null) { endPart(parts, part); }
+		part = beginMethod();
+	    }
+	    compile(statement);
+	}
+	if (part != null) { endPart(parts, part); }
+
+	StringBuilder source = new StringBuilder();
+	source.append("package luca;\n\n");
+	source.append("public final class ").append(CLASS_NAME).append(" {\n\n");
+	source.append(fields).append('\n');
+	source.append("    public static void main(String[] args) {\n");
+	source.append("\ttry {\n");
+	for (String name : parts) {
+	    source.append("\t    ").append(name).append("();\n");
+	}
+	source.append("\t}\n");
+	source.append("\tcatch (RuntimeError error) {\n");
+	source.append("\t    Luca.runtimeError(error);\n");
+	source.append("\t    System.exit(70);\n");
+	source.append("\t}\n");
+	source.append("    }\n");
+	source.append(methods);
+	source.append("\n}\n");
+	return source.toString();
+    }
+
+    private void endPart(List<String> parts, StringBuilder body) {
+	String name = "part" + parts.size();
+	parts.add(name);
+	endMethod(body, "private static void " + name + "()");
+    }
+
+    /** Compiles the program and writes it to jar along with the runtime. */
+    void compile(List<Stmt> statements, Path jar) throws IOException {
+	JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+	if (javac == null) { throw new IOException("compiling to a jar needs a JDK, not just a JRE"); }
+
+	Path runtime = runtimeLocation();
+	Path work = Files.createTempDirectory("luca");
+	try {
+	    Path source = work.resolve(CLASS_NAME + ".java");
+	    Path classes = Files.createDirectory(work.resolve("classes"));
+	    Files.write(source, generate(statements).getBytes(StandardCharsets.UTF_8));
+	    int status = javac.run(null, null, null,
+				   "-encoding", "UTF-8", "-source", "1.8", "-target", "1.8",
+				   "-Xlint:-options", "-nowarn", "-g:none",
+				   "-classpath", runtime.toString(),
+				   "-d", classes.toString(), source.toString());
+	    if (status != 0) { throw new IOException("javac failed on the generated program"); }
+
+	    writeJar(jar, runtime, classes);
+	}
+	finally {
+	    delete(work);
+	}
+    }
+
+    /** Returns the directory or jar this class was loaded from. */
+    private static Path runtimeLocation() throws IOException {
+	try {
+	    return Paths.get(JvmCompiler.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+	}
+	catch (URISyntaxException | SecurityException | NullPointerException e) {
+	    throw new IOException("can't find the Luca runtime classes", e);
+	}
+    }
+
+    private static void writeJar(Path jar, Path runtime, Path classes) throws IOException {
+	Manifest manifest = new Manifest();
+	manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+	manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, "luca." + CLASS_NAME);
+
+	try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar), manifest)) {
+	    if (Files.isDirectory(runtime)) {
+		copyClasses(runtime, out);
+	    }
+	    else {
+		try (JarFile file = new JarFile(runtime.toFile())) {
+		    Enumeration<JarEntry> entries = file.entries();
+		    while (entries.hasMoreElements()) {
+			JarEntry entry = entries.nextElement();
+			if (entry.isDirectory() || !entry.getName().startsWith("luca/")) { continue; }
+
+			out.putNextEntry(new JarEntry(entry.getName()));
+			try (InputStream in = file.getInputStream(entry)) {
+			    copy(in, out);
+			}
+			out.closeEntry();
+		    }
+		}
+	    }
+	    copyClasses(classes, out);
+	}
+    }
+
+    /** Copies the class files under root/luca into the jar. */
+    private static void copyClasses(Path root, JarOutputStream out) throws IOException {
+	Path directory = root.resolve("luca");
+	if (!Files.isDirectory(directory)) { return; }
+
+	List<Path> files;
+	try (Stream<Path> walk = Files.walk(directory)) {
+	    files = walk.filter(path -> path.toString().endsWith(".class")).sorted().collect(Collectors.toList());
+	}
+	for (Path file : files) {
+	    String name = root.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+	    out.putNextEntry(new JarEntry(name));
+	    Files.copy(file, out);
+	    out.closeEntry();
+	}
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+	byte[] buffer = new byte[1 << 13];
+	for (int read; (read = in.read(buffer)) != -1; ) {
+	    out.write(buffer, 0, read);
+	}
+    }
+
+    private static void delete(Path root) throws IOException {
+	List<Path> paths;
+	try (Stream<Path> walk = Files.walk(root)) {
+	    paths = walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+	}
+	for (Path path : paths) {
+	    Files.deleteIfExists(path);
+	}
+    }
+
+    // methods
+
+    /** Starts a method, whose body is written to the returned builder. */
+    private StringBuilder beginMethod() {
+	out = new StringBuilder();
+	indent = 2;
+	temps = 0;
+	return out;
+    }
+
+    private void endMethod(StringBuilder body, String signature) {
+	methods.append("\n    ").append(signature).append(" {\n");
+	for (int i = 0; i < temps; ++i) {
+	    methods.append("\tObject t").append(i).append(" = null;\n");
+	}
+	methods.append(body);
+	methods.append("    }\n");
+    }
+
+    private void line(String code) {
+	indent(indent);
+	out.append(code).append('\n');
+    }
+
+    /** Indents the way the rest of the tree is: a tab for every eight columns. */
+    private void indent(int level) {
+	int columns = 4 * level;
+	for (; columns >= 8; columns -= 8) {
+	    out.append('\t');
+	}
+	for (; columns > 0; --columns) {
+	    out.append(' ');
+	}
+    }
+
+    private void compile(Stmt stmt) {
+	stmt.accept(this);
+    }
+
+    private String compile(Expr expr) {
+	return expr.accept(this);
+    }
+
+    // statements
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+	line("{");
+	++indent;
+	if (stmt.frameSize != 0) { frame = new Frame(frame, stmt.frameSize); }
+	for (Stmt statement : stmt.statements) {
+	    compile(statement);
+	}
+	if (stmt.frameSize != 0) { frame = frame.enclosing; }
+	--indent;
+	line("}");
+	return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+	define(stmt.name, stmt.slot, stmt.captured, "new LucaClass(" + string(stmt.name.lexeme) + ")");
+	return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+	line("JvmRuntime.discard(" + compile(stmt.expression) + ");");
+	return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+	if (stmt.captured) {
+	    // the function can see itself, so its Cell must exist before capture
+	    String name = declare(stmt.name, stmt.slot, true);
+	    line("final Cell " + name + " = new Cell(null);");
+	    line(name + ".value = " + closure(stmt) + ";");
+	}
+	else {
+	    define(stmt.name, stmt.slot, false, closure(stmt));
+	}
+	return null;
+    }
+
+    /** Compiles the function to a method of its own, and returns the expression that makes a closure of it. */
+    String closure(Stmt.Function stmt) {
+	String method = "f" + functions++ + "_" + stmt.name.lexeme;
+	String upvalues = upvalues(stmt);
+	compileFunction(stmt, "static Object " + method + "(Cell[] up, Object[] a)");
+	return "new CompiledFunction(" + string(stmt.name.lexeme) + ", " + stmt.params.size() + ", "
+	    + upvalues + ") { protected Object invoke(Object[] a) { return "
+	    + CLASS_NAME + "." + method + "(upvalues, a); } }";
+    }
+
+    /** Returns the Cells a closure of the function captures, from where it is declared. */
+    final String upvalues(Stmt.Function stmt) {
+	if (stmt.upvalueSlots.length == 0) { return "JvmRuntime.NO_UPVALUES"; }
+
+	StringBuilder upvalues = new StringBuilder("new Cell[] { ");
+	for (int i = 0; i < stmt.upvalueSlots.length; ++i) {
+	    if (i > 0) { upvalues.append(", "); }
+	    int depth = stmt.upvalueDepths[i];
+	    int slot = stmt.upvalueSlots[i];
+	    upvalues.append(depth == -1 ? "up[" + slot + "]" : frame.ancestor(depth).names[slot]);
+	}
+
+	return upvalues.append(" }").toString();
+    }
+
+    /** Appends a method with the signature, whose parameters are up and a, running the function's body. */
+    final void compileFunction(Stmt.Function stmt, String signature) {
+	StringBuilder outerOut = out;
+	int outerIndent = indent;
+	int outerTemps = temps;
+	Frame outerFrame = frame;
+
+	StringBuilder body = beginMethod();
+	frame = new Frame(null, stmt.frameSize);
+	for (int i = 0; i < stmt.params.size(); ++i) {
+	    String name = declare(stmt.params.get(i), i, stmt.capturedParams[i]);
+	    line(stmt.capturedParams[i] ? "final Cell " + name + " = new Cell(" + argument(i) + ");"
+		 : "Object " + name + " = " + argument(i) + ";");
+	}
+	for (Stmt statement : stmt.body) {
+	    compile(statement);
+	}
+	if (completesNormally(stmt.body)) { line("return null;"); }
+	endMethod(body, signature);
+
+	out = outerOut;
+	indent = outerIndent;
+	temps = outerTemps;
+	frame = outerFrame;
+    }
+
+    /** Whether Java would let control reach the end of the statements, so they need a return after. */
+    private static boolean completesNormally(List<Stmt> statements) {
+	return statements.isEmpty() || completesNormally(statements.get(statements.size() - 1));
+    }
+
+    private static boolean completesNormally(Stmt stmt) {
+	if (stmt instanceof Stmt.Return) {
+	    return false;
+	}
+	else if (stmt instanceof Stmt.Block) {
+	    return completesNormally(((Stmt.Block) stmt).statements);
+	}
+	else if (stmt instanceof Stmt.If) {
+	    Stmt.If _if = (Stmt.If) stmt;
+	    return _if.elseBranch == null || completesNormally(_if.thenBranch) || completesNormally(_if.elseBranch);
+	}
+
+	return true; // a loop's condition is never a constant to Java, see condition()
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+	line("if (" + condition(stmt.condition) + ")");
+	branch(stmt.thenBranch);
+	if (stmt.elseBranch != null) {
+	    line("else");
+	    branch(stmt.elseBranch);
+	}
+	return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+	line("JvmRuntime.print(" + compile(stmt.expression) + ");");
+	return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+	if (stmt.tailCall) {
+	    Expr.Call call = (Expr.Call) stmt.value;
+	    line("return " + tailCall(compile(call.callee), arguments(call), callSite(call)) + ";");
+	}
+	else {
+	    line("return " + (stmt.value != null ? compile(stmt.value) : "null") + ";");
+	}
+	return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+	String value = stmt.initializer != null ? compile(stmt.initializer) : "null";
+	define(stmt.name, stmt.slot, stmt.captured, value);
+	return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+	line("while (" + condition(stmt.condition) + ")");
+	branch(stmt.body);
+	return null;
+    }
+
+    /** Compiles a branch or loop body, always braced, as a Java declaration can't stand alone there. */
+    private void branch(Stmt stmt) {
+	if (stmt instanceof Stmt.Block) {
+	    compile(stmt);
+	    return;
+	}
+
+	line("{");
+	++indent;
+	compile(stmt);
+	--indent;
+	line("}");
+    }
+
+    private void define(Token name, int slot, boolean captured, String value) {
+	if (slot == -1) {
+	    line(global(name) + ".value = " + value + ";");
+	}
+	else if (captured) {
+	    line("final Cell " + declare(name, slot, true) + " = new Cell(" + value + ");");
+	}
+	else {
+	    line("Object " + declare(name, slot, false) + " = " + value + ";");
+	}
+    }
+
+    /** Returns the Java name of a new local, unique in the program so no two ever clash. */
+    private String declare(Token name, int slot, boolean cell) {
+	String local = "l" + locals++ + "_" + name.lexeme;
+	frame.names[slot] = local;
+	frame.cells[slot] = cell;
+	return local;
+    }
+
+    // expressions
+
+    @Override
+    public String visitAssignExpr(Expr.Assign expr) {
+	String value = compile(expr.value);
+	if (expr.depth != -1) {
+	    Frame scope = frame.ancestor(expr.depth);
+	    String name = scope.names[expr.slot];
+	    return "(" + (scope.cells[expr.slot] ? name + ".value" : name) + " = " + value + ")";
+	}
+	else if (expr.upvalue) {
+	    return "(up[" + expr.slot + "].value = " + value + ")";
+	}
+
+	return "JvmRuntime.assignGlobal(" + global(expr.name) + ", " + value + ", "
+	    + string(expr.name.lexeme) + ", " + expr.name.line + ")";
+    }
+
+    @Override
+    public String visitBinaryExpr(Expr.Binary expr) {
+	if (expr.numericOperands) {
+	    String left = number(expr.left);
+	    String right = number(expr.right);
+	    switch (expr.operator.type) {
+		case PLUS: case MINUS: case STAR: case SLASH:
+		    return "Double.valueOf(" + left + " " + expr.operator.lexeme + " " + right + ")";
+		default:
+		    return "Boolean.valueOf(" + compare(expr.operator.type, left, right) + ")";
+	    }
+	}
+
+	return binary(expr, compile(expr.left), compile(expr.right));
+    }
+
+    /** Returns the operation on operands not proven numeric. */
+    String binary(Expr.Binary expr, String left, String right) {
+	String line = String.valueOf(expr.operator.line);
+	switch (expr.operator.type) {
+	    case PLUS:          return "JvmRuntime.add(" + left + ", " + right + ", " + line + ")";
+	    case MINUS:         return "JvmRuntime.subtract(" + left + ", " + right + ", " + line + ")";
+	    case STAR:          return "JvmRuntime.multiply(" + left + ", " + right + ", " + line + ")";
+	    case SLASH:         return "JvmRuntime.divide(" + left + ", " + right + ", " + line + ")";
+	    case GREATER:       return "JvmRuntime.greater(" + left + ", " + right + ", " + line + ")";
+	    case GREATER_EQUAL: return "JvmRuntime.greaterEqual(" + left + ", " + right + ", " + line + ")";
+	    case LESS:          return "JvmRuntime.less(" + left + ", " + right + ", " + line + ")";
+	    case LESS_EQUAL:    return "JvmRuntime.lessEqual(" + left + ", " + right + ", " + line + ")";
+	    case BANG_EQUAL:    return "JvmRuntime.notEqual(" + left + ", " + right + ")";
+	    case EQUAL_EQUAL:   return "JvmRuntime.equal(" + left + ", " + right + ")";
+	}
+
+	throw new IllegalArgumentException("no binary operator " + expr.operator.type);
+    }
+
+    /** Compares unboxed doubles as the Interpreter does, == and != by bits like Double.equals(). */
+    private static String compare(TokenType operator, String left, String right) {
+	switch (operator) {
+	    case BANG_EQUAL:
+		return "Double.doubleToLongBits(" + left + ") != Double.doubleToLongBits(" + right + ")";
+	    case EQUAL_EQUAL:
+		return "Double.doubleToLongBits(" + left + ") == Double.doubleToLongBits(" + right + ")";
+	    case GREATER:       return left + " > " + right;
+	    case GREATER_EQUAL: return left + " >= " + right;
+	    case LESS:          return left + " < " + right;
+	    case LESS_EQUAL:    return left + " <= " + right;
+	}
+
+	throw new IllegalArgumentException("no comparison " + operator);
+    }
+
+    /** Returns a Java double for an expression NumericInference has proven numeric, like Interpreter.evaluateDouble(). */
+    private String number(Expr expr) {
+	if (expr instanceof Expr.Binary) {
+	    Expr.Binary binary = (Expr.Binary) expr;
+	    return "(" + number(binary.left) + " " + binary.operator.lexeme + " " + number(binary.right) + ")";
+	}
+	else if (expr instanceof Expr.Literal) {
+	    return doubleLiteral((double) ((Expr.Literal) expr).value);
+	}
+	else if (expr instanceof Expr.Grouping) {
+	    return number(((Expr.Grouping) expr).expression);
+	}
+	else if (expr instanceof Expr.Unary) {
+	    return "(-" + number(((Expr.Unary) expr).right) + ")";
+	}
+
+	return "((Double) " + compile(expr) + ").doubleValue()";
+    }
+
+    /**
+     * Returns a Java boolean for the truth of a condition. One Java sees
+     * as a constant would make it reject the code after a loop as
+     * unreachable, so literals go through isTruthy() too.
+     */
+    private String condition(Expr expr) {
+	if (expr instanceof Expr.Binary && ((Expr.Binary) expr).numericOperands) {
+	    Expr.Binary binary = (Expr.Binary) expr;
+	    switch (binary.operator.type) {
+		case PLUS: case MINUS: case STAR: case SLASH:
+		    break; // a number, always true
+		default:
+		    if (!(binary.left instanceof Expr.Literal && binary.right instanceof Expr.Literal)) {
+			return compare(binary.operator.type, number(binary.left), number(binary.right));
+		    }
+	    }
+	}
+
+	return "JvmRuntime.isTruthy(" + compile(expr) + ")";
+    }
+
+    @Override
+    public String visitCallExpr(Expr.Call expr) {
+	return call(compile(expr.callee), arguments(expr), callSite(expr));
+    }
+
+    String call(String callee, String arguments, String site) {
+	return "JvmRuntime.call(" + callee + ", " + arguments + ", " + site + ")";
+    }
+
+    String tailCall(String callee, String arguments, String site) {
+	return "JvmRuntime.tailCall(" + callee + ", " + arguments + ", " + site + ")";
+    }
+
+    /** Returns the i-th argument of the function being compiled. */
+    String argument(int i) {
+	return "a[" + i + "]";
+    }
+
+    /** Returns the arguments of a call as an Object[]. */
+    String arguments(Expr.Call expr) {
+	if (expr.arguments.isEmpty()) { return "JvmRuntime.NO_ARGUMENTS"; }
+
+	StringBuilder arguments = new StringBuilder("new Object[] { ");
+	for (int i = 0; i < expr.arguments.size(); ++i) {
+	    if (i > 0) { arguments.append(", "); }
+	    arguments.append(compile(expr.arguments.get(i)));
+	}
+
+	return arguments.append(" }").toString();
+    }
+
+    @Override
+    public String visitGetExpr(Expr.Get expr) {
+	String site = constant("Expr.Get", "JvmRuntime.getSite(" + string(expr.name.lexeme) + ", "
+			       + expr.name.line + ")");
+	return "JvmRuntime.getProperty(" + compile(expr.object) + ", " + site + ")";
+    }
+
+    @Override
+    public String visitGroupingExpr(Expr.Grouping expr) {
+	return compile(expr.expression);
+    }
+
+    @Override
+    public String visitLiteralExpr(Expr.Literal expr) {
+	Object value = expr.value;
+	if (value == null) { return "null"; }
+	if (value instanceof Boolean) { return (boolean) value ? "Boolean.TRUE" : "Boolean.FALSE"; }
+	if (value instanceof Double) {
+	    // boxed once, as the Interpreter returns the same Double every time
+	    String name = numbers.get(value);
+	    if (name == null) {
+		name = constant("Object", "Double.valueOf(" + doubleLiteral((double) value) + ")");
+		numbers.put((Double) value, name);
+	    }
+	    return name;
+	}
+
+	return string((String) value);
+    }
+
+    @Override
+    public String visitLogicalExpr(Expr.Logical expr) {
+	String temp = "t" + temps++;
+	String test = "JvmRuntime.isTruthy(" + temp + " = " + compile(expr.left) + ")";
+	if (expr.operator.type == TokenType.AND) { test = "!" + test; }
+	return "(" + test + " ? " + temp + " : " + compile(expr.right) + ")";
+    }
+
+    @Override
+    public String visitSetExpr(Expr.Set expr) {
+	String site = constant("Expr.Set", "JvmRuntime.setSite(" + string(expr.name.lexeme) + ", "
+			       + expr.name.line + ")");
+	return "JvmRuntime.setProperty(" + compile(expr.object) + ", " + compile(expr.value) + ", " + site + ")";
+    }
+
+    @Override
+    public String visitUnaryExpr(Expr.Unary expr) {
+	String right = compile(expr.right);
+	if (expr.operator.type == TokenType.BANG) { return "JvmRuntime.not(" + right + ")"; }
+
+	return "JvmRuntime.negate(" + right + ", " + expr.operator.line + ")";
+    }
+
+    @Override
+    public String visitVariableExpr(Expr.Variable expr) {
+	if (expr.depth != -1) {
+	    Frame scope = frame.ancestor(expr.depth);
+	    String name = scope.names[expr.slot];
+	    return scope.cells[expr.slot] ? name + ".value" : name;
+	}
+	else if (expr.upvalue) {
+	    return "up[" + expr.slot + "].value";
+	}
+
+	return "JvmRuntime.getGlobal(" + global(expr.name) + ", " + string(expr.name.lexeme) + ", "
+	    + expr.name.line + ")";
+    }
+
+    // constants
+
+    String callSite(Expr.Call expr) {
+	return constant("Expr.Call", "JvmRuntime.callSite(" + expr.paren.line + ")");
+    }
+
+    /** Returns the field holding the global's Cell. */
+    String global(Token name) {
+	String field = globals.get(name.lexeme);
+	if (field == null) {
+	    field = "g_" + name.lexeme;
+	    fields.append("    private static final Cell ").append(field)
+		.append(" = JvmRuntime.global(").append(string(name.lexeme)).append(");\n");
+	    globals.put(name.lexeme, field);
+	}
+
+	return field;
+    }
+
+    /** Returns a new static field, made once when the class is loaded. */
+    final String constant(String type, String value) {
+	String field = "k" + constants++;
+	fields.append("    private static final ").append(type).append(' ').append(field)
+	    .append(" = ").append(value).append(";\n");
+	return field;
+    }
+
+    private static String doubleLiteral(double value) {
+	if (Double.isNaN(value)) { return "Double.NaN"; }
+	if (value == Double.POSITIVE_INFINITY) { return "Double.POSITIVE_INFINITY"; }
+	if (value == Double.NEGATIVE_INFINITY) { return "Double.NEGATIVE_INFINITY"; }
+
+	String literal = Double.toString(value);
+	return value < 0 || literal.startsWith("-") ? "(" + literal + ")" : literal;
+    }
+
+    /** Returns a Java expression for the string, split up if it's too long for one constant. */
+    final String string(String value) {
+	if (value.length() <= STRING_CHUNK) { return quote(value); }
+
+	StringBuilder parts = new StringBuilder("JvmRuntime.join(");
+	for (int from = 0; from < value.length(); from += STRING_CHUNK) {
+	    if (from > 0) { parts.append(", "); }
+	    parts.append(quote(value.substring(from, Math.min(value.length(), from + STRING_CHUNK))));
+	}
+
+	return constant("String", parts.append(")").toString());
+    }
+
+    /** Escapes everything but printable ASCII, the control chars without \\u, as javac reads those first. */
+    private static String quote(String value) {
+	StringBuilder quoted = new StringBuilder("\"");
+	for (int i = 0; i < value.length(); ++i) {
+	    char c = value.charAt(i);
+	    if (c == '"' || c == '\\') {
+		quoted.append('\\').append(c);
+	    }
+	    else if (c < 0x20) {
+		quoted.append(String.format("\\%03o", (int) c));
+	    }
+	    else if (c >= 0x7f) {
+		quoted.append(String.format("\\u%04x", (int) c));
+	    }
+	    else {
+		quoted.append(c);
+	    }
+	}
+
+	return quoted.append('"').toString();
+    }
+
+}
@@ -0,0 +1,216 @@
+package luca;
+
+import java.util.Arrays;
+
+/**
+ * What a program compiled by JvmCompiler calls into for the operations
+ * it doesn't do inline. Each behaves like the Interpreter's version down
+ * to the runtime error it raises. Sites that cache, property accesses
+ * and calls, are Expr nodes made once per site and kept in static fields
+ * of the program, so they share the Interpreter's inline caches.
+ */
+final class JvmRuntime {
+
+    static final Object TAIL_CALL = new Object(); // returned by a body that ended in a tail call
+    static CompiledFunction tailCallee = null;     // set along with TAIL_CALL
+    static Object[] tailArguments = null;
+
+    static final Object[] NO_ARGUMENTS = new Object[0];
+    static final Cell[] NO_UPVALUES = new Cell[0];
+
+    private static final Globals globals = new Globals();
+
+    static {
+	globals.define(Symbols.intern("clock"), Interpreter.CLOCK);
+    }
+
+    private JvmRuntime() {}
+
+    static Cell global(String name) {
+	return globals.cell(Symbols.intern(name));
+    }
+
+    static Expr.Get getSite(String name, int line) {
+	return new Expr.Get(null, nameToken(name, line));
+    }
+
+    static Expr.Set setSite(String name, int line) {
+	return new Expr.Set(null, nameToken(name, line), null);
+    }
+
+    static Expr.Call callSite(int line) {
+	return new Expr.Call(null, new Token(TokenType.RIGHT_PAREN, ")", null, line), null);
+    }
+
+    private static Token nameToken(String name, int line) {
+	int symbol = Symbols.intern(name);
+	return new Token(TokenType.IDENTIFIER, Symbols.nameOf(symbol), null, line, symbol);
+    }
+
+    static Object getGlobal(Cell global, String name, int line) {
+	Object value = global.value;
+	if (value != Globals.UNDEFINED) { return value; }
+
+	throw new RuntimeError(line, "Undefined variable '" + name + "'.");
+    }
+
+    static Object assignGlobal(Cell global, Object value, String name, int line) {
+	if (global.value == Globals.UNDEFINED) {
+	    throw new RuntimeError(line, "Undefined variable '" + name + "'.");
+	}
+
+	global.value = value;
+	return value;
+    }
+
+    static boolean isTruthy(Object value) {
+	return Interpreter.isTruthy(value);
+    }
+
+    static Object not(Object value) {
+	return !Interpreter.isTruthy(value);
+    }
+
+    static Object negate(Object value, int line) {
+	if (!(value instanceof Double)) {
+	    throw new RuntimeError(line, "Operand must be a number.");
+	}
+
+	return -(double) value;
+    }
+
+    static Object add(Object left, Object right, int line) {
+	if (left instanceof Double && right instanceof Double) {
+	    return (double) left + (double) right;
+	}
+
+	if (ConcatString.isString(left) && ConcatString.isString(right)) {
+	    return ConcatString.concat(left, right);
+	}
+
+	throw new RuntimeError(line, "Operands must be two numbers or two strings.");
+    }
+
+    static Object subtract(Object left, Object right, int line) {
+	checkNumberOperands(left, right, line);
+	return (double) left - (double) right;
+    }
+
+    static Object multiply(Object left, Object right, int line) {
+	checkNumberOperands(left, right, line);
+	return (double) left * (double) right;
+    }
+
+    static Object divide(Object left, Object right, int line) {
+	checkNumberOperands(left, right, line);
+	return (double) left / (double) right;
+    }
+
+    static Object greater(Object left, Object right, int line) {
+	checkNumberOperands(left, right, line);
+	return (double) left > (double) right;
+    }
+
+    static Object greaterEqual(Object left, Object right, int line) {
+	checkNumberOperands(left, right, line);
+	return (double) left >= (double) right;
+    }
+
+    static Object less(Object left, Object right, int line) {
+	checkNumberOperands(left, right, line);
+	return (double) left < (double) right;
+    }
+
+    static Object lessEqual(Object left, Object right, int line) {
+	checkNumberOperands(left, right, line);
+	return (double) left <= (double) right;
+    }
+
+    private static void checkNumberOperands(Object left, Object right, int line) {
+	if (left instanceof Double && right instanceof Double) { return; }
+	throw new RuntimeError(line, "Operands must be numbers.");
+    }
+
+    static Object equal(Object left, Object right) {
+	return Interpreter.isEqual(left, right);
+    }
+
+    static Object notEqual(Object left, Object right) {
+	return !Interpreter.isEqual(left, right);
+    }
+
+    static void print(Object value) {
+	System.out.println(Interpreter.stringify(value));
+    }
+
+    /** Evaluates an expression statement, as Java won't take most expressions as statements. */
+    static void discard(Object value) {}
+
+    /** Makes a string literal too long to be a single constant in a class file. */
+    static String join(String... parts) {
+	StringBuilder builder = new StringBuilder();
+	for (String part : parts) {
+	    builder.append(part);
+	}
+
+	return builder.toString();
+    }
+
+    static Object getProperty(Object object, Expr.Get site) {
+	if (object instanceof LucaInstance) {
+	    return ((LucaInstance) object).get(site);
+	}
+
+	throw new RuntimeError(site.name, "Only instances have properties.");
+    }
+
+    static Object setProperty(Object object, Object value, Expr.Set site) {
+	if (!(object instanceof LucaInstance)) {
+	    throw new RuntimeError(site.name, "Only instances have fields.");
+	}
+
+	((LucaInstance) object).set(site, value);
+	return value;
+    }
+
+    static Object call(Object callee, Object[] arguments, Expr.Call site) {
+	LucaCallable function = checkCall(site, callee, arguments);
+	if (function instanceof CompiledFunction) {
+	    return ((CompiledFunction) function).run(arguments);
+	}
+
+	return function.call(null, Arrays.asList(arguments));
+    }
+
+    /** Same as call, but leaves a compiled callee to the caller's CompiledFunction.run. */
+    static Object tailCall(Object callee, Object[] arguments, Expr.Call site) {
+	LucaCallable function = checkCall(site, callee, arguments);
+	if (function instanceof CompiledFunction) {
+	    tailCallee = (CompiledFunction) function;
+	    tailArguments = arguments;
+	    return TAIL_CALL;
+	}
+
+	return function.call(null, Arrays.asList(arguments));
+    }
+
+    private static LucaCallable checkCall(Expr.Call site, Object callee, Object[] arguments) {
+	Object key = CallCache.keyOf(callee);
+	if (site.cache.contains(key)) { return (LucaCallable) callee; }
+
+	if (!(callee instanceof LucaCallable)) {
+	    throw new RuntimeError(site.paren, "Can only call functions and classes.");
+	}
+
+	LucaCallable function = (LucaCallable) callee;
+	if (arguments.length != function.arity()) {
+	    throw new RuntimeError(site.paren, "Expected " +
+				   function.arity() + " arguments but got " +
+				   arguments.length + ".");
+	}
+
+	site.cache.add(key);
+	return function;
+    }
+
+}
@@ -4,37 +4,252 @@ import java.io.BufferedReader;
 import java.io.IOException;                                  
 import java.io.InputStreamReader;                            
 import java.nio.charset.Charset;                             
-import java.nio.file.Files;                                  
+import java.nio.file.Path;
 import java.nio.file.Paths;                                  
 import java.util.List;
+import java.util.Map;
+import java.util.ArrayList;
+
+import luca.opt.Optimizer;
+import luca.vm.VM;
 
 public class Luca {
 
     private static final Interpreter interpreter = new Interpreter();
+    private static final VM vm = new VM();
+    private static final ClosureCompiler closures = new ClosureCompiler();
+    private static boolean useVm = false; // run on the bytecode VM instead of the tree-walker
+    private static boolean useClosures = false; // run as compiled closures instead of tree-walking
+    private static boolean showStats = false; // report interpreter counters when a script ends
+    private static boolean useCache = true; // load and store resolved scripts in the ProgramCache
+    private static Path profileOut = null; // where --profile writes collapsed stacks, if anywhere
     static boolean hadError = false;
     static boolean hadRuntimeError = false; 
 
     public static void main(String[] args) throws IOException {
-	if (args.length > 1) {                                   
-	    System.out.println("Usage: luca [script]");            
-	    System.exit(64); 
+	if (args.length > 0 && args[0].equals("compile")) {
+	    compileFile(args);
+	    return;
+	}
+	if (args.length > 0 && args[0].equals("bench")) {
+	    benchFiles(args);
+	    return;
+	}
+
+	List<String> scripts = new ArrayList<>();
+	boolean jmx = false; // register the interpreter's MBean
+	for (String arg : args) {
+	    if (arg.equals("--vm")) {
+		useVm = true;
+	    }
+	    else if (arg.equals("--closures")) {
+		useClosures = true;
+	    }
+	    else if (arg.equals("--stats")) {
+		showStats = true;
+	    }
+	    else if (arg.equals("--no-cache")) {
+		useCache = false;
+	    }
+	    else if (arg.equals("--jit")) {
+		Jit.enabled = true;
+	    }
+	    else if (arg.equals("--jmx")) {
+		jmx = true;
+	    }
+	    else if (arg.equals("--profile")) {
+		interpreter.profiler = new Profiler();
+	    }
+	    else if (arg.startsWith("--profile=")) {
+		interpreter.profiler = new Profiler();
+		profileOut = Paths.get(arg.substring("--profile=".length()));
+	    }
+	    else if (arg.startsWith("--")) {
+		usage();
+	    }
+	    else {
+		scripts.add(arg);
+	    }
 	}
-	else if (args.length == 1) {                           
-	    runFile(args[0]);                                      
+
+	boolean profiling = interpreter.profiler != null; // which reports when a script ends, so there must be one
+	boolean treeWalker = !useVm && !useClosures;
+	if (scripts.size() > 1 || (profiling && (!treeWalker || scripts.isEmpty())) || (jmx && !treeWalker)) {                                   
+	    usage();
+	}
+
+	if (jmx) { interpreter.counters.register(); }
+	if (scripts.size() == 1) {                           
+	    runFile(scripts.get(0));                                      
 	}
 	else {                                                 
 	    runPrompt();                                           
 	}                                                        
     }
 
+    private static void usage() {
+	System.out.println("Usage: luca [--vm | --closures] [--stats] [--no-cache] [--jit] [--jmx] [script]\n"
+			   + "       luca [--stats] [--no-cache] [--jit] [--jmx] --profile[=stacks] script\n"
+			   + "       luca compile script [jar]\n"
+			   + "       luca bench [--vm | --closures] [--jit] [--warmup n] [--iterations n]\n"
+			   + "                  [--out results.json] [--baseline results.json] [--threshold percent] dir");            
+	System.exit(64); 
+    }
+
     private static void runFile(String path) throws IOException {
-	byte[] bytes = Files.readAllBytes(Paths.get(path));        
-	run(new String(bytes, Charset.defaultCharset()));          
+	List<Stmt> statements = load(Paths.get(path));
+	if (statements != null) { execute(statements); }
+	if (showStats) { printStats(); }
+	if (interpreter.profiler != null && statements != null) { printProfile(); }
+	interpreter.close();
 
 	if (hadError) { System.exit(65); }
 	if (hadRuntimeError) { System.exit(70); }
     }  
 
+    /** Compiles the script to a runnable jar, named after it unless given a name. */
+    private static void compileFile(String[] args) throws IOException {
+	if (args.length < 2 || args.length > 3) { usage(); }
+
+	Path script = Paths.get(args[1]);
+	Path jar;
+	if (args.length == 3) {
+	    jar = Paths.get(args[2]);
+	}
+	else {
+	    String name = script.getFileName().toString();
+	    if (name.endsWith(".luca")) { name = name.substring(0, name.length() - 5); }
+	    jar = script.resolveSibling(name + ".jar");
+	}
+
+	List<Stmt> statements = load(script);
+	if (hadError) { System.exit(65); }
+
+	try {
+	    new JvmCompiler().compile(statements, jar);
+	}
+	catch (IOException e) {
+	    System.err.println("Can't compile to " + jar + ": " + e.getMessage());
+	    System.exit(70);
+	}
+    }
+
+    /**
+     * Benchmarks the scripts in a directory, writing the results as JSON if
+     * asked. Exits with 1 if any of them regressed from the baseline.
+     */
+    private static void benchFiles(String[] args) {
+	int warmup = 3;
+	int iterations = Bench.P99_RUNS; // the fewest that give a p99
+	double threshold = 10; // percent
+	Path out = null;
+	Path baseline = null;
+	Path directory = null;
+	try {
+	    for (int i = 1; i < args.length; ++i) {
+		String arg = args[i];
+		boolean last = i + 1 == args.length;
+		if (arg.equals("--vm")) {
+		    useVm = true;
+		}
+		else if (arg.equals("--closures")) {
+		    useClosures = true;
+		}
+		else if (arg.equals("--jit")) {
+		    Jit.enabled = true;
+		}
+		else if (arg.equals("--warmup") && !last) {
+		    warmup = Integer.parseInt(args[++i]);
+		}
+		else if (arg.equals("--iterations") && !last) {
+		    iterations = Integer.parseInt(args[++i]);
+		}
+		else if (arg.equals("--threshold") && !last) {
+		    threshold = Double.parseDouble(args[++i]);
+		}
+		else if (arg.equals("--out") && !last) {
+		    out = Paths.get(args[++i]);
+		}
+		else if (arg.equals("--baseline") && !last) {
+		    baseline = Paths.get(args[++i]);
+		}
+		else if (arg.startsWith("--") || directory != null) {
+		    usage();
+		}
+		else {
+		    directory = Paths.get(arg);
+		}
+	    }
+	}
+	catch (NumberFormatException e) {
+	    usage();
+	}
+	if (directory == null || warmup < 0 || iterations < 1) { usage(); }
+
+	Map<String,Bench.Result> base = null;
+	if (baseline != null) {
+	    try {
+		base = Bench.read(baseline);
+	    }
+	    catch (IOException e) {
+		System.err.println("Can't read the baseline " + baseline + ": " + e.getMessage());
+		System.exit(70);
+	    }
+	}
+
+	List<Path> scripts = null;
+	try {
+	    scripts = Bench.scripts(directory);
+	}
+	catch (IOException e) {
+	    System.err.println("Can't list " + directory + ": " + e.getMessage());
+	    System.exit(70);
+	}
+
+	Bench bench = new Bench(warmup, iterations);
+	List<Bench.Result> results = new ArrayList<>();
+	boolean failed = false;
+	for (Path script : scripts) {
+	    Bench.Result result = bench.run(script);
+	    if (result == null) {
+		failed = true;
+		continue;
+	    }
+	    System.out.println(Bench.format(result));
+	    results.add(result);
+	}
+
+	if (out != null) {
+	    try {
+		Bench.write(out, results);
+	    }
+	    catch (IOException e) {
+		System.err.println("Can't write the results to " + out + ": " + e.getMessage());
+		failed = true;
+	    }
+	}
+	if (failed) { System.exit(70); }
+	if (base != null && Bench.compare(results, base, threshold) > 0) { System.exit(1); }
+    }
+
+    /** Returns the script resolved and optimized, from the cache if it's there, or null if it has static errors. */
+    private static List<Stmt> load(Path script) throws IOException {
+	Charset charset = Charset.defaultCharset();
+	boolean cached = useCache && !ProgramCache.build().isEmpty();
+	ProgramCache cache = cached ? new ProgramCache(ProgramCache.defaultDirectory()) : null;
+	String key = cache != null ? cache.key(script, charset) : null;
+
+	List<Stmt> statements = cache != null ? cache.load(key) : null;
+	if (statements == null) {
+	    try (MappedFileReader reader = new MappedFileReader(script, charset)) {
+		statements = compile(new Scanner(reader));
+	    }
+	    if (statements != null && cache != null) { cache.store(key, statements); }
+	}
+
+	return statements;
+    }
+
     private static void runPrompt() throws IOException {         
 	InputStreamReader input = new InputStreamReader(System.in);
 	BufferedReader reader = new BufferedReader(input);
@@ -48,22 +263,72 @@ public class Luca {
     }
 
     private static void run(String source) {    
-	Scanner scanner = new Scanner(source);
-	List<Token> tokens = scanner.scanTokens();
-	Parser parser = new Parser(tokens);
+	List<Stmt> statements = compile(new Scanner(source));
+	if (statements != null) { execute(statements); }
+    }
+
+    /** Returns the resolved and optimized program, or null if it has static errors. */
+    static List<Stmt> compile(Scanner scanner) {
+	Events.Span phase = Events.phase("parse"); // the Parser pulls tokens from the Scanner as it goes
+	Parser parser = new Parser(scanner);
 	List<Stmt> statements = parser.parse();
+	end(phase);
 	
-	if (hadError) { return; }
+	if (hadError) { return null; }
 
-	Resolver resolver = new Resolver(interpreter);
+	phase = Events.phase("resolve");
+	Resolver resolver = new Resolver();
 	resolver.resolve(statements);
+	end(phase);
 
-	if (hadError) { return; }
-	
-	interpreter.interpret(statements);
+	if (hadError) { return null; }
+
+	phase = Events.phase("optimize");
+	statements = new Optimizer().optimize(statements);
+	new NumericInference().infer(statements); // only the tree-walker uses it, but cached trees serve both
+	end(phase);
+	return statements;
+    }
+
+    static void execute(List<Stmt> statements) {
+	Events.Span phase = Events.phase("execute");
+	if (useVm) {
+	    vm.interpret(statements);
+	}
+	else if (useClosures) {
+	    closures.interpret(statements);
+	}
+	else {
+	    interpreter.interpret(statements);
+	}
+	end(phase);
     }
 
-    static void error(int line, String message) {                       
+    /**
+     * Runs the program as execute() would, but on a backend of its own, so
+     * that no globals or compiled code carry over from an earlier run.
+     */
+    static void executeAlone(List<Stmt> statements) {
+	Events.Span phase = Events.phase("execute");
+	if (useVm) {
+	    new VM().interpret(statements);
+	}
+	else if (useClosures) {
+	    new ClosureCompiler().interpret(statements);
+	}
+	else {
+	    try (Interpreter interpreter = new Interpreter()) {
+		interpreter.interpret(statements);
+	    }
+	}
+	end(phase);
+    }
+
+    private static void end(Events.Span phase) {
+	if (phase != null) { phase.finish(); }
+    }
+
+    public static void error(int line, String message) {                       
 	report(line, "", message);                                        
     }
 
@@ -72,6 +337,26 @@ public class Luca {
 	hadError = true;                                                  
     }
 
+    private static void printStats() {
+	long hits = interpreter.callCacheHits;
+	long calls = hits + interpreter.callCacheMisses;
+	double rate = calls == 0 ? 0.0 : 100.0 * hits / calls;
+	System.err.println(String.format("call site cache: %d hits, %d misses (%.1f%% hit rate)",
+					 hits, calls - hits, rate));
+    }
+
+    private static void printProfile() {
+	interpreter.profiler.report(System.err);
+	if (profileOut == null) { return; }
+
+	try {
+	    interpreter.profiler.writeCollapsed(profileOut);
+	}
+	catch (IOException e) {
+	    System.err.println("Can't write the profile to " + profileOut + ": " + e.getMessage());
+	}
+    }
+
     static void error(Token token, String message) {
 	if (token.type == TokenType.EOF) {
 	    report(token.line, " at end", message);
@@ -81,9 +366,10 @@ public class Luca {
 	}
     }
 
-    static void runtimeError(RuntimeError error) {
-	System.err.println(error.getMessage() + "\n[line " + error.token.line + "]");
+    public static void runtimeError(RuntimeError error) {
+	System.err.println(error.getMessage() + "\n[line " + error.line + "]");
 	hadRuntimeError = true; 
+	Events.runtimeError(error);
     }
 
 }
@@ -7,13 +7,15 @@ class LucaClass implements LucaCallable {
 
     final String name;
 
-    LucaClass(Sting name) {
+    LucaClass(String name) {
 	this.name = name;
     }
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
 	LucaInstance instance = new LucaInstance(this);
+	Events.instance(this);
+	if (interpreter != null) { interpreter.counters.instance(); } // null from the compiled backends
 	return instance;
     }
 
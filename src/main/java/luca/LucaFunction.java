@@ -1,15 +1,16 @@
 package luca;
 
+import java.util.Arrays;
 import java.util.List;
 
 
-class LucaFunction implements LucaCallable {
-    private final Stmt.Function declaration;
-    private final Environment closure;
+final class LucaFunction implements LucaCallable {
+    final Stmt.Function declaration;
+    private final Cell[] upvalues; // only the variables the body captures
 
-    LucaFunction(Stmt.Function declaration, Environment closure) {
+    LucaFunction(Stmt.Function declaration, Cell[] upvalues) {
 	this.declaration = declaration;
-	this.closure = closure;
+	this.upvalues = upvalues;
     }
 
     @Override
@@ -19,19 +20,62 @@ class LucaFunction implements LucaCallable {
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
-	Environment environment = new Environment(closure);
-	for (int i = 0; i < declaration.params.size(); ++i) {
-	    environment.define(declaration.params.get(i).lexeme, arguments.get(i));
-	}
+	LucaFunction function = this;
+	// the frame is never captured, closures hold Cells instead, so
+	// a tail call to the same declaration can run in it again
+	Environment environment = null;
+	Stmt.Function owner = null; // the declaration environment was made for
+	interpreter.counters.enter(); // a tail call doesn't go deeper
+	while (true) {
+	    Stmt.Function declaration = function.declaration;
+	    if (declaration.compiled == null && ++declaration.hotness >= Jit.THRESHOLD) {
+		interpreter.jit.hot(declaration);
+	    }
 
-	try {
-	    interpreter.executeBlock(declaration.body, environment);
-	}
-	catch (Return returnValue) {
-	    return returnValue.value;
-	}
+	    Events.Span event = Events.call(declaration);
+	    Object value;
+	    Jit.Code compiled = declaration.compiled;
+	    if (compiled != null && compiled.owner() == interpreter.jit) {
+		value = compiled.run(interpreter, function.upvalues, arguments);
+	    }
+	    else {
+		if (owner == declaration) {
+		    Arrays.fill(environment.values, null);
+		}
+		else {
+		    environment = new Environment(null, declaration.frameSize);
+		    interpreter.counters.frame();
+		    owner = declaration;
+		}
+		for (int i = 0; i < declaration.params.size(); ++i) {
+		    Object argument = arguments.get(i);
+		    // params take the first slots
+		    environment.values[i] = declaration.capturedParams[i] ? new Cell(argument) : argument;
+		}
 
-	return null;
+		Completion completion = interpreter.executeFunction(declaration, environment, function.upvalues);
+		if (completion == Completion.RETURN) {
+		    value = interpreter.returnValue;
+		    interpreter.returnValue = null; // don't keep it reachable
+		}
+		else {
+		    value = completion == Completion.TAIL_CALL ? Jit.TAIL_CALL : null;
+		}
+	    }
+
+	    if (event != null) { event.finish(); }
+	    if (value != Jit.TAIL_CALL) {
+		interpreter.counters.exit();
+		return value;
+	    }
+
+	    // trampoline: run the tail call here instead of one frame deeper
+	    function = interpreter.tailCallee;
+	    arguments = interpreter.tailArguments;
+	    interpreter.tailCallee = null;
+	    interpreter.tailArguments = null;
+	    if (interpreter.profiler != null) { interpreter.profiler.tailCall(function); }
+	}
     }
 
     @Override
@@ -1,23 +1,107 @@
 package luca;
 
+import java.util.Arrays;
 import java.util.Map;
 import java.util.HashMap;
 
+/**
+ * Fields are stored in an array laid out by the instance's Shape. Expr.Get
+ * and Expr.Set sites cache the last shape they saw along with the field's
+ * offset, so a property access on a familiar layout is one identity check
+ * and an array index.
+ */
 class LucaInstance {
 
+    private static final Object[] NO_FIELDS = new Object[0];
+
     private LucaClass _class;
-    private final Map<String,Object> fields = new HashMap<>();
+    private Shape shape = Shape.EMPTY;
+    private Object[] values = NO_FIELDS;
+    private Map<Integer,Object> dictionary = null; // by symbol, only in dictionary mode
 
     LucaInstance(LucaClass _class) {
 	this._class = _class;
     }
 
-    Object get(Token name) {
-	if (fields.containsKey(name.lexeme)) {
-	    return fields.get(name.lexeme);
+    Object get(Expr.Get site) {
+	if (shape == site.cachedShape) {
+	    return values[site.cachedOffset];
+	}
+
+	int symbol = site.name.symbol;
+	if (shape == Shape.DICTIONARY) {
+	    if (dictionary.containsKey(symbol)) { return dictionary.get(symbol); }
+	}
+	else {
+	    int offset = shape.offsetOf(symbol);
+	    if (offset != -1) {
+		site.cachedShape = shape;
+		site.cachedOffset = offset;
+		return values[offset];
+	    }
+	}
+
+	throw new RuntimeError(site.name, "Undefined property '" + site.name.lexeme + "'.");
+    }
+
+    void set(Expr.Set site, Object value) {
+	if (shape == site.cachedShape) {
+	    if (site.cachedTransition != null) {
+		addField(site.cachedTransition, value);
+	    }
+	    else {
+		values[site.cachedOffset] = value;
+	    }
+	    return;
+	}
+
+	int symbol = site.name.symbol;
+	if (shape == Shape.DICTIONARY) {
+	    dictionary.put(symbol, value);
+	    return;
+	}
+
+	int offset = shape.offsetOf(symbol);
+	if (offset != -1) {
+	    site.cachedShape = shape;
+	    site.cachedTransition = null;
+	    site.cachedOffset = offset;
+	    values[offset] = value;
+	    return;
+	}
+
+	Shape next = shape.withField(symbol);
+	if (next == null) {
+	    toDictionary();
+	    dictionary.put(symbol, value);
+	    return;
+	}
+
+	site.cachedShape = shape;
+	site.cachedTransition = next;
+	site.cachedOffset = shape.size();
+	addField(next, value);
+    }
+
+    /** Appends a field, moving the instance to next, the shape that includes it. */
+    private void addField(Shape next, Object value) {
+	int offset = shape.size();
+	if (offset == values.length) {
+	    values = Arrays.copyOf(values, Math.max(4, values.length * 2));
+	}
+
+	values[offset] = value;
+	shape = next;
+    }
+
+    private void toDictionary() {
+	dictionary = new HashMap<>();
+	for (int i = 0; i < shape.size(); ++i) {
+	    dictionary.put(shape.symbolAt(i), values[i]);
 	}
 
-	throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+	shape = Shape.DICTIONARY;
+	values = NO_FIELDS;
     }
 
     @Override
@@ -0,0 +1,102 @@
+package luca;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a script by memory-mapping it a window at a time and decoding the
+ * window straight into the caller's buffer, so the file's bytes live in
+ * the page cache rather than on the heap. A window ends wherever the
+ * decoder stopped, which may be partway through a multi-byte char; the
+ * next window is mapped from that byte, so nothing is split.
+ */
+final class MappedFileReader extends Reader {
+
+    private static final long WINDOW = 1 << 26; // bytes mapped at a time
+
+    private final FileChannel channel;
+    private final long size;
+    private final long windowSize;
+    private final CharsetDecoder decoder;
+    private long position = 0; // file offset of the window's first byte
+    private MappedByteBuffer window;
+    private boolean ended = false;
+    private int pending = -1; // second half of a surrogate pair read one char at a time
+
+    MappedFileReader(Path path, Charset charset) throws IOException {
+	this(path, charset, WINDOW);
+    }
+
+    /** Maps windowSize bytes at a time, which tests make small, but no fewer than a char takes. */
+    MappedFileReader(Path path, Charset charset, long windowSize) throws IOException {
+	this.windowSize = windowSize;
+	channel = FileChannel.open(path, StandardOpenOption.READ);
+	size = channel.size();
+	// same replacement of bad input as new String(bytes, charset)
+	decoder = charset.newDecoder()
+	    .onMalformedInput(CodingErrorAction.REPLACE)
+	    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+	window = map(0);
+    }
+
+    private MappedByteBuffer map(long from) throws IOException {
+	return channel.map(FileChannel.MapMode.READ_ONLY, from, Math.min(windowSize, size - from));
+    }
+
+    @Override
+    public int read(char[] chars, int offset, int length) throws IOException {
+	if (length == 0) { return 0; }
+	if (pending != -1) {
+	    chars[offset] = (char) pending;
+	    pending = -1;
+	    return 1;
+	}
+	if (ended) { return -1; }
+	if (length == 1) {
+	    // the decoder can't fit a surrogate pair in one char, so go through two
+	    char[] pair = new char[2];
+	    int read = read(pair, 0, 2);
+	    if (read == -1) { return -1; }
+
+	    chars[offset] = pair[0];
+	    if (read == 2) { pending = pair[1]; }
+	    return 1;
+	}
+
+	CharBuffer out = CharBuffer.wrap(chars, offset, length);
+	while (true) {
+	    boolean last = position + window.limit() == size;
+	    CoderResult result = decoder.decode(window, out, last);
+	    if (result.isError()) { result.throwException(); }
+
+	    int read = out.position() - offset;
+	    if (read > 0) { return read; }
+
+	    if (last) {
+		decoder.flush(out);
+		ended = true;
+		read = out.position() - offset;
+		return read > 0 ? read : -1;
+	    }
+
+	    // the window is used up, apart from maybe the start of a char
+	    position += window.position();
+	    window = map(position);
+	}
+    }
+
+    @Override
+    public void close() throws IOException {
+	channel.close();
+    }
+
+}
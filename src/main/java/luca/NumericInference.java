@@ -0,0 +1,308 @@
+package luca;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+
+/**
+ * Runs after the Resolver and works out which binary operators only ever
+ * see numbers, so the Interpreter can evaluate them on unboxed doubles.
+ *
+ * A local is numeric if everything ever stored in it is numeric. That is
+ * circular for loops like 'i = i + 1', so every local with an initializer
+ * starts out assumed numeric and locals are struck off until no store of
+ * a non-numeric value remains. Parameters, functions, classes and globals
+ * are never numeric: their values come from places this pass can't see.
+ */
+class NumericInference implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+    /** A local variable declaration, shared by every reference to it. */
+    private static class Binding {
+	boolean numeric;
+	final List<Expr> stores = new ArrayList<>(); // initializer and assigned values
+
+	Binding(boolean numeric) {
+	    this.numeric = numeric;
+	}
+    }
+
+    /** The bindings of one scope, laid out like the Environment it becomes. */
+    private static class Frame {
+	final Frame enclosing;
+	final Binding[] slots;
+
+	Frame(Frame enclosing, int size) {
+	    this.enclosing = enclosing;
+	    this.slots = new Binding[size];
+	}
+
+	Frame ancestor(int distance) {
+	    Frame frame = this;
+	    for (int i = 0; i < distance; ++i) {
+		frame = frame.enclosing;
+	    }
+
+	    return frame;
+	}
+    }
+
+    private Frame frame = null; // null while at the top level
+    private Binding[] upvalues = null;
+    private final Map<Expr,Binding> references = new HashMap<>();
+    private final List<Binding> bindings = new ArrayList<>();
+    private final List<Expr.Binary> binaries = new ArrayList<>();
+
+    void infer(List<Stmt> statements) {
+	for (Stmt statement : statements) {
+	    infer(statement);
+	}
+
+	boolean changed = true;
+	while (changed) {
+	    changed = false;
+	    for (Binding binding : bindings) {
+		if (binding.numeric && !allNumeric(binding.stores)) {
+		    binding.numeric = false;
+		    changed = true;
+		}
+	    }
+	}
+
+	for (Expr.Binary binary : binaries) {
+	    binary.numericOperands = isNumeric(binary.left) && isNumeric(binary.right);
+	}
+    }
+
+    private boolean allNumeric(List<Expr> exprs) {
+	for (Expr expr : exprs) {
+	    if (!isNumeric(expr)) { return false; }
+	}
+
+	return true;
+    }
+
+    /** Returns whether expr always evaluates to a Double, under the current assumptions. */
+    private boolean isNumeric(Expr expr) {
+	if (expr instanceof Expr.Literal) {
+	    return ((Expr.Literal) expr).value instanceof Double;
+	}
+	else if (expr instanceof Expr.Grouping) {
+	    return isNumeric(((Expr.Grouping) expr).expression);
+	}
+	else if (expr instanceof Expr.Unary) {
+	    Expr.Unary unary = (Expr.Unary) expr;
+	    return unary.operator.type == TokenType.MINUS && isNumeric(unary.right);
+	}
+	else if (expr instanceof Expr.Binary) {
+	    Expr.Binary binary = (Expr.Binary) expr;
+	    switch (binary.operator.type) {
+		case PLUS:
+		case MINUS:
+		case STAR:
+		case SLASH:
+		    return isNumeric(binary.left) && isNumeric(binary.right);
+		default:
+		    return false;
+	    }
+	}
+	else if (expr instanceof Expr.Assign) {
+	    return isNumeric(((Expr.Assign) expr).value);
+	}
+	else if (expr instanceof Expr.Variable) {
+	    Binding binding = references.get(expr);
+	    return binding != null && binding.numeric;
+	}
+
+	return false;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+	Frame previous = frame;
+	if (stmt.frameSize > 0) { frame = new Frame(frame, stmt.frameSize); } // see Interpreter
+	for (Stmt statement : stmt.statements) {
+	    infer(statement);
+	}
+	frame = previous;
+	return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+	declare(stmt.slot, new Binding(false));
+	return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+	infer(stmt.expression);
+	return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+	declare(stmt.slot, new Binding(false));
+
+	Binding[] captured = new Binding[stmt.upvalueSlots.length];
+	for (int i = 0; i < captured.length; ++i) {
+	    int depth = stmt.upvalueDepths[i];
+	    int slot = stmt.upvalueSlots[i];
+	    captured[i] = depth == -1 ? upvalues[slot] : frame.ancestor(depth).slots[slot];
+	}
+
+	Frame previousFrame = frame;
+	Binding[] previousUpvalues = upvalues;
+	frame = new Frame(null, stmt.frameSize);
+	upvalues = captured;
+	for (int i = 0; i < stmt.params.size(); ++i) {
+	    declare(i, new Binding(false));
+	}
+	for (Stmt statement : stmt.body) {
+	    infer(statement);
+	}
+	frame = previousFrame;
+	upvalues = previousUpvalues;
+	return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+	infer(stmt.condition);
+	infer(stmt.thenBranch);
+	if (stmt.elseBranch != null) { infer(stmt.elseBranch); }
+	return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+	infer(stmt.expression);
+	return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+	if (stmt.value != null) { infer(stmt.value); }
+	return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+	if (stmt.initializer != null) { infer(stmt.initializer); }
+
+	Binding binding = new Binding(stmt.initializer != null); // nil isn't a number
+	if (stmt.initializer != null) { binding.stores.add(stmt.initializer); }
+	declare(stmt.slot, binding);
+	return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+	infer(stmt.condition);
+	infer(stmt.body);
+	return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+	infer(expr.value);
+
+	Binding binding = lookUp(expr.depth, expr.slot, expr.upvalue);
+	if (binding != null) {
+	    binding.stores.add(expr.value);
+	    references.put(expr, binding);
+	}
+	return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+	infer(expr.left);
+	infer(expr.right);
+	binaries.add(expr);
+	return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+	infer(expr.callee);
+	for (Expr argument : expr.arguments) {
+	    infer(argument);
+	}
+	return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+	infer(expr.object);
+	return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+	infer(expr.expression);
+	return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+	return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+	infer(expr.left);
+	infer(expr.right);
+	return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+	infer(expr.object);
+	infer(expr.value);
+	return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+	infer(expr.right);
+	return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+	Binding binding = lookUp(expr.depth, expr.slot, expr.upvalue);
+	if (binding != null) {
+	    references.put(expr, binding);
+	}
+	return null;
+    }
+
+    private void infer(Stmt stmt) {
+	stmt.accept(this);
+    }
+
+    private void infer(Expr expr) {
+	expr.accept(this);
+    }
+
+    private void declare(int slot, Binding binding) {
+	if (slot == -1) { return; } // global
+
+	frame.slots[slot] = binding;
+	bindings.add(binding);
+    }
+
+    /** Returns the binding a resolved reference points at, or null for a global. */
+    private Binding lookUp(int depth, int slot, boolean upvalue) {
+	if (depth != -1) {
+	    return frame.ancestor(depth).slots[slot];
+	}
+	else if (upvalue) {
+	    return upvalues[slot];
+	}
+
+	return null;
+    }
+
+}
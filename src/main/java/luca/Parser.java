@@ -10,12 +10,10 @@ class Parser {
 
     private static class ParseError extends RuntimeException {}
 
-    private final List<Token> tokens;
-    private int current;
+    private final Scanner scanner; // at the only token the grammar ever looks ahead at
 
-    Parser(List<Token> tokens) {
-	this.tokens = tokens;
-	this.current = 0;
+    Parser(Scanner scanner) {
+	this.scanner = scanner;
     }
 
     List<Stmt> parse() {
@@ -52,7 +50,7 @@ class Parser {
     }
 
     private Stmt varDeclaration() {
-	Token name = consume(IDENTIFIER, "Expect variable name.");
+	Token name = take(IDENTIFIER, "Expect variable name.");
 
 	Expr initializer = null;
 	if (match(EQUAL)) {
@@ -65,7 +63,7 @@ class Parser {
     }
 
     private Stmt classDeclaration() {
-	Token name = consume(IDENTIFIER, "Expect class name.");
+	Token name = take(IDENTIFIER, "Expect class name.");
 	consume(LEFT_BRACE, "Expect '{' before class body.");
 
 	List<Stmt.Function> methods = new ArrayList<>();
@@ -79,18 +77,18 @@ class Parser {
     }
 
     private Stmt.Function function(String kind) {
-	Token name = consume(IDENTIFIER, "Expect " + kind + " name.");
+	Token name = take(IDENTIFIER, "Expect " + kind + " name.");
 	consume(LEFT_PAREN, "Expect '(' after " + kind + " name.");
 
 	List<Token> parameters = new ArrayList<>();
 	if (!check(RIGHT_PAREN)) {
-	    parameters.add(consume(IDENTIFIER, "Expect parameter name."));
+	    parameters.add(take(IDENTIFIER, "Expect parameter name."));
 	    while (match(COMMA)) {
 		advance();
 		if (parameters.size() >= 255) {
 		    error(peek(), "Can't have more than 255 parameters.");
 		}
-		parameters.add(consume(IDENTIFIER, "Expect parameter name."));
+		parameters.add(take(IDENTIFIER, "Expect parameter name."));
 	    }
 	}
 	consume(RIGHT_PAREN, "Expect ')' after parameters.");
@@ -151,7 +149,7 @@ class Parser {
     }
 
     private Stmt returnStatement() {
-	Token keyword = advance();
+	Token keyword = take();
 	Expr value = null;
 	if (!check(SEMICOLON)) {
 	    value = expression();
@@ -239,13 +237,17 @@ class Parser {
 	Expr rootExpr = or();
 
 	if (match(EQUAL)) {
-	    Token equals = advance();
+	    Token equals = take();
 	    Expr value = assignment();
 
 	    if (rootExpr instanceof Expr.Variable) {
 		Token name = ((Expr.Variable)rootExpr).name;
 		return new Expr.Assign(name, value);
 	    }
+	    else if (rootExpr instanceof Expr.Get) {
+		Expr.Get get = (Expr.Get)rootExpr;
+		return new Expr.Set(get.object, get.name, value);
+	    }
 
 	    error(equals, "Invalid assignment target.");
 	}
@@ -257,7 +259,7 @@ class Parser {
 	Expr rootExpr = and();
 
 	while (match(OR)) {
-	    Token operator = advance();
+	    Token operator = take();
 	    Expr right =  and();
 	    rootExpr = new Expr.Logical(rootExpr, operator, right);
 	}
@@ -269,7 +271,7 @@ class Parser {
 	Expr rootExpr = equality();
 
 	while (match(AND)) {
-	    Token operator  = advance();
+	    Token operator = take();
 	    Expr right = equality();
 	    rootExpr = new Expr.Logical(rootExpr, operator, right);
 	}
@@ -281,7 +283,7 @@ class Parser {
 	Expr rootExpr = comparison();
 
 	while (match(BANG_EQUAL, EQUAL_EQUAL)) {
-	    Token operator = advance();
+	    Token operator = take();
 	    Expr rightExpr = comparison();
 	    rootExpr = new Expr.Binary(rootExpr, operator, rightExpr);
 	}
@@ -293,7 +295,7 @@ class Parser {
 	Expr rootExpr = addition();
 
 	while (match(GREATER, GREATER_EQUAL, LESS, LESS_EQUAL)) {
-	    Token operator = advance();
+	    Token operator = take();
 	    Expr rightExpr = addition();
 	    rootExpr = new Expr.Binary(rootExpr, operator, rightExpr);
 	}
@@ -305,7 +307,7 @@ class Parser {
 	Expr rootExpr = multiplication();
 
 	while(match(MINUS, PLUS)) {
-	    Token operator = advance();
+	    Token operator = take();
 	    Expr rightExpr = multiplication();
 	    rootExpr = new Expr.Binary(rootExpr, operator, rightExpr);
 	}
@@ -317,7 +319,7 @@ class Parser {
 	Expr rootExpr = unary(); 
 
 	while(match(STAR, SLASH)) {
-	    Token operator = advance();
+	    Token operator = take();
 	    Expr rightExpr = unary();
 	    rootExpr = new Expr.Binary(rootExpr, operator, rightExpr);
 	}
@@ -327,7 +329,7 @@ class Parser {
 
     private Expr unary() {
 	if (match(BANG, MINUS)) {
-	    Token operator = advance();
+	    Token operator = take();
 	    Expr right = unary();
 	    return new Expr.Unary(operator, right);
 	}
@@ -346,7 +348,7 @@ class Parser {
 	    }
 	    else if (match(DOT)) {
 		advance();
-		Token name = consume(IDENTIFIER, "Expect property name after '.'.");
+		Token name = take(IDENTIFIER, "Expect property name after '.'.");
 		expr = new Expr.Get(expr, name);
 	    }
 	    else {
@@ -370,36 +372,40 @@ class Parser {
 	    }
 	}
 
-	Token paren = consume(RIGHT_PAREN, "Expect ')' after arguments.");
+	Token paren = take(RIGHT_PAREN, "Expect ')' after arguments.");
 
 	return new Expr.Call(callee, paren, arguments);
     }
 
     private Expr primary() {
 	Expr literal = null;
-	Token next = advance();
-	if (next.type == FALSE) {
+	TokenType type = scanner.type();
+	if (type == FALSE) {
+	    advance();
 	    literal = new Expr.Literal(false);
 	}
-	else if (next.type == TRUE) {
+	else if (type == TRUE) {
+	    advance();
 	    literal = new Expr.Literal(true);
 	}
-	else if (next.type == NIL) {
+	else if (type == NIL) {
+	    advance();
 	    literal = new Expr.Literal(null);
 	}
-	else if (next.type == NUMBER || next.type == STRING) {
-	    literal = new Expr.Literal(next.literal);
+	else if (type == NUMBER || type == STRING) {
+	    literal = new Expr.Literal(take().literal);
 	}
-	else if (next.type == IDENTIFIER) {
-	    literal = new Expr.Variable(next);
+	else if (type == IDENTIFIER) {
+	    literal = new Expr.Variable(take());
 	}
-	else if (next.type == LEFT_PAREN) {
+	else if (type == LEFT_PAREN) {
+	    advance();
 	    Expr expr = expression();
 	    consume(RIGHT_PAREN, "Expect ')' after expression.");
 	    literal = new Expr.Grouping(expr);
 	}
 	else {
-	    throw error(next, "Expect expression.");
+	    throw error(take(), "Expect expression.");
 	}
 
 	return literal;
@@ -415,9 +421,19 @@ class Parser {
 	return false;
     }
 
-    private Token consume(TokenType tok, String message) {
+    private void consume(TokenType tok, String message) {
+	if (check(tok)) {
+	    advance();
+	}
+	else {
+	    throw error(peek(), message);
+	}
+    }
+
+    /** Same as consume, for a token the tree keeps. */
+    private Token take(TokenType tok, String message) {
 	if (check(tok)) {
-	    return advance();
+	    return take();
 	}
 	else {
 	    throw error(peek(), message);
@@ -426,19 +442,27 @@ class Parser {
 
     private boolean check(TokenType type) {
 	if (isAtEnd()) { return false; }
-	return peek().type == type;
+	return scanner.type() == type;
+    }
+
+    /** Moves past the current token without ever making a Token of it. */
+    private void advance() {
+	scanner.advance();
     }
 
-    private Token advance() {
-	return !isAtEnd() ? tokens.get(current++) : tokens.get(current);
+    /** Returns the current token and moves past it. */
+    private Token take() {
+	Token token = scanner.token();
+	scanner.advance();
+	return token;
     }
 
     private boolean isAtEnd() {
-	return peek().type == EOF;
+	return scanner.type() == EOF;
     }
 
     private Token peek() {
-	return tokens.get(current);
+	return scanner.token();
     }
 
     private ParseError error(Token token, String message) {
@@ -447,14 +471,16 @@ class Parser {
     }
 
     private void synchronize() {
-	Token tok = advance();
+	TokenType type = scanner.type();
+	advance();
 
 	while (!isAtEnd()) {
-	    if (tok.type == SEMICOLON) { return; }
+	    if (type == SEMICOLON) { return; }
 
-	    if (checkKeyword(peek().type)) { return; }
+	    if (checkKeyword(scanner.type())) { return; }
 
-	    tok = advance();
+	    type = scanner.type();
+	    advance();
 	}
     }
 
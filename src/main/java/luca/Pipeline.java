@@ -0,0 +1,104 @@
+package luca;
+
+import java.util.List;
+
+import luca.opt.Optimizer;
+
+/**
+ * The stages Luca takes a script through, one at a time, for code outside
+ * this package that drives them itself, such as the benchmarks. Static
+ * errors are reported as Luca reports them and then thrown as an
+ * IllegalArgumentException; runtime errors as an IllegalStateException.
+ */
+public final class Pipeline {
+
+    /** A script's tree, as far along as the stages it has been through. */
+    public static final class Program {
+	final List<Stmt> statements;
+
+	private Program(List<Stmt> statements) {
+	    this.statements = statements;
+	}
+    }
+
+    /**
+     * Runs programs on a tree-walker of its own. The caches a run leaves in
+     * a tree belong to the Interpreter that ran it, so a Program should be
+     * run by one Session. Closing it unregisters its MBean, if it has one.
+     */
+    public static final class Session implements AutoCloseable {
+	private final Interpreter interpreter = new Interpreter();
+
+	public void run(Program program) {
+	    interpreter.interpret(program.statements);
+	    if (Luca.hadRuntimeError) {
+		Luca.hadRuntimeError = false;
+		throw new IllegalStateException("The script failed at runtime");
+	    }
+	}
+
+	/** Returns the value of the global, or null if it has none. */
+	public Object global(String name) {
+	    Object value = interpreter.globals.cell(Symbols.intern(name)).value;
+	    return value == Globals.UNDEFINED ? null : value;
+	}
+
+	@Override
+	public void close() {
+	    interpreter.close();
+	}
+    }
+
+    private Pipeline() {}
+
+    /** Scans the source and returns how many tokens it has. */
+    public static int scan(String source) {
+	Scanner scanner = new Scanner(source);
+	int tokens = 0;
+	while (scanner.type() != TokenType.EOF) {
+	    scanner.advance();
+	    ++tokens;
+	}
+	return tokens;
+    }
+
+    /** Scans the source making the Token objects the Parser would keep, and returns the sum of their lines. */
+    public static long scanTokens(String source) {
+	Scanner scanner = new Scanner(source);
+	long lines = 0;
+	while (scanner.type() != TokenType.EOF) {
+	    lines += scanner.token().line;
+	    scanner.advance();
+	}
+	return lines;
+    }
+
+    public static Program parse(String source) {
+	List<Stmt> statements = new Parser(new Scanner(source)).parse();
+	check();
+	return new Program(statements);
+    }
+
+    /** Resolves the program's tree again. Resolving only sets annotations, so it does the same work each time. */
+    public static Program resolve(Program program) {
+	new Resolver().resolve(program.statements);
+	check();
+	return program;
+    }
+
+    /** Returns the program as Luca runs it: parsed, resolved and optimized. */
+    public static Program compile(String source) {
+	List<Stmt> statements = resolve(parse(source)).statements;
+	statements = new Optimizer().optimize(statements);
+	new NumericInference().infer(statements);
+	return new Program(statements);
+    }
+
+    private static void check() {
+	if (Luca.hadError) {
+	    Luca.hadError = false;
+	    throw new IllegalArgumentException("The script has static errors");
+	}
+    }
+
+}
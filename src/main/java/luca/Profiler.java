@@ -0,0 +1,217 @@
+package luca;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Profiles the Luca functions a script calls, for --profile. The Interpreter
+ * tells it about every call, native ones included, and it keeps a shadow
+ * stack of them as a tree of calling contexts, so each node is one path
+ * from the top level. A tail call replaces the caller's frame, the way
+ * LucaFunction.call runs it.
+ *
+ * Calls are counted, not timed: a sampler thread wakes every millisecond
+ * and charges a sample to the path running then, and each function's
+ * share of the samples is its share of the run's wall time. A function's
+ * total counts only its outermost activation on a path, so a recursive
+ * function isn't charged for itself twice. Self time excludes the
+ * functions it calls.
+ */
+final class Profiler {
+
+    private static final long PERIOD = 1; // milliseconds between samples
+
+    /** One function, over every path it was called on. */
+    private static final class Function {
+	final String name;
+	long calls = 0;
+	long self = 0;   // samples
+	long total = 0;
+	int active = 0; // activations on the path being summed up
+
+	Function(String name) {
+	    this.name = name;
+	}
+    }
+
+    /** One path of calls from the top level. */
+    private static final class Node {
+	final Function function;
+	final Node parent;
+	final Map<Object,Node> children = new HashMap<>(4);
+	Object lastKey = null; // the child called last, as loops tend to call the same one
+	Node lastChild = null;
+	long samples = 0; // written only by the sampler
+
+	Node(Function function, Node parent) {
+	    this.function = function;
+	    this.parent = parent;
+	}
+    }
+
+    private final Map<Object,Function> functions = new IdentityHashMap<>();
+    private final Node root = new Node(new Function("<script>"), null);
+    private Node current = root; // read by the sampler without a lock, so a sample may land a call or two late
+    private Thread sampler = null;
+    private long started = 0;
+    private long stopped = 0;
+
+    Profiler() {
+	root.function.calls = 1;
+    }
+
+    /** Starts the clock and the sampler, when the script starts running. */
+    void start() {
+	if (sampler != null) { return; }
+
+	started = System.nanoTime();
+	sampler = new Thread(this::sample, "luca-profiler");
+	sampler.setDaemon(true);
+	sampler.start();
+    }
+
+    private void sample() {
+	try {
+	    while (!Thread.currentThread().isInterrupted()) {
+		Thread.sleep(PERIOD);
+		++current.samples;
+	    }
+	}
+	catch (InterruptedException e) {
+	    // stopped
+	}
+    }
+
+    void enter(LucaCallable callee) {
+	Object key = callee instanceof LucaFunction ? ((LucaFunction) callee).declaration : callee;
+	Node node;
+	if (current.lastKey == key) {
+	    node = current.lastChild;
+	}
+	else {
+	    node = current.children.get(key);
+	    if (node == null) {
+		node = new Node(function(key), current);
+		current.children.put(key, node);
+	    }
+	    current.lastKey = key;
+	    current.lastChild = node;
+	}
+
+	++node.function.calls;
+	current = node;
+    }
+
+    void exit() {
+	current = current.parent;
+    }
+
+    /** The running function's frame is replaced by the one it tail calls. */
+    void tailCall(LucaCallable callee) {
+	exit();
+	enter(callee);
+    }
+
+    private Function function(Object key) {
+	Function function = functions.get(key);
+	if (function == null) {
+	    String name;
+	    if (key instanceof Stmt.Function) {
+		Token token = ((Stmt.Function) key).name;
+		name = token.lexeme + ":" + token.line; // functions may share a name
+	    }
+	    else if (key == Interpreter.CLOCK) {
+		name = "clock";
+	    }
+	    else {
+		name = key.toString();
+	    }
+	    function = new Function(name);
+	    functions.put(key, function);
+	}
+
+	return function;
+    }
+
+    /** Stops the sampler, once, and sums each function's samples over the tree. */
+    private void finish() {
+	if (stopped != 0) { return; }
+
+	stopped = System.nanoTime();
+	if (sampler != null) {
+	    sampler.interrupt();
+	    try {
+		sampler.join();
+	    }
+	    catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+	    }
+	}
+	sum(root);
+    }
+
+    /** Adds up the node's self samples, and returns those of its subtree. */
+    private static long sum(Node node) {
+	Function function = node.function;
+	function.self += node.samples;
+	++function.active;
+	long total = node.samples;
+	for (Node child : node.children.values()) {
+	    total += sum(child);
+	}
+	if (--function.active == 0) { function.total += total; }
+	return total;
+    }
+
+    /** Prints each function's self and total time and calls, the most self time first. */
+    void report(PrintStream out) {
+	finish();
+
+	List<Function> sorted = new ArrayList<>(functions.values());
+	sorted.add(root.function);
+	sorted.sort((a, b) -> Long.compare(b.self, a.self));
+
+	double samples = Math.max(root.function.total, 1);
+	double msPerSample = (stopped - started) / 1e6 / samples;
+	out.println(String.format("%d samples over %.2f ms", root.function.total, (stopped - started) / 1e6));
+	out.println(String.format("%10s %7s %10s %7s %10s  %s", "self ms", "self%", "total ms", "total%", "calls", "function"));
+	for (Function function : sorted) {
+	    out.println(String.format("%10.2f %6.1f%% %10.2f %6.1f%% %10d  %s",
+				      function.self * msPerSample, 100 * function.self / samples,
+				      function.total * msPerSample, 100 * function.total / samples,
+				      function.calls, function.name));
+	}
+    }
+
+    /** Writes the self samples of each path, as the collapsed stacks flame graph tools read. */
+    void writeCollapsed(Path file) throws IOException {
+	finish();
+
+	try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+	    writeCollapsed(out, root, new StringBuilder(root.function.name));
+	}
+    }
+
+    private static void writeCollapsed(Writer out, Node node, StringBuilder path) throws IOException {
+	if (node.samples > 0) {
+	    out.write(path + " " + node.samples + "\n");
+	}
+
+	int length = path.length();
+	for (Node child : node.children.values()) {
+	    path.append(';').append(child.function.name);
+	    writeCollapsed(out, child, path);
+	    path.setLength(length);
+	}
+    }
+
+}
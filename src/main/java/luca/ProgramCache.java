@@ -0,0 +1,173 @@
+package luca;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.CodeSource;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Keeps scripts on disk as resolved and optimized trees, so that running
+ * an unchanged script again skips scanning, parsing and resolving. An
+ * entry is named by the SHA-256 of the script's bytes and the charset
+ * they are decoded with. Only scripts without static errors are stored.
+ * The cache is an optimization, so an entry that can't be read or written
+ * is treated as missing.
+ *
+ * The Resolver, Optimizer and NumericInference annotate the stored tree,
+ * so an entry is only good for the build of Luca that wrote it. The key
+ * also hashes an id of the build, see build(), which every upgrade or
+ * rebuild changes.
+ */
+final class ProgramCache {
+
+    private static final byte[] MAGIC = { 'L', 'U', 'C', 'A' };
+    private static final int FORMAT = 1; // bump whenever the tree or TreeWriter changes
+    private static final long WINDOW = 1 << 26; // bytes mapped at a time while hashing
+    private static String build = null; // see build()
+
+    private final Path directory;
+
+    ProgramCache(Path directory) {
+	this.directory = directory;
+    }
+
+    /** $LUCA_CACHE_DIR, or else luca under $XDG_CACHE_HOME or ~/.cache. */
+    static Path defaultDirectory() {
+	String dir = System.getenv("LUCA_CACHE_DIR");
+	if (dir != null) { return Paths.get(dir); }
+
+	String base = System.getenv("XDG_CACHE_HOME");
+	if (base != null) { return Paths.get(base, "luca"); }
+
+	return Paths.get(System.getProperty("user.home"), ".cache", "luca");
+    }
+
+    /**
+     * Identifies the build of Luca that is running: the size and time of
+     * its jar, or of the newest class file when it runs from a directory
+     * of classes. Returns "" if its code can't be located, which turns the
+     * cache off, as keys could then outlive an upgrade.
+     */
+    static String build() {
+	if (build != null) { return build; }
+
+	build = "";
+	try {
+	    CodeSource source = ProgramCache.class.getProtectionDomain().getCodeSource();
+	    Path location = source == null ? null : Paths.get(source.getLocation().toURI());
+	    if (location != null && Files.isRegularFile(location)) {
+		build = "jar " + Files.size(location) + " " + Files.getLastModifiedTime(location).toMillis();
+	    }
+	    else if (location != null && Files.isDirectory(location)) {
+		long[] newest = { 0, 0 }; // time and count of the class files
+		try (Stream<Path> files = Files.walk(location)) {
+		    files.filter(file -> file.toString().endsWith(".class")).forEach(file -> {
+			    try {
+				newest[0] = Math.max(newest[0], Files.getLastModifiedTime(file).toMillis());
+				++newest[1];
+			    }
+			    catch (IOException e) {
+				throw new UncheckedIOException(e);
+			    }
+			});
+		}
+		build = "classes " + newest[1] + " " + newest[0];
+	    }
+	}
+	catch (IOException | UncheckedIOException | URISyntaxException | SecurityException
+	       | IllegalArgumentException | FileSystemNotFoundException e) {
+	    build = "";
+	}
+
+	return build;
+    }
+
+    /** Returns the name of the script's entry. */
+    String key(Path script, Charset charset) throws IOException {
+	MessageDigest digest;
+	try {
+	    digest = MessageDigest.getInstance("SHA-256");
+	}
+	catch (NoSuchAlgorithmException e) {
+	    throw new AssertionError(e); // every JVM has SHA-256
+	}
+
+	digest.update(build().getBytes(StandardCharsets.UTF_8));
+	digest.update(charset.name().getBytes(StandardCharsets.UTF_8));
+	try (FileChannel channel = FileChannel.open(script, StandardOpenOption.READ)) {
+	    long size = channel.size();
+	    for (long position = 0; position < size; position += WINDOW) {
+		digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position,
+					  Math.min(WINDOW, size - position)));
+	    }
+	}
+
+	StringBuilder key = new StringBuilder();
+	for (byte b : digest.digest()) {
+	    key.append(String.format("%02x", b));
+	}
+
+	return key.toString();
+    }
+
+    /** Returns the stored program, or null if there is none. */
+    List<Stmt> load(String key) {
+	Path file = directory.resolve(key);
+	if (!Files.isRegularFile(file)) { return null; }
+
+	try {
+	    byte[] bytes = Files.readAllBytes(file);
+	    int header = MAGIC.length + 1;
+	    if (bytes.length < header
+		|| !Arrays.equals(Arrays.copyOf(bytes, MAGIC.length), MAGIC)
+		|| bytes[MAGIC.length] != FORMAT) {
+		return null; // from another version of Luca
+	    }
+
+	    return new TreeReader(bytes, header).read();
+	}
+	catch (IOException e) {
+	    return null;
+	}
+    }
+
+    void store(String key, List<Stmt> statements) {
+	Path temp = null;
+	try {
+	    Files.createDirectories(directory);
+	    // written aside and moved into place, so a concurrent load never sees half an entry
+	    temp = Files.createTempFile(directory, key, ".tmp");
+	    try (OutputStream out = Files.newOutputStream(temp)) {
+		out.write(MAGIC);
+		out.write(FORMAT);
+		new TreeWriter(out).write(statements);
+	    }
+	    Files.move(temp, directory.resolve(key),
+		       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	catch (IOException e) {
+	    if (temp != null) {
+		try {
+		    Files.deleteIfExists(temp);
+		}
+		catch (IOException ignored) {}
+	    }
+	}
+    }
+
+}
@@ -1,6 +1,7 @@
 package luca;
 
 import java.util.List;
+import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.Stack;
@@ -8,37 +9,72 @@ import java.util.Stack;
 
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
-    private final Interpreter interpreter;
-    private final Stack<Map<String,Boolean>> scopes = new Stack<>();
+    private final Stack<Map<Integer,Local>> scopes = new Stack<>();
     private FunctionType currentFunction = FunctionType.NONE;
+    private FunctionScope functionScope = new FunctionScope(null, 0); // top-level code
     
-    Resolver(Interpreter interpreter) {
-	this.interpreter = interpreter;
-    }
-
     private enum FunctionType {
 	NONE,
 	FUNCTION
     }
 
+    /** A local variable's slot in its scope's Environment. */
+    private static class Local {
+	final int scope; // index of the declaring scope in scopes
+	final int slot;
+	final Stmt declaration; // null for parameters
+	boolean defined = false;
+	boolean captured = false; // referenced from a nested function, so it lives in a Cell
+	final List<Expr> uses = new ArrayList<>(); // references from the declaring function
+
+	Local(int scope, int slot, Stmt declaration) {
+	    this.scope = scope;
+	    this.slot = slot;
+	    this.declaration = declaration;
+	}
+    }
+
+    /**
+     * Tracks the locals of enclosing functions that a function captures.
+     * Upvalue i of the function's closure holds the Cell of upvalues.get(i).
+     */
+    private static class FunctionScope {
+	final FunctionScope enclosing;
+	final int firstScope; // index in scopes of the function's parameter scope
+	final List<Local> upvalues = new ArrayList<>();
+
+	FunctionScope(FunctionScope enclosing, int firstScope) {
+	    this.enclosing = enclosing;
+	    this.firstScope = firstScope;
+	}
+    }
+
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
+	if (!declaresNames(stmt.statements)) {
+	    // no scope, so references from inside don't count it in their depth,
+	    // and frameSize 0 tells the Interpreter not to give it an Environment
+	    resolve(stmt.statements);
+	    stmt.frameSize = 0;
+	    return null;
+	}
+
 	beginScope();
 	resolve(stmt.statements);
-	endScope();
+	stmt.frameSize = endScope();
 	return null;
     }
 
     @Override
     public Void visitClassStmt(Stmt.Class stmt) {
-	declare(stmt.name);
+	stmt.slot = declare(stmt.name, stmt);
 	define(stmt.name);
 	return null;
     }
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-	declare(stmt.name);
+	stmt.slot = declare(stmt.name, stmt);
 	define(stmt.name);
 
 	resolveFunction(stmt, FunctionType.FUNCTION);
@@ -47,7 +83,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
-	declare(stmt.name);
+	stmt.slot = declare(stmt.name, stmt);
 	if (stmt.initializer != null) {
 	    resolve(stmt.initializer);
 	}
@@ -82,6 +118,8 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 	}
 	
 	if (stmt.value != null) { resolve(stmt.value); }
+	// nothing is left to do in this call once the callee returns
+	stmt.tailCall = currentFunction != FunctionType.NONE && stmt.value instanceof Expr.Call;
 	return null;
     }
 
@@ -95,19 +133,42 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitAssignExpr(Expr.Assign expr) {
 	resolve(expr.value);
-	resolveLocal(expr, expr.name);
+	Local local = resolveLocal(expr.name);
+	if (local == null) { return null; } // global
+
+	if (local.scope >= functionScope.firstScope) {
+	    expr.depth = scopes.size() - 1 - local.scope;
+	    expr.slot = local.slot;
+	    local.uses.add(expr);
+	}
+	else {
+	    expr.upvalue = true;
+	    expr.slot = upvalueIndex(functionScope, local);
+	}
 	return null;
     }
 
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
 	if (!scopes.isEmpty()
-	    && scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
+	    && scopes.peek().containsKey(expr.name.symbol)
+	    && !scopes.peek().get(expr.name.symbol).defined) {
 	    Luca.error(expr.name,
 		       "Can't read local variable in its own initializer.");
 	}
 	
-	resolveLocal(expr, expr.name);
+	Local local = resolveLocal(expr.name);
+	if (local == null) { return null; } // global
+
+	if (local.scope >= functionScope.firstScope) {
+	    expr.depth = scopes.size() - 1 - local.scope;
+	    expr.slot = local.slot;
+	    local.uses.add(expr);
+	}
+	else {
+	    expr.upvalue = true;
+	    expr.slot = upvalueIndex(functionScope, local);
+	}
 	return null;
     }
 
@@ -135,6 +196,13 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 	return null;
     }
 
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+	resolve(expr.value);
+	resolve(expr.object);
+	return null;
+    }
+
     @Override
     public Void visitGroupingExpr(Expr.Grouping expr) {
 	resolve(expr.expression);
@@ -173,49 +241,136 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 	expr.accept(this);
     }
 
+    /** Names are only declared by a block's own Var, Function and Class statements. */
+    private static boolean declaresNames(List<Stmt> statements) {
+	for (Stmt statement : statements) {
+	    if (statement instanceof Stmt.Var
+		|| statement instanceof Stmt.Function
+		|| statement instanceof Stmt.Class) {
+		return true;
+	    }
+	}
+
+	return false;
+    }
+
     private void beginScope() {
-	scopes.push(new HashMap<String,Boolean>());
+	scopes.push(new HashMap<Integer,Local>());
     }
 
-    private void endScope() {
-	scopes.pop();
+    /** Returns the number of slots the scope's Environment needs. */
+    private int endScope() {
+	Map<Integer,Local> scope = scopes.pop();
+	for (Local local : scope.values()) {
+	    if (local.captured) { markCaptured(local); }
+	}
+
+	return scope.size();
     }
 
-    private void declare(Token name) {
-	if (scopes.isEmpty()) { return; }
-	Map<String,Boolean> scope = scopes.peek();
-	if (scope.containsKey(name.lexeme)) {
+    /** Points the declaration and every use within its own function at the Cell. */
+    private void markCaptured(Local local) {
+	for (Expr use : local.uses) {
+	    if (use instanceof Expr.Variable) {
+		((Expr.Variable) use).cell = true;
+	    }
+	    else {
+		((Expr.Assign) use).cell = true;
+	    }
+	}
+
+	if (local.declaration instanceof Stmt.Var) {
+	    ((Stmt.Var) local.declaration).captured = true;
+	}
+	else if (local.declaration instanceof Stmt.Function) {
+	    ((Stmt.Function) local.declaration).captured = true;
+	}
+	else if (local.declaration instanceof Stmt.Class) {
+	    ((Stmt.Class) local.declaration).captured = true;
+	}
+    }
+
+    /** Returns the slot assigned to the variable, or -1 if it is a global. */
+    private int declare(Token name, Stmt declaration) {
+	if (scopes.isEmpty()) { return -1; }
+	Map<Integer,Local> scope = scopes.peek();
+	if (scope.containsKey(name.symbol)) {
 	    Luca.error(name, "Already a variable with this name in this scope.");
+	    return scope.get(name.symbol).slot;
 	}
-	scope.put(name.lexeme, false);
+	Local local = new Local(scopes.size() - 1, scope.size(), declaration);
+	scope.put(name.symbol, local);
+	return local.slot;
     }
 
     private void define(Token name) {
 	if (scopes.isEmpty()) { return; }
-	scopes.peek().put(name.lexeme, true);
+	scopes.peek().get(name.symbol).defined = true;
     }
 
     private void resolveFunction(Stmt.Function function, FunctionType type) {
 	FunctionType enclosingFuction = currentFunction;
 	currentFunction = type;
+	FunctionScope enclosingScope = functionScope;
+	functionScope = new FunctionScope(enclosingScope, scopes.size());
 	
 	beginScope();
 	for (Token param : function.params) {
-	    declare(param);
+	    declare(param, null);
 	    define(param);
 	}
 	resolve(function.body);
-	endScope();
+
+	function.capturedParams = new boolean[function.params.size()];
+	for (int i = 0; i < function.params.size(); ++i) {
+	    function.capturedParams[i] = scopes.peek().get(function.params.get(i).symbol).captured;
+	}
+	function.frameSize = endScope();
+
+	// where the closure finds each captured Cell when it is created: a local
+	// of the enclosing function at (depth, slot), or, with depth -1, the
+	// enclosing function's own upvalue number slot
+	int count = functionScope.upvalues.size();
+	function.upvalueDepths = new int[count];
+	function.upvalueSlots = new int[count];
+	for (int i = 0; i < count; ++i) {
+	    Local local = functionScope.upvalues.get(i);
+	    if (local.scope >= enclosingScope.firstScope) {
+		function.upvalueDepths[i] = scopes.size() - 1 - local.scope;
+		function.upvalueSlots[i] = local.slot;
+	    }
+	    else {
+		function.upvalueDepths[i] = -1;
+		function.upvalueSlots[i] = enclosingScope.upvalues.indexOf(local);
+	    }
+	}
+
+	functionScope = enclosingScope;
 	currentFunction = enclosingFuction;
     }
 
-    private void resolveLocal(Expr expr, Token name) {
+    /** Returns the index of the upvalue through which function sees local. */
+    private int upvalueIndex(FunctionScope function, Local local) {
+	int index = function.upvalues.indexOf(local);
+	if (index != -1) { return index; }
+
+	local.captured = true;
+	if (local.scope < function.enclosing.firstScope) {
+	    upvalueIndex(function.enclosing, local); // relayed through the enclosing closure
+	}
+
+	function.upvalues.add(local);
+	return function.upvalues.size() - 1;
+    }
+
+    /** Returns the innermost local with the given name, or null for a global. */
+    private Local resolveLocal(Token name) {
 	for (int i = scopes.size() - 1; i >= 0; --i) {
-	    if (scopes.get(i).containsKey(name.lexeme)) {
-		interpreter.resolve(expr, scopes.size() - 1 - i);
-		return;
-	    }
+	    Local local = scopes.get(i).get(name.symbol);
+	    if (local != null) { return local; }
 	}
+
+	return null;
     }
     
 }
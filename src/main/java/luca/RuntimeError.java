@@ -1,12 +1,16 @@
 package luca;
 
-class RuntimeError extends RuntimeException {
+public class RuntimeError extends RuntimeException {
 
-    final Token token;
+    final int line;
 
     RuntimeError(Token token, String message) {
+	this(token.line, message);
+    }
+
+    public RuntimeError(int line, String message) {
 	super(message);
-	this.token = token; 
+	this.line = line; 
     }
     
 }
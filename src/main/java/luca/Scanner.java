@@ -1,58 +1,145 @@
 package luca; 
 
-import java.util.List;
-import java.util.ArrayList;
-import java.util.Map;
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
 
 import static luca.TokenType.*;
 
+/**
+ * Turns source text into tokens. The text is read through a window of
+ * chars that holds the tokens not yet consumed and whatever follows them
+ * up to the last refill, so neither the whole source nor the whole token
+ * list has to be in memory at once.
+ *
+ * Tokens are scanned a batch at a time into parallel int arrays of type
+ * ordinal, start, length and line. The Parser walks them with type() and
+ * advance(), and only the tokens it keeps are turned into Token objects,
+ * by token(). Punctuation and keywords get a shared lexeme and identifiers
+ * their interned name, so the only Strings made are number and string
+ * literals.
+ */
 class Scanner {
 
-    private static final Map<String, TokenType> keywords;
+    private static final int CHUNK = 1 << 16; // initial buffer size
+    private static final int BATCH = 1 << 10; // tokens scanned at a time
+
+    private static final TokenType[] TYPES = TokenType.values();
+    private static final String[] LEXEMES = new String[TYPES.length];
+    private static final int ERROR = -1; // a type for errors, reported when the Parser gets to them
 
     static {
-	keywords = new HashMap<>();                        
-	keywords.put("and", AND);                       
-	keywords.put("class", CLASS);                     
-	keywords.put("else", ELSE);                      
-	keywords.put("false", FALSE);                     
-	keywords.put("for", FOR);                       
-	keywords.put("fun", FUN);                       
-	keywords.put("if", IF);                        
-	keywords.put("nil", NIL);                       
-	keywords.put("or", OR);                        
-	keywords.put("print", PRINT);                     
-	keywords.put("return", RETURN);                    
-	keywords.put("super", SUPER);                     
-	keywords.put("this", THIS);                      
-	keywords.put("true", TRUE);                      
-	keywords.put("var", VAR);                       
-	keywords.put("while", WHILE);
+	String[] punctuation = { "(", ")", "{", "}", ",", ".", "-", "+", ";", "/", "*",
+				 "!", "!=", "=", "==", ">", ">=", "<", "<=" };
+	System.arraycopy(punctuation, 0, LEXEMES, 0, punctuation.length);
+	for (int type = AND.ordinal(); type <= WHILE.ordinal(); ++type) {
+	    LEXEMES[type] = TYPES[type].name().toLowerCase();
+	}
+	LEXEMES[EOF.ordinal()] = "";
     }
     
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>();
+    private final Reader source;
+    private char[] buffer = new char[CHUNK];
+    private int limit = 0;   // end of the chars read into buffer so far
+    private boolean exhausted = false;
     private int start = 0;   // tracks the beginning of the current lexeme
     private int current = 0; // represents the current unconsumed character
     private int line = 1; 
+    private int batchStart = 0; // where the batch's first token starts
+
+    // the batch, of which the Parser is at token position
+    private final int[] types = new int[BATCH];
+    private final int[] starts = new int[BATCH];
+    private final int[] lengths = new int[BATCH];
+    private final int[] lines = new int[BATCH];
+    private final String[] errors = new String[BATCH]; // the message of each ERROR
+    private int count = 0;
+    private int position = 0;
     
     Scanner(String source) {
+	this(new StringReader(source));
+    }
+
+    Scanner(Reader source) {
 	this.source = source; 
+	skipErrors();
     }
 
-    List<Token> scanTokens() {
-	while(!isAtEnd()) {
-	    start = current;
-	    scanToken(); 
+    /** Returns the lexeme every token of the type has, or null if it varies. */
+    static String lexemeOf(TokenType type) {
+	return LEXEMES[type.ordinal()];
+    }
+
+    /** Returns the type of the current token. */
+    TokenType type() {
+	return TYPES[types[position]];
+    }
+
+    int line() {
+	return lines[position];
+    }
+
+    /** Returns the current token as an object, for the Parser to keep. */
+    Token token() {
+	TokenType type = type();
+	int from = starts[position];
+	int length = lengths[position];
+	switch (type) {
+	    case IDENTIFIER:
+		// every occurrence of a name shares the interned String
+		int symbol = Symbols.intern(buffer, from, length);
+		return new Token(type, Symbols.nameOf(symbol), null, line(), symbol);
+	    case NUMBER:
+		String number = new String(buffer, from, length);
+		return new Token(type, number, Double.parseDouble(number), line());
+	    case STRING:
+		String string = new String(buffer, from, length);
+		return new Token(type, string, string.substring(1, length - 1), line()); // trim quotes
+	    default:
+		return new Token(type, LEXEMES[type.ordinal()], null, line());
 	}
+    }
 
-	tokens.add(new Token(EOF, "", null, line));
-	return tokens; 
+    /** Moves on to the next token. The EOF token is never left. */
+    void advance() {
+	if (type() == EOF) { return; }
+
+	++position;
+	skipErrors();
+    }
+
+    /** Reports the errors up to the next token, scanning more of them as need be. */
+    private void skipErrors() {
+	while (true) {
+	    if (position == count) { scanBatch(); }
+	    if (types[position] != ERROR) { return; }
+
+	    Luca.error(lines[position], errors[position]);
+	    ++position;
+	}
+    }
+
+    /** Replaces the batch, all of which the Parser is done with, by the tokens that follow it. */
+    private void scanBatch() {
+	count = 0;
+	position = 0;
+	batchStart = current;
+	while (count < BATCH) {
+	    if (isAtEnd()) {
+		start = current;
+		addToken(EOF);
+		break;
+	    }
+
+	    start = current;
+	    scanToken();
+	}
     }
 
     private void scanToken() {
-	char c = advance();
+	char c = advanceChar();
 	switch (c) {
 	    case '(': addToken(LEFT_PAREN); break;     
 	    case ')': addToken(RIGHT_PAREN); break;    
@@ -73,7 +160,7 @@ class Scanner {
 		    // consume the comment, but do not add a token
 		    // note that newline is not consumed, but will be in next call
 		    while (peek() != '\n' && !isAtEnd()) {
-			advance(); 
+			advanceChar();
 		    }
 		}
 		else {
@@ -95,50 +182,93 @@ class Scanner {
 		}
 		else {
 		    // report error when unexpected char encountered
-		    Luca.error(line, "Unexpected character.");
+		    addError("Unexpected character.");
 		}
 		break; 
 	}
     }
 
     private void identifier() {
-	while (isAlphaNumeric(peek())) { advance(); }
+	while (isAlphaNumeric(peek())) { advanceChar(); }
 
-	String text = source.substring(start, current);
-	TokenType type = keywords.getOrDefault(text, IDENTIFIER);
-	
-	addToken(type); 
+	addToken(keyword());
+    }
+
+    /** Returns the keyword the lexeme spells, or IDENTIFIER, by its first chars and its length. */
+    private TokenType keyword() {
+	switch (buffer[start]) {
+	    case 'a': return keyword(1, "nd", AND);
+	    case 'c': return keyword(1, "lass", CLASS);
+	    case 'e': return keyword(1, "lse", ELSE);
+	    case 'f':
+		if (current - start > 1) {
+		    switch (buffer[start + 1]) {
+			case 'a': return keyword(2, "lse", FALSE);
+			case 'o': return keyword(2, "r", FOR);
+			case 'u': return keyword(2, "n", FUN);
+		    }
+		}
+		break;
+	    case 'i': return keyword(1, "f", IF);
+	    case 'n': return keyword(1, "il", NIL);
+	    case 'o': return keyword(1, "r", OR);
+	    case 'p': return keyword(1, "rint", PRINT);
+	    case 'r': return keyword(1, "eturn", RETURN);
+	    case 's': return keyword(1, "uper", SUPER);
+	    case 't':
+		if (current - start > 1) {
+		    switch (buffer[start + 1]) {
+			case 'h': return keyword(2, "is", THIS);
+			case 'r': return keyword(2, "ue", TRUE);
+		    }
+		}
+		break;
+	    case 'v': return keyword(1, "ar", VAR);
+	    case 'w': return keyword(1, "hile", WHILE);
+	}
+
+	return IDENTIFIER;
+    }
+
+    private TokenType keyword(int from, String rest, TokenType type) {
+	if (current - start != from + rest.length()) { return IDENTIFIER; }
+
+	for (int i = 0; i < rest.length(); ++i) {
+	    if (buffer[start + from + i] != rest.charAt(i)) { return IDENTIFIER; }
+	}
+
+	return type;
     }
 
     private void number() {
-	while (isDigit(peek())) { advance(); }
+	while (isDigit(peek())) { advanceChar(); }
 
 	if (peek() == '.' && isDigit(peekNext())) {
-	    advance();
- 	    while (isDigit(peek())) { advance(); }
+	    advanceChar();
+ 	    while (isDigit(peek())) { advanceChar(); }
 	}
 
-	addToken(NUMBER, Double.parseDouble(source.substring(start, current))); 
+	addToken(NUMBER);
     }
 
     private void string() {
 	while (peek() != '"' & !isAtEnd()) {
 	    if (peek() == '\n') { ++line; }
-	    advance(); 
+	    advanceChar();
 	}
 
 	if (isAtEnd()) {
-	    Luca.error(line, "Unterminated string.");
+	    addError("Unterminated string.");
 	    return; 
 	}
 
-	advance(); // advance past closing '"' char
-	addToken(STRING, source.substring(start + 1, current - 1)); // trim quotes
+	advanceChar(); // advance past closing '"' char
+	addToken(STRING);
     }
 
     private boolean match(char expected) {                 
 	if (isAtEnd()) { return false; }
-	if (source.charAt(current) != expected) { return false; } 
+	if (buffer[current] != expected) { return false; } 
 	
 	++current;                                           
 	return true;                                         
@@ -149,16 +279,16 @@ class Scanner {
 	    return '\0'; 
 	}
 	else {
-	    return source.charAt(current); 
+	    return buffer[current]; 
 	}
     }
 
     private char peekNext() {
-	if (current + 1 >= source.length()) {
+	if (!available(1)) {
 	    return '\0';
 	}
 	else {
-	    return source.charAt(current + 1); 
+	    return buffer[current + 1]; 
 	}
     }
 
@@ -177,20 +307,66 @@ class Scanner {
     }
     
     private boolean isAtEnd() {
-	return current >= source.length(); 
+	return !available(0); 
     }
 
-    private char advance() {
-	return source.charAt(current++); 
+    private char advanceChar() {
+	return buffer[current++]; 
     }
 
-    private void addToken(TokenType type) {                
-	addToken(type, null);                                
-    }                                                      
+    /** Returns whether buffer[current + ahead] holds a char of the source, refilling it if need be. */
+    private boolean available(int ahead) {
+	while (current + ahead >= limit) { // refill() moves current
+	    if (exhausted) { return false; }
+	    refill();
+	}
+
+	return true;
+    }
+
+    /** Drops everything before the batch and reads another chunk after it. */
+    private void refill() {
+	if (batchStart > 0) {
+	    System.arraycopy(buffer, batchStart, buffer, 0, limit - batchStart);
+	    limit -= batchStart;
+	    current -= batchStart;
+	    start -= batchStart;
+	    for (int i = 0; i < count; ++i) {
+		starts[i] -= batchStart;
+	    }
+	    batchStart = 0;
+	}
+	if (limit == buffer.length) {
+	    buffer = Arrays.copyOf(buffer, 2 * buffer.length); // the batch fills the buffer
+	}
+
+	try {
+	    int read = source.read(buffer, limit, buffer.length - limit);
+	    if (read == -1) {
+		exhausted = true;
+	    }
+	    else {
+		limit += read;
+	    }
+	}
+	catch (IOException e) {
+	    throw new UncheckedIOException(e);
+	}
+    }
+
+    private void addToken(TokenType type) {
+	types[count] = type.ordinal();
+	starts[count] = start;
+	lengths[count] = current - start;
+	lines[count] = line;
+	++count;
+    }
 
-    private void addToken(TokenType type, Object literal) {
-	String lexeme = source.substring(start, current);      
-	tokens.add(new Token(type, lexeme, literal, line));    
+    private void addError(String message) {
+	types[count] = ERROR;
+	errors[count] = message;
+	lines[count] = line;
+	++count;
     }
 
 }
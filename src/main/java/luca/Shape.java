@@ -0,0 +1,89 @@
+package luca;
+
+import java.util.Arrays;
+
+/**
+ * A hidden class: the field layout shared by every LucaInstance that added
+ * the same fields in the same order. Shapes are immutable and form a tree;
+ * adding a field follows (or creates) a transition to a child shape. An
+ * instance whose layout would make a shape too wide, or that branches off
+ * a shape that already has too many transitions, is put in dictionary mode.
+ * Fields are identified by their name's symbol; with at most MAX_FIELDS
+ * fields and MAX_TRANSITIONS children, a scan is cheaper than hashing.
+ *
+ * Most shapes are leaves, and most of the rest have one child, so the
+ * first transition is kept inline and the arrays for more are only made,
+ * and grown, as they are needed.
+ */
+final class Shape {
+
+    static final Shape EMPTY = new Shape(new int[0]);
+    static final Shape DICTIONARY = new Shape(new int[0]); // never cached by a site
+
+    private static final int MAX_FIELDS = 64;
+    private static final int MAX_TRANSITIONS = 16;
+
+    private final int[] symbols; // field symbols by offset
+    private int firstSymbol;
+    private Shape first = null; // the first transition
+    private int[] transitionSymbols = null; // the ones after it
+    private Shape[] transitions = null;
+    private int transitionCount = 0; // the first included
+
+    private Shape(int[] symbols) {
+	this.symbols = symbols;
+    }
+
+    int size() {
+	return symbols.length;
+    }
+
+    /** Returns the slot holding the field, or -1 if this layout lacks it. */
+    int offsetOf(int symbol) {
+	for (int i = 0; i < symbols.length; ++i) {
+	    if (symbols[i] == symbol) { return i; }
+	}
+
+	return -1;
+    }
+
+    int symbolAt(int offset) {
+	return symbols[offset];
+    }
+
+    /** Returns the shape with the field appended, or null if the instance should become a dictionary. */
+    Shape withField(int symbol) {
+	if (first != null && firstSymbol == symbol) { return first; }
+	for (int i = 0; i < transitionCount - 1; ++i) {
+	    if (transitionSymbols[i] == symbol) { return transitions[i]; }
+	}
+
+	if (symbols.length == MAX_FIELDS || transitionCount == MAX_TRANSITIONS) {
+	    return null;
+	}
+
+	int[] nextSymbols = Arrays.copyOf(symbols, symbols.length + 1);
+	nextSymbols[symbols.length] = symbol;
+	Shape next = new Shape(nextSymbols);
+	if (first == null) {
+	    firstSymbol = symbol;
+	    first = next;
+	}
+	else {
+	    int i = transitionCount - 1;
+	    if (transitions == null) {
+		transitionSymbols = new int[2];
+		transitions = new Shape[2];
+	    }
+	    else if (i == transitions.length) {
+		transitionSymbols = Arrays.copyOf(transitionSymbols, 2 * i);
+		transitions = Arrays.copyOf(transitions, 2 * i);
+	    }
+	    transitionSymbols[i] = symbol;
+	    transitions[i] = next;
+	}
+	++transitionCount;
+	return next;
+    }
+    
+}
@@ -0,0 +1,47 @@
+package luca;
+
+/**
+ * Operand-type specializations of an Expr.Binary site. A site starts out
+ * UNINITIALIZED, specializes to the operand types seen on its first
+ * evaluation, and falls back to GENERIC for good the first time a guard
+ * fails, so monomorphic sites skip the generic type checks and the
+ * dispatch on the operator token.
+ */
+final class Specialization {
+
+    static final int UNINITIALIZED = 0;
+    static final int GENERIC = 1;
+    static final int ADD_NUMBERS = 2;
+    static final int ADD_STRINGS = 3;
+    static final int SUBTRACT_NUMBERS = 4;
+    static final int MULTIPLY_NUMBERS = 5;
+    static final int DIVIDE_NUMBERS = 6;
+    static final int GREATER_NUMBERS = 7;
+    static final int GREATER_EQUAL_NUMBERS = 8;
+    static final int LESS_NUMBERS = 9;
+    static final int LESS_EQUAL_NUMBERS = 10;
+
+    private Specialization() {}
+
+    static int forOperands(TokenType operator, Object left, Object right) {
+	if (left instanceof Double && right instanceof Double) {
+	    switch (operator) {
+		case PLUS: return ADD_NUMBERS;
+		case MINUS: return SUBTRACT_NUMBERS;
+		case STAR: return MULTIPLY_NUMBERS;
+		case SLASH: return DIVIDE_NUMBERS;
+		case GREATER: return GREATER_NUMBERS;
+		case GREATER_EQUAL: return GREATER_EQUAL_NUMBERS;
+		case LESS: return LESS_NUMBERS;
+		case LESS_EQUAL: return LESS_EQUAL_NUMBERS;
+	    }
+	}
+	else if (operator == TokenType.PLUS && ConcatString.isString(left) && ConcatString.isString(right)) {
+	    return ADD_STRINGS;
+	}
+
+	// equality already works on any operands, so it is never specialized
+	return GENERIC;
+    }
+    
+}
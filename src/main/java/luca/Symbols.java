@@ -0,0 +1,77 @@
+package luca;
+
+import java.util.List;
+import java.util.ArrayList;
+
+/**
+ * The identifier table. The Scanner interns every identifier here, which
+ * gives each distinct name a single String and a dense int ID, its symbol.
+ * Tables keyed by name can then be arrays indexed by symbol. The table is
+ * never cleared: REPL globals outlive the tokens of the line that made them.
+ */
+final class Symbols {
+
+    // open addressing on the hash of the name; an entry is a symbol + 1, or 0 if free
+    private static int[] table = new int[1 << 10];
+    private static final List<String> names = new ArrayList<>();
+
+    private Symbols() {}
+
+    /** Returns the name's symbol, assigning the next free one if it is new. */
+    static int intern(String name) {
+	return intern(name.toCharArray(), 0, name.length());
+    }
+
+    /** Same as intern(String), for a name the Scanner hasn't copied out of its buffer. */
+    static int intern(char[] chars, int offset, int length) {
+	int hash = 0;
+	for (int i = offset; i < offset + length; ++i) {
+	    hash = 31 * hash + chars[i];
+	}
+
+	int mask = table.length - 1;
+	for (int index = (hash ^ (hash >>> 16)) & mask; ; index = (index + 1) & mask) {
+	    int symbol = table[index] - 1;
+	    if (symbol == -1) {
+		symbol = names.size();
+		names.add(new String(chars, offset, length));
+		table[index] = symbol + 1;
+		if (2 * names.size() > table.length) { grow(); }
+		return symbol;
+	    }
+	    if (spells(names.get(symbol), chars, offset, length)) { return symbol; }
+	}
+    }
+
+    private static boolean spells(String name, char[] chars, int offset, int length) {
+	if (name.length() != length) { return false; }
+
+	for (int i = 0; i < length; ++i) {
+	    if (name.charAt(i) != chars[offset + i]) { return false; }
+	}
+
+	return true;
+    }
+
+    private static void grow() {
+	table = new int[2 * table.length];
+	int mask = table.length - 1;
+	for (int symbol = 0; symbol < names.size(); ++symbol) {
+	    int hash = names.get(symbol).hashCode(); // the same hash intern() computes
+	    int index = (hash ^ (hash >>> 16)) & mask;
+	    while (table[index] != 0) {
+		index = (index + 1) & mask;
+	    }
+	    table[index] = symbol + 1;
+	}
+    }
+
+    static String nameOf(int symbol) {
+	return names.get(symbol);
+    }
+
+    static int count() {
+	return names.size();
+    }
+
+}
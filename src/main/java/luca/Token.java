@@ -1,16 +1,22 @@
 package luca; 
 
-class Token {                                                     
-  final TokenType type;                                           
-  final String lexeme;                                            
-  final Object literal;                                           
-  final int line; 
+public class Token {                                                     
+  public final TokenType type;                                           
+  public final String lexeme;                                            
+  public final Object literal;                                           
+  public final int line; 
+  public final int symbol; // for an IDENTIFIER, its ID in Symbols, otherwise -1
 
   Token(TokenType type, String lexeme, Object literal, int line) {
+    this(type, lexeme, literal, line, -1);
+  }
+
+  Token(TokenType type, String lexeme, Object literal, int line, int symbol) {
     this.type = type;                                             
     this.lexeme = lexeme;                                         
     this.literal = literal;                                       
     this.line = line;                                             
+    this.symbol = symbol;
   }                                                               
 
   public String toString() {                                      
@@ -0,0 +1,276 @@
+package luca;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static luca.TreeWriter.*;
+
+/** Rebuilds a tree written by TreeWriter, annotations included. */
+class TreeReader {
+
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final byte[] bytes;
+    private int position;
+    private final List<String> strings = new ArrayList<>();
+    private int[] symbols = new int[64]; // of strings that are names, or -1 until looked up
+    private int line = 0; // of the last token read
+
+    TreeReader(byte[] bytes, int position) {
+	this.bytes = bytes;
+	this.position = position;
+    }
+
+    List<Stmt> read() throws IOException {
+	try {
+	    List<Stmt> statements = readStatements();
+	    if (position != bytes.length) { throw new IOException("trailing bytes"); }
+	    return statements;
+	}
+	catch (IndexOutOfBoundsException | IllegalArgumentException | NegativeArraySizeException e) {
+	    throw new IOException("corrupt tree", e);
+	}
+    }
+
+    private List<Stmt> readStatements() throws IOException {
+	int count = readCount();
+	List<Stmt> statements = new ArrayList<>(count);
+	for (int i = 0; i < count; ++i) {
+	    statements.add(readStmt());
+	}
+
+	return statements;
+    }
+
+    private Stmt readStmt() throws IOException {
+	int tag = readByte();
+	switch (tag) {
+	    case 0:
+		return null;
+	    case BLOCK: {
+		Stmt.Block stmt = new Stmt.Block(readStatements());
+		stmt.frameSize = readInt();
+		return stmt;
+	    }
+	    case CLASS: {
+		Token name = readToken();
+		int count = readCount();
+		List<Stmt.Function> methods = new ArrayList<>(count);
+		for (int i = 0; i < count; ++i) {
+		    if (readByte() != FUNCTION) { throw new IOException("bad method"); }
+		    methods.add(readFunction());
+		}
+		Stmt.Class stmt = new Stmt.Class(name, methods);
+		stmt.slot = readInt() - 1;
+		stmt.captured = readBoolean();
+		return stmt;
+	    }
+	    case EXPRESSION:
+		return new Stmt.Expression(readExpr());
+	    case FUNCTION:
+		return readFunction();
+	    case IF:
+		return new Stmt.If(readExpr(), readStmt(), readStmt());
+	    case PRINT:
+		return new Stmt.Print(readExpr());
+	    case RETURN: {
+		Stmt.Return stmt = new Stmt.Return(readToken(), readExpr());
+		stmt.tailCall = readBoolean();
+		return stmt;
+	    }
+	    case VAR: {
+		Stmt.Var stmt = new Stmt.Var(readToken(), readExpr());
+		stmt.slot = readInt() - 1;
+		stmt.captured = readBoolean();
+		return stmt;
+	    }
+	    case WHILE:
+		return new Stmt.While(readExpr(), readStmt());
+	    default:
+		throw new IOException("bad statement tag " + tag);
+	}
+    }
+
+    private Stmt.Function readFunction() throws IOException {
+	Token name = readToken();
+	int count = readCount();
+	List<Token> params = new ArrayList<>(count);
+	for (int i = 0; i < count; ++i) {
+	    params.add(readToken());
+	}
+	Stmt.Function stmt = new Stmt.Function(name, params, readStatements());
+	stmt.slot = readInt() - 1;
+	stmt.captured = readBoolean();
+	stmt.frameSize = readInt();
+	int length = readCount() - 1;
+	if (length != -1) {
+	    stmt.capturedParams = new boolean[length];
+	    for (int i = 0; i < length; ++i) {
+		stmt.capturedParams[i] = readBoolean();
+	    }
+	}
+	stmt.upvalueDepths = readInts();
+	stmt.upvalueSlots = readInts();
+	return stmt;
+    }
+
+    private Expr readExpr() throws IOException {
+	int tag = readByte();
+	switch (tag) {
+	    case 0:
+		return null;
+	    case ASSIGN: {
+		Expr.Assign expr = new Expr.Assign(readToken(), readExpr());
+		expr.depth = readInt() - 1;
+		expr.slot = readInt() - 1;
+		expr.upvalue = readBoolean();
+		expr.cell = readBoolean();
+		return expr;
+	    }
+	    case BINARY: {
+		Expr.Binary expr = new Expr.Binary(readExpr(), readToken(), readExpr());
+		expr.numericOperands = readBoolean();
+		return expr;
+	    }
+	    case CALL: {
+		Expr callee = readExpr();
+		Token paren = readToken();
+		int count = readCount();
+		List<Expr> arguments = new ArrayList<>(count);
+		for (int i = 0; i < count; ++i) {
+		    arguments.add(readExpr());
+		}
+		return new Expr.Call(callee, paren, arguments);
+	    }
+	    case GET:
+		return new Expr.Get(readExpr(), readToken());
+	    case GROUPING:
+		return new Expr.Grouping(readExpr());
+	    case LITERAL:
+		return new Expr.Literal(readValue());
+	    case LOGICAL:
+		return new Expr.Logical(readExpr(), readToken(), readExpr());
+	    case SET:
+		return new Expr.Set(readExpr(), readToken(), readExpr());
+	    case UNARY:
+		return new Expr.Unary(readToken(), readExpr());
+	    case VARIABLE: {
+		Expr.Variable expr = new Expr.Variable(readToken());
+		expr.depth = readInt() - 1;
+		expr.slot = readInt() - 1;
+		expr.upvalue = readBoolean();
+		expr.cell = readBoolean();
+		return expr;
+	    }
+	    default:
+		throw new IOException("bad expression tag " + tag);
+	}
+    }
+
+    private Object readValue() throws IOException {
+	int tag = readByte();
+	switch (tag) {
+	    case NIL:    return null;
+	    case FALSE:  return false;
+	    case TRUE:   return true;
+	    case NUMBER: return Double.longBitsToDouble(readLong());
+	    case STRING: return readString();
+	    default:
+		throw new IOException("bad literal tag " + tag);
+	}
+    }
+
+    /** Rebuilds the token as the Scanner would have made it. */
+    private Token readToken() throws IOException {
+	TokenType type = TYPES[readByte()];
+	String lexeme = Scanner.lexemeOf(type);
+	int index = lexeme == null ? readStringIndex() : -1;
+	int delta = readInt();
+	line += (delta >>> 1) ^ -(delta & 1);
+	switch (type) {
+	    case IDENTIFIER:
+		if (symbols[index] == -1) { symbols[index] = Symbols.intern(strings.get(index)); }
+		return new Token(type, Symbols.nameOf(symbols[index]), null, line, symbols[index]);
+	    case NUMBER:
+		lexeme = strings.get(index);
+		return new Token(type, lexeme, Double.parseDouble(lexeme), line);
+	    case STRING:
+		lexeme = strings.get(index);
+		return new Token(type, lexeme, lexeme.substring(1, lexeme.length() - 1), line);
+	    default:
+		return new Token(type, lexeme, null, line);
+	}
+    }
+
+    private String readString() {
+	return strings.get(readStringIndex());
+    }
+
+    private int readStringIndex() {
+	int index = readInt();
+	if (index != 0) { return index - 1; }
+
+	int length = readInt();
+	strings.add(new String(bytes, position, length, StandardCharsets.UTF_8));
+	position += length;
+	if (strings.size() > symbols.length) {
+	    symbols = Arrays.copyOf(symbols, 2 * symbols.length);
+	}
+	symbols[strings.size() - 1] = -1;
+	return strings.size() - 1;
+    }
+
+    private int[] readInts() {
+	int length = readCount() - 1;
+	if (length == -1) { return null; }
+
+	int[] values = new int[length];
+	for (int i = 0; i < length; ++i) {
+	    values[i] = readInt() - 1;
+	}
+
+	return values;
+    }
+
+    /**
+     * Reads the length of something that takes at least a byte per element,
+     * so a corrupt one is caught before anything that size is allocated.
+     */
+    private int readCount() {
+	int count = readInt();
+	if (count < 0 || count > bytes.length - position + 1) {
+	    throw new IllegalArgumentException("bad count " + count);
+	}
+	return count;
+    }
+
+    private boolean readBoolean() {
+	return readByte() != 0;
+    }
+
+    private int readInt() {
+	int value = 0;
+	for (int shift = 0; ; shift += 7) {
+	    int b = readByte();
+	    value |= (b & 0x7f) << shift;
+	    if ((b & 0x80) == 0) { return value; }
+	}
+    }
+
+    private long readLong() {
+	long value = 0;
+	for (int i = 0; i < 8; ++i) {
+	    value = (value << 8) | readByte();
+	}
+
+	return value;
+    }
+
+    private int readByte() {
+	return bytes[position++] & 0xff;
+    }
+
+}
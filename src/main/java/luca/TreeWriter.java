@@ -0,0 +1,341 @@
+package luca;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.HashMap;
+
+/**
+ * Writes a resolved tree in the form TreeReader reads back: a tag byte
+ * per node followed by its fields, then the annotations the Resolver,
+ * Optimizer and NumericInference filled in. What the Interpreter caches
+ * at runtime is left out.
+ * Each distinct String is written once and referred to by index after
+ * that. Small ints are written in as few bytes as they need.
+ */
+class TreeWriter implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+    // node tags; 0 stands for a null node
+    static final int ASSIGN = 1, BINARY = 2, CALL = 3, GET = 4, GROUPING = 5,
+	LITERAL = 6, LOGICAL = 7, SET = 8, UNARY = 9, VARIABLE = 10;
+    static final int BLOCK = 1, CLASS = 2, EXPRESSION = 3, FUNCTION = 4, IF = 5,
+	PRINT = 6, RETURN = 7, VAR = 8, WHILE = 9;
+
+    // tags of literal values
+    static final int NIL = 0, FALSE = 1, TRUE = 2, NUMBER = 3, STRING = 4;
+
+    private final OutputStream out;
+    private byte[] bytes = new byte[1 << 16]; // the tree is written here first, then to out
+    private int size = 0;
+    private final Map<String,Integer> strings = new HashMap<>();
+    private int line = 0; // of the last token written
+
+    TreeWriter(OutputStream out) {
+	this.out = out;
+    }
+
+    void write(List<Stmt> statements) throws IOException {
+	writeStatements(statements);
+	out.write(bytes, 0, size);
+	out.flush();
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+	writeByte(BLOCK);
+	writeStatements(stmt.statements);
+	writeInt(stmt.frameSize);
+	return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+	writeByte(CLASS);
+	writeToken(stmt.name);
+	writeInt(stmt.methods.size());
+	for (Stmt.Function method : stmt.methods) {
+	    visitFunctionStmt(method);
+	}
+	writeInt(stmt.slot + 1);
+	writeBoolean(stmt.captured);
+	return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+	writeByte(EXPRESSION);
+	write(stmt.expression);
+	return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+	writeByte(FUNCTION);
+	writeToken(stmt.name);
+	writeInt(stmt.params.size());
+	for (Token param : stmt.params) {
+	    writeToken(param);
+	}
+	writeStatements(stmt.body);
+	writeInt(stmt.slot + 1);
+	writeBoolean(stmt.captured);
+	writeInt(stmt.frameSize);
+	// a method's are null, as methods aren't resolved
+	if (stmt.capturedParams == null) {
+	    writeInt(0);
+	}
+	else {
+	    writeInt(stmt.capturedParams.length + 1);
+	    for (boolean captured : stmt.capturedParams) {
+		writeBoolean(captured);
+	    }
+	}
+	writeInts(stmt.upvalueDepths);
+	writeInts(stmt.upvalueSlots);
+	return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+	writeByte(IF);
+	write(stmt.condition);
+	write(stmt.thenBranch);
+	write(stmt.elseBranch);
+	return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+	writeByte(PRINT);
+	write(stmt.expression);
+	return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+	writeByte(RETURN);
+	writeToken(stmt.keyword);
+	write(stmt.value);
+	writeBoolean(stmt.tailCall);
+	return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+	writeByte(VAR);
+	writeToken(stmt.name);
+	write(stmt.initializer);
+	writeInt(stmt.slot + 1);
+	writeBoolean(stmt.captured);
+	return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+	writeByte(WHILE);
+	write(stmt.condition);
+	write(stmt.body);
+	return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+	writeByte(ASSIGN);
+	writeToken(expr.name);
+	write(expr.value);
+	writeInt(expr.depth + 1);
+	writeInt(expr.slot + 1);
+	writeBoolean(expr.upvalue);
+	writeBoolean(expr.cell);
+	return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+	writeByte(BINARY);
+	write(expr.left);
+	writeToken(expr.operator);
+	write(expr.right);
+	writeBoolean(expr.numericOperands);
+	return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+	writeByte(CALL);
+	write(expr.callee);
+	writeToken(expr.paren);
+	writeInt(expr.arguments.size());
+	for (Expr argument : expr.arguments) {
+	    write(argument);
+	}
+	return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+	writeByte(GET);
+	write(expr.object);
+	writeToken(expr.name);
+	return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+	writeByte(GROUPING);
+	write(expr.expression);
+	return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+	writeByte(LITERAL);
+	Object value = expr.value;
+	if (value == null) {
+	    writeByte(NIL);
+	}
+	else if (value instanceof Boolean) {
+	    writeByte((boolean) value ? TRUE : FALSE);
+	}
+	else if (value instanceof Double) {
+	    writeByte(NUMBER);
+	    long bits = Double.doubleToLongBits((double) value);
+	    for (int shift = 56; shift >= 0; shift -= 8) {
+		writeByte((int) (bits >>> shift));
+	    }
+	}
+	else {
+	    writeByte(STRING);
+	    writeString((String) value);
+	}
+	return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+	writeByte(LOGICAL);
+	write(expr.left);
+	writeToken(expr.operator);
+	write(expr.right);
+	return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+	writeByte(SET);
+	write(expr.object);
+	writeToken(expr.name);
+	write(expr.value);
+	return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+	writeByte(UNARY);
+	writeToken(expr.operator);
+	write(expr.right);
+	return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+	writeByte(VARIABLE);
+	writeToken(expr.name);
+	writeInt(expr.depth + 1);
+	writeInt(expr.slot + 1);
+	writeBoolean(expr.upvalue);
+	writeBoolean(expr.cell);
+	return null;
+    }
+
+    private void writeStatements(List<Stmt> statements) {
+	writeInt(statements.size());
+	for (Stmt statement : statements) {
+	    write(statement);
+	}
+    }
+
+    private void write(Stmt stmt) {
+	if (stmt == null) {
+	    writeByte(0);
+	}
+	else {
+	    stmt.accept(this);
+	}
+    }
+
+    private void write(Expr expr) {
+	if (expr == null) {
+	    writeByte(0);
+	}
+	else {
+	    expr.accept(this);
+	}
+    }
+
+    /**
+     * A token's literal and symbol follow from its type and lexeme, so
+     * only those and its line are kept. The lexeme is left out when the
+     * type implies it, and the line is kept as the change from the last.
+     */
+    private void writeToken(Token token) {
+	writeByte(token.type.ordinal());
+	if (Scanner.lexemeOf(token.type) == null) { writeString(token.lexeme); }
+	int delta = token.line - line;
+	writeInt((delta << 1) ^ (delta >> 31)); // small either way
+	line = token.line;
+    }
+
+    private void writeString(String string) {
+	Integer index = strings.get(string);
+	if (index != null) {
+	    writeInt(index + 1);
+	    return;
+	}
+
+	strings.put(string, strings.size());
+	byte[] encoded = string.getBytes(StandardCharsets.UTF_8);
+	writeInt(0); // new string, which gets the next index
+	writeInt(encoded.length);
+	for (byte b : encoded) {
+	    writeByte(b);
+	}
+    }
+
+    /** Writes null as 0 and an array of n ints as n + 1, then ints that may be -1. */
+    private void writeInts(int[] values) {
+	if (values == null) {
+	    writeInt(0);
+	    return;
+	}
+
+	writeInt(values.length + 1);
+	for (int value : values) {
+	    writeInt(value + 1);
+	}
+    }
+
+    private void writeBoolean(boolean value) {
+	writeByte(value ? 1 : 0);
+    }
+
+    /** Writes a non-negative int seven bits at a time, low bits first. */
+    private void writeInt(int value) {
+	while ((value & ~0x7f) != 0) {
+	    writeByte((value & 0x7f) | 0x80);
+	    value >>>= 7;
+	}
+	writeByte(value);
+    }
+
+    private void writeByte(int value) {
+	if (size == bytes.length) {
+	    bytes = Arrays.copyOf(bytes, 2 * bytes.length);
+	}
+	bytes[size++] = (byte) value;
+    }
+
+}
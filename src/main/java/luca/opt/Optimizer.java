@@ -0,0 +1,319 @@
+package luca.opt;
+
+import java.util.List;
+import java.util.ArrayList;
+
+import luca.Expr;
+import luca.Stmt;
+import luca.Token;
+import luca.TokenType;
+
+/**
+ * Simplifies the tree once the Resolver is done with it: folds operators
+ * whose operands are literals, prunes ifs and whiles with a literal
+ * condition and drops statements that follow an unconditional return.
+ *
+ * Nodes are rebuilt rather than modified, and only when something under
+ * them changed. A rebuilt node gets the Resolver's annotations copied
+ * over. Nothing is ever moved between scopes, so every (depth, slot)
+ * pair stays valid. Operations that fail at runtime, like 1 + "a", are
+ * left alone so that they still raise their error.
+ */
+public class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+
+    public List<Stmt> optimize(List<Stmt> statements) {
+	List<Stmt> optimized = new ArrayList<>();
+	for (Stmt statement : statements) {
+	    Stmt result = optimize(statement);
+	    if (result == null) { continue; } // removed
+
+	    optimized.add(result);
+	    if (alwaysReturns(result)) { break; } // the rest is unreachable
+	}
+
+	return optimized;
+    }
+
+    /** Returns the optimized statement, or null if it does nothing. */
+    private Stmt optimize(Stmt stmt) {
+	return stmt.accept(this);
+    }
+
+    private Expr optimize(Expr expr) {
+	return expr.accept(this);
+    }
+
+    private boolean alwaysReturns(Stmt stmt) {
+	if (stmt instanceof Stmt.Return) {
+	    return true;
+	}
+	else if (stmt instanceof Stmt.Block) {
+	    List<Stmt> statements = ((Stmt.Block) stmt).statements;
+	    return !statements.isEmpty() && alwaysReturns(statements.get(statements.size() - 1));
+	}
+	else if (stmt instanceof Stmt.If) {
+	    Stmt.If _if = (Stmt.If) stmt;
+	    return _if.elseBranch != null && alwaysReturns(_if.thenBranch) && alwaysReturns(_if.elseBranch);
+	}
+
+	return false;
+    }
+
+    /** Branches and loop bodies can't be null, so a removed one becomes an empty block. */
+    private Stmt orEmpty(Stmt stmt) {
+	return stmt != null ? stmt : new Stmt.Block(new ArrayList<>());
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+	List<Stmt> statements = optimize(stmt.statements);
+	if (statements.isEmpty()) { return null; }
+	if (statements.equals(stmt.statements)) { return stmt; }
+
+	Stmt.Block block = new Stmt.Block(statements);
+	block.frameSize = stmt.frameSize;
+	return block;
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+	return stmt; // methods aren't resolved yet
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+	Expr expression = optimize(stmt.expression);
+	if (expression instanceof Expr.Literal) { return null; }
+	if (expression == stmt.expression) { return stmt; }
+
+	return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+	List<Stmt> body = optimize(stmt.body);
+	if (body.equals(stmt.body)) { return stmt; }
+
+	Stmt.Function function = new Stmt.Function(stmt.name, stmt.params, body);
+	function.slot = stmt.slot;
+	function.captured = stmt.captured;
+	function.frameSize = stmt.frameSize;
+	function.capturedParams = stmt.capturedParams;
+	function.upvalueDepths = stmt.upvalueDepths;
+	function.upvalueSlots = stmt.upvalueSlots;
+	return function;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+	Expr condition = optimize(stmt.condition);
+	Stmt thenBranch = optimize(stmt.thenBranch);
+	Stmt elseBranch = stmt.elseBranch == null ? null : optimize(stmt.elseBranch);
+
+	if (condition instanceof Expr.Literal) {
+	    return isTruthy(((Expr.Literal) condition).value) ? thenBranch : elseBranch;
+	}
+	if (condition == stmt.condition && thenBranch == stmt.thenBranch && elseBranch == stmt.elseBranch) {
+	    return stmt;
+	}
+
+	return new Stmt.If(condition, orEmpty(thenBranch), elseBranch);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+	Expr expression = optimize(stmt.expression);
+	if (expression == stmt.expression) { return stmt; }
+
+	return new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+	if (stmt.value == null) { return stmt; }
+
+	Expr value = optimize(stmt.value);
+	if (value == stmt.value) { return stmt; }
+
+	Stmt.Return _return = new Stmt.Return(stmt.keyword, value);
+	_return.tailCall = stmt.tailCall;
+	return _return;
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+	if (stmt.initializer == null) { return stmt; }
+
+	Expr initializer = optimize(stmt.initializer);
+	if (initializer == stmt.initializer) { return stmt; }
+
+	Stmt.Var var = new Stmt.Var(stmt.name, initializer);
+	var.slot = stmt.slot;
+	var.captured = stmt.captured;
+	return var;
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+	Expr condition = optimize(stmt.condition);
+	if (condition instanceof Expr.Literal && !isTruthy(((Expr.Literal) condition).value)) {
+	    return null;
+	}
+
+	Stmt body = optimize(stmt.body);
+	if (condition == stmt.condition && body == stmt.body) { return stmt; }
+
+	return new Stmt.While(condition, orEmpty(body));
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+	Expr value = optimize(expr.value);
+	if (value == expr.value) { return expr; }
+
+	Expr.Assign assign = new Expr.Assign(expr.name, value);
+	assign.depth = expr.depth;
+	assign.slot = expr.slot;
+	assign.upvalue = expr.upvalue;
+	assign.cell = expr.cell;
+	return assign;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+	Expr left = optimize(expr.left);
+	Expr right = optimize(expr.right);
+
+	if (left instanceof Expr.Literal && right instanceof Expr.Literal) {
+	    Expr folded = fold(expr.operator, ((Expr.Literal) left).value, ((Expr.Literal) right).value);
+	    if (folded != null) { return folded; }
+	}
+	if (left == expr.left && right == expr.right) { return expr; }
+
+	return new Expr.Binary(left, expr.operator, right);
+    }
+
+    /** Returns the literal the operator evaluates to, or null if it would be a runtime error. */
+    private Expr fold(Token operator, Object left, Object right) {
+	switch (operator.type) {
+	    case EQUAL_EQUAL: return new Expr.Literal(isEqual(left, right));
+	    case BANG_EQUAL:  return new Expr.Literal(!isEqual(left, right));
+	}
+
+	if (left instanceof String && right instanceof String && operator.type == TokenType.PLUS) {
+	    return new Expr.Literal((String) left + (String) right);
+	}
+	if (!(left instanceof Double && right instanceof Double)) { return null; }
+
+	double a = (double) left;
+	double b = (double) right;
+	switch (operator.type) {
+	    case GREATER:       return new Expr.Literal(a > b);
+	    case GREATER_EQUAL: return new Expr.Literal(a >= b);
+	    case LESS:          return new Expr.Literal(a < b);
+	    case LESS_EQUAL:    return new Expr.Literal(a <= b);
+	    case PLUS:          return new Expr.Literal(a + b);
+	    case MINUS:         return new Expr.Literal(a - b);
+	    case STAR:          return new Expr.Literal(a * b);
+	    case SLASH:         return new Expr.Literal(a / b);
+	}
+
+	return null;
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+	Expr callee = optimize(expr.callee);
+	List<Expr> arguments = new ArrayList<>();
+	for (Expr argument : expr.arguments) {
+	    arguments.add(optimize(argument));
+	}
+	if (callee == expr.callee && arguments.equals(expr.arguments)) { return expr; }
+
+	return new Expr.Call(callee, expr.paren, arguments);
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+	Expr object = optimize(expr.object);
+	if (object == expr.object) { return expr; }
+
+	return new Expr.Get(object, expr.name);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+	Expr expression = optimize(expr.expression);
+	if (expression instanceof Expr.Literal) { return expression; }
+	if (expression == expr.expression) { return expr; }
+
+	return new Expr.Grouping(expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+	return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+	Expr left = optimize(expr.left);
+	Expr right = optimize(expr.right);
+
+	if (left instanceof Expr.Literal) {
+	    // 'or' keeps a truthy left operand, 'and' a falsey one
+	    boolean truthy = isTruthy(((Expr.Literal) left).value);
+	    boolean keepLeft = expr.operator.type == TokenType.OR ? truthy : !truthy;
+	    return keepLeft ? left : right;
+	}
+	if (left == expr.left && right == expr.right) { return expr; }
+
+	return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+	Expr object = optimize(expr.object);
+	Expr value = optimize(expr.value);
+	if (object == expr.object && value == expr.value) { return expr; }
+
+	return new Expr.Set(object, expr.name, value);
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+	Expr right = optimize(expr.right);
+
+	if (right instanceof Expr.Literal) {
+	    Object value = ((Expr.Literal) right).value;
+	    if (expr.operator.type == TokenType.BANG) {
+		return new Expr.Literal(!isTruthy(value));
+	    }
+	    else if (value instanceof Double) {
+		return new Expr.Literal(-(double) value);
+	    }
+	}
+	if (right == expr.right) { return expr; }
+
+	return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+	return expr;
+    }
+
+    // same rules as the Interpreter's
+    private static boolean isTruthy(Object obj) {
+	if (obj == null) { return false; }
+	else if (obj instanceof Boolean) { return (boolean) obj; }
+	else { return true; }
+    }
+
+    private static boolean isEqual(Object a, Object b) {
+	if (a == null && b == null) { return true; }
+	else if (a == null) { return false; }
+	else { return a.equals(b); }
+    }
+
+}
@@ -18,27 +18,27 @@ public class GenerateAst {
 	}                                                              
 	String outputDir = args[0];
 	defineAst(outputDir, "Expr", Arrays.asList(
-	   "Assign   : Token name, Expr value",
-	   "Binary   : Expr left, Token operator, Expr right",
-	   "Call     : Expr callee, Token paren, List<Expr> arguments",
-	   "Get      : Expr object, Token name",
+	   "Assign   : Token name, Expr value | int depth = -1, int slot = -1, boolean upvalue, boolean cell, Globals.Global global",
+	   "Binary   : Expr left, Token operator, Expr right | int specialization, boolean numericOperands",
+	   "Call     : Expr callee, Token paren, List<Expr> arguments | CallCache cache = new CallCache()",
+	   "Get      : Expr object, Token name | Shape cachedShape, int cachedOffset",
 	   "Grouping : Expr expression",
 	   "Literal  : Object value",
 	   "Logical  : Expr left, Token operator, Expr right",
-	   "Set      : Expr object, Token name, Expr value",
+	   "Set      : Expr object, Token name, Expr value | Shape cachedShape, Shape cachedTransition, int cachedOffset",
 	   "Unary    : Token operator, Expr right",
-	   "Variable : Token name"
+	   "Variable : Token name | int depth = -1, int slot = -1, boolean upvalue, boolean cell, Globals.Global global"
         ));
 
 	defineAst(outputDir, "Stmt", Arrays.asList(
-	   "Block      : List<Stmt> statements",
-	   "Class      : Token name, List<Stmt.Function> methods",
+	   "Block      : List<Stmt> statements | int frameSize",
+	   "Class      : Token name, List<Stmt.Function> methods | int slot = -1, boolean captured",
 	   "Expression : Expr expression",
-	   "Function   : Token name, List<Token> params, List<Stmt> body",
+	   "Function   : Token name, List<Token> params, List<Stmt> body | int slot = -1, boolean captured, int frameSize, boolean[] capturedParams, int[] upvalueDepths, int[] upvalueSlots, int hotness, Jit.Code compiled",
 	   "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
            "Print      : Expr expression",
-	   "Return     : Token keyword, Expr value",
-	   "Var        : Token name, Expr initializer",
+	   "Return     : Token keyword, Expr value | boolean tailCall",
+	   "Var        : Token name, Expr initializer | int slot = -1, boolean captured",
 	   "While      : Expr condition, Stmt body"
 	));
     }
@@ -51,7 +51,7 @@ public class GenerateAst {
 	writer.println();
 	writer.println("import java.util.List;");
 	writer.println();
-	writer.println("abstract class " + baseName + " {");
+	writer.println("public abstract class " + baseName + " {");
 
 	defineVisitor(writer, baseName, types); 
 	
@@ -59,18 +59,25 @@ public class GenerateAst {
 	    int sep = type.indexOf(':');
 	    String className = type.substring(0, sep).trim(); 
 	    String fields = type.substring(sep + 1, type.length()).trim();
-	    defineType(writer, baseName, className, fields); 
+	    // fields after '|' are filled in after parsing, by the Resolver or at runtime
+	    String annotations = null;
+	    int bar = fields.indexOf('|');
+	    if (bar != -1) {
+		annotations = fields.substring(bar + 1).trim();
+		fields = fields.substring(0, bar).trim();
+	    }
+	    defineType(writer, baseName, className, fields, annotations); 
 	}
 
 	writer.println();                                              
-	writer.println("  abstract <R> R accept(Visitor<R> visitor);");
+	writer.println("  public abstract <R> R accept(Visitor<R> visitor);");
 	
 	writer.println("}"); // end of abstract class 
 	writer.close(); 
     }
 
     private static void defineVisitor(PrintWriter writer, String baseName, List<String> types) {
-	writer.println("  interface Visitor<R> {");
+	writer.println("  public interface Visitor<R> {");
 
 	for (String type : types) {
 	    int sep = type.indexOf(':');
@@ -81,9 +88,10 @@ public class GenerateAst {
 	writer.println("  }"); 
     }
 
-    private static void defineType(PrintWriter writer, String baseName, String className, String fieldList) {
-	writer.println("  static class " + className + " extends " +  baseName + " {");
-	writer.println("    " + className + "(" + fieldList + ") {"); // constructor method signature
+    private static void defineType(PrintWriter writer, String baseName, String className,
+				   String fieldList, String annotationList) {
+	writer.println("  public static class " + className + " extends " +  baseName + " {");
+	writer.println("    public " + className + "(" + fieldList + ") {"); // constructor method signature
 
 	String[] fields = fieldList.split(", ");                     
 	for (String field : fields) {                                
@@ -95,15 +103,23 @@ public class GenerateAst {
 
 	writer.println();
 	writer.println("    @Override");
-	writer.println("    <R> R accept(Visitor<R> visitor) {");
+	writer.println("    public <R> R accept(Visitor<R> visitor) {");
 	writer.println("      return visitor.visit" + className + baseName + "(this);");
 	writer.println("    }"); 
 
 	
 	writer.println();                                            
 	for (String field : fields) {                                
-	    writer.println("    final " + field + ";");                
+	    writer.println("    public final " + field + ";");                
 	}                                                            
+
+	if (annotationList != null) {
+	    writer.println();
+	    writer.println("    // Not set by the Parser");
+	    for (String annotation : annotationList.split(", ")) {
+		writer.println("    public " + annotation + ";");
+	    }
+	}
 	
 	writer.println("  }");
     }
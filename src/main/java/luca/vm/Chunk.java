@@ -0,0 +1,49 @@
+package luca.vm;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.HashMap;
+
+/** A compiled sequence of bytecode with its constant pool and line table. */
+final class Chunk {
+
+    byte[] code = new byte[64];
+    int[] lines = new int[64]; // source line of each byte in code
+    int count = 0;
+    Object[] constants = new Object[8];
+    private int constantCount = 0;
+    private final Map<Object,Integer> constantIndex = new HashMap<>();
+
+    void write(int b, int line) {
+	if (count == code.length) {
+	    code = Arrays.copyOf(code, count * 2);
+	    lines = Arrays.copyOf(lines, count * 2);
+	}
+
+	code[count] = (byte) b;
+	lines[count] = line;
+	++count;
+    }
+
+    /** Returns the index of value in the constant pool, adding it if needed. */
+    int addConstant(Object value) {
+	// functions are never shared, everything else is a value type
+	if (!(value instanceof Prototype)) {
+	    Integer index = constantIndex.get(value);
+	    if (index != null) { return index; }
+	    constantIndex.put(value, constantCount);
+	}
+
+	if (constantCount == constants.length) {
+	    constants = Arrays.copyOf(constants, constantCount * 2);
+	}
+
+	constants[constantCount] = value;
+	return constantCount++;
+    }
+
+    int readShort(int offset) {
+	return ((code[offset] & 0xff) << 8) | (code[offset + 1] & 0xff);
+    }
+    
+}
@@ -0,0 +1,16 @@
+package luca.vm;
+
+final class ClassObject {
+
+    final String name;
+
+    ClassObject(String name) {
+	this.name = name;
+    }
+
+    @Override
+    public String toString() {
+	return name;
+    }
+    
+}
@@ -0,0 +1,19 @@
+package luca.vm;
+
+/** Runtime function value: a Prototype plus the variables it captured. */
+final class Closure {
+
+    final Prototype function;
+    final Upvalue[] upvalues;
+
+    Closure(Prototype function) {
+	this.function = function;
+	this.upvalues = new Upvalue[function.upvalueCount];
+    }
+
+    @Override
+    public String toString() {
+	return function.toString();
+    }
+    
+}
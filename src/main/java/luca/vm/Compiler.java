@@ -0,0 +1,579 @@
+package luca.vm;
+
+import java.util.List;
+import java.util.ArrayList;
+
+import luca.Expr;
+import luca.Luca;
+import luca.Stmt;
+import luca.Token;
+import luca.TokenType;
+
+/**
+ * Compiles the statements produced by the Parser into bytecode for the VM.
+ * Static errors have already been reported by the Resolver, so all the
+ * compiler has to work out is where each variable lives: in a stack slot
+ * of the current frame, in an upvalue, or in the globals table.
+ */
+class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+    private static final int MAX_SHORT = 0xffff;
+    private static final int MAX_MEDIUM = 0xffffff; // constant indices and jump offsets
+
+    // net change in stack height of each opcode (CALL depends on its operand)
+    private static final int[] STACK_EFFECT = new int[OpCode.TAIL_CALL + 1];
+
+    static {
+	STACK_EFFECT[OpCode.CONSTANT] = 1;
+	STACK_EFFECT[OpCode.NIL] = 1;
+	STACK_EFFECT[OpCode.TRUE] = 1;
+	STACK_EFFECT[OpCode.FALSE] = 1;
+	STACK_EFFECT[OpCode.POP] = -1;
+	STACK_EFFECT[OpCode.GET_LOCAL] = 1;
+	STACK_EFFECT[OpCode.GET_GLOBAL] = 1;
+	STACK_EFFECT[OpCode.DEFINE_GLOBAL] = -1;
+	STACK_EFFECT[OpCode.GET_UPVALUE] = 1;
+	STACK_EFFECT[OpCode.SET_PROPERTY] = -1;
+	STACK_EFFECT[OpCode.EQUAL] = -1;
+	STACK_EFFECT[OpCode.GREATER] = -1;
+	STACK_EFFECT[OpCode.GREATER_EQUAL] = -1;
+	STACK_EFFECT[OpCode.LESS] = -1;
+	STACK_EFFECT[OpCode.LESS_EQUAL] = -1;
+	STACK_EFFECT[OpCode.ADD] = -1;
+	STACK_EFFECT[OpCode.SUBTRACT] = -1;
+	STACK_EFFECT[OpCode.MULTIPLY] = -1;
+	STACK_EFFECT[OpCode.DIVIDE] = -1;
+	STACK_EFFECT[OpCode.PRINT] = -1;
+	STACK_EFFECT[OpCode.CLOSURE] = 1;
+	STACK_EFFECT[OpCode.CLOSE_UPVALUE] = -1;
+	STACK_EFFECT[OpCode.RETURN] = -1;
+	STACK_EFFECT[OpCode.CLASS] = 1;
+    }
+
+    private static class Local {
+	final String name;
+	final int depth;
+	boolean isCaptured = false;
+
+	Local(String name, int depth) {
+	    this.name = name;
+	    this.depth = depth;
+	}
+    }
+
+    private static class UpvalueRef {
+	final boolean isLocal; // captures a local of the enclosing function, not one of its upvalues
+	final int index;
+
+	UpvalueRef(boolean isLocal, int index) {
+	    this.isLocal = isLocal;
+	    this.index = index;
+	}
+    }
+
+    /** Per-function compilation state. */
+    private static class FunctionState {
+	final FunctionState enclosing;
+	final Prototype function;
+	final List<Local> locals = new ArrayList<>();
+	final List<UpvalueRef> upvalues = new ArrayList<>();
+	int scopeDepth = 0;
+	int stackHeight = 1;
+	boolean tooManyConstants = false; // already reported
+
+	FunctionState(FunctionState enclosing, Prototype function) {
+	    this.enclosing = enclosing;
+	    this.function = function;
+	    locals.add(new Local("", 0)); // slot zero holds the callee and can't be named
+	}
+    }
+
+    private FunctionState current = null;
+    private int line = 1;
+    private boolean hadError = false;
+
+    /** Returns the top-level script function, or null if compilation failed. */
+    Prototype compile(List<Stmt> statements) {
+	current = new FunctionState(null, new Prototype("script", 0));
+	for (Stmt statement : statements) {
+	    compile(statement);
+	}
+	emitReturn();
+
+	return hadError ? null : current.function;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+	beginScope();
+	for (Stmt statement : stmt.statements) {
+	    compile(statement);
+	}
+	endScope();
+	return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+	line = stmt.name.line;
+	emitConstantOp(OpCode.CLASS, identifierConstant(stmt.name));
+	defineVariable(stmt.name);
+	return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+	compile(stmt.expression);
+	emitOp(OpCode.POP);
+	return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+	if (current.scopeDepth > 0) {
+	    // declared before the body is compiled so the function can recurse
+	    addLocal(stmt.name);
+	    function(stmt);
+	}
+	else {
+	    function(stmt);
+	    defineVariable(stmt.name);
+	}
+	return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+	compile(stmt.condition);
+	int thenJump = emitJump(OpCode.JUMP_IF_FALSE);
+	emitOp(OpCode.POP);
+	compile(stmt.thenBranch);
+	int elseJump = emitJump(OpCode.JUMP);
+
+	patchJump(thenJump);
+	adjustStack(1); // the condition is still on the stack along this path
+	emitOp(OpCode.POP);
+	if (stmt.elseBranch != null) { compile(stmt.elseBranch); }
+	patchJump(elseJump);
+	return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+	compile(stmt.expression);
+	emitOp(OpCode.PRINT);
+	return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+	if (stmt.tailCall) {
+	    // the callee takes over this frame, so a chain of tail calls runs in constant space
+	    Expr.Call call = (Expr.Call) stmt.value;
+	    compileCall(call);
+	    emitByte(OpCode.TAIL_CALL);
+	    emitByte(call.arguments.size());
+	    adjustStack(-call.arguments.size() - 1);
+	    return null;
+	}
+
+	if (stmt.value != null) {
+	    compile(stmt.value);
+	}
+	else {
+	    emitOp(OpCode.NIL);
+	}
+
+	emitOp(OpCode.RETURN);
+	return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+	if (stmt.initializer != null) {
+	    compile(stmt.initializer);
+	}
+	else {
+	    emitOp(OpCode.NIL);
+	}
+
+	defineVariable(stmt.name);
+	return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+	int loopStart = chunk().count;
+	compile(stmt.condition);
+	int exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+	emitOp(OpCode.POP);
+	compile(stmt.body);
+	emitLoop(loopStart);
+
+	patchJump(exitJump);
+	adjustStack(1); // the condition is still on the stack along this path
+	emitOp(OpCode.POP);
+	return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+	compile(expr.value);
+
+	line = expr.name.line;
+	int arg = resolveLocal(current, expr.name.lexeme);
+	if (arg != -1) {
+	    emitOp(OpCode.SET_LOCAL, arg);
+	}
+	else if ((arg = resolveUpvalue(current, expr.name.lexeme)) != -1) {
+	    emitOp(OpCode.SET_UPVALUE, arg);
+	}
+	else {
+	    emitConstantOp(OpCode.SET_GLOBAL, identifierConstant(expr.name));
+	}
+
+	return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+	compile(expr.left);
+	compile(expr.right);
+
+	line = expr.operator.line;
+	switch (expr.operator.type) {
+	    case GREATER: emitOp(OpCode.GREATER); break;
+	    case GREATER_EQUAL: emitOp(OpCode.GREATER_EQUAL); break;
+	    case LESS: emitOp(OpCode.LESS); break;
+	    case LESS_EQUAL: emitOp(OpCode.LESS_EQUAL); break;
+	    case MINUS: emitOp(OpCode.SUBTRACT); break;
+	    case PLUS: emitOp(OpCode.ADD); break;
+	    case SLASH: emitOp(OpCode.DIVIDE); break;
+	    case STAR: emitOp(OpCode.MULTIPLY); break;
+	    case BANG_EQUAL:
+		emitOp(OpCode.EQUAL);
+		emitOp(OpCode.NOT);
+		break;
+	    case EQUAL_EQUAL: emitOp(OpCode.EQUAL); break;
+	}
+
+	return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+	compileCall(expr);
+	emitByte(OpCode.CALL);
+	emitByte(expr.arguments.size());
+	adjustStack(-expr.arguments.size());
+	return null;
+    }
+
+    /** Compiles the callee and arguments, leaving the line at the call's. */
+    private void compileCall(Expr.Call expr) {
+	compile(expr.callee);
+	for (Expr argument : expr.arguments) {
+	    compile(argument);
+	}
+
+	line = expr.paren.line;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+	compile(expr.object);
+
+	line = expr.name.line;
+	emitConstantOp(OpCode.GET_PROPERTY, identifierConstant(expr.name));
+	return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+	compile(expr.expression);
+	return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+	if (expr.value == null) {
+	    emitOp(OpCode.NIL);
+	}
+	else if (expr.value.equals(true)) {
+	    emitOp(OpCode.TRUE);
+	}
+	else if (expr.value.equals(false)) {
+	    emitOp(OpCode.FALSE);
+	}
+	else {
+	    emitConstantOp(OpCode.CONSTANT, makeConstant(expr.value));
+	}
+
+	return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+	compile(expr.left);
+
+	if (expr.operator.type == TokenType.OR) {
+	    int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+	    int endJump = emitJump(OpCode.JUMP);
+	    patchJump(elseJump);
+	    emitOp(OpCode.POP);
+	    compile(expr.right);
+	    patchJump(endJump);
+	}
+	else {
+	    int endJump = emitJump(OpCode.JUMP_IF_FALSE);
+	    emitOp(OpCode.POP);
+	    compile(expr.right);
+	    patchJump(endJump);
+	}
+
+	return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+	compile(expr.object);
+	compile(expr.value);
+
+	line = expr.name.line;
+	emitConstantOp(OpCode.SET_PROPERTY, identifierConstant(expr.name));
+	return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+	compile(expr.right);
+
+	line = expr.operator.line;
+	switch (expr.operator.type) {
+	    case BANG: emitOp(OpCode.NOT); break;
+	    case MINUS: emitOp(OpCode.NEGATE); break;
+	}
+
+	return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+	line = expr.name.line;
+	int arg = resolveLocal(current, expr.name.lexeme);
+	if (arg != -1) {
+	    emitOp(OpCode.GET_LOCAL, arg);
+	}
+	else if ((arg = resolveUpvalue(current, expr.name.lexeme)) != -1) {
+	    emitOp(OpCode.GET_UPVALUE, arg);
+	}
+	else {
+	    emitConstantOp(OpCode.GET_GLOBAL, identifierConstant(expr.name));
+	}
+
+	return null;
+    }
+
+    private void compile(Stmt stmt) {
+	stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+	expr.accept(this);
+    }
+
+    private void function(Stmt.Function stmt) {
+	line = stmt.name.line;
+	FunctionState state = new FunctionState(current, new Prototype(stmt.name.lexeme,
+								       stmt.params.size()));
+	current = state;
+
+	// the frame is discarded on return, so this scope is never ended
+	beginScope();
+	for (Token param : stmt.params) {
+	    addLocal(param);
+	    adjustStack(1);
+	}
+	for (Stmt statement : stmt.body) {
+	    compile(statement);
+	}
+	emitReturn();
+
+	current = state.enclosing;
+	state.function.upvalueCount = state.upvalues.size();
+
+	line = stmt.name.line;
+	emitConstantOp(OpCode.CLOSURE, makeConstant(state.function));
+	for (UpvalueRef upvalue : state.upvalues) {
+	    emitByte(upvalue.isLocal ? 1 : 0);
+	    emitShort(upvalue.index);
+	}
+    }
+
+    private void beginScope() {
+	++current.scopeDepth;
+    }
+
+    private void endScope() {
+	--current.scopeDepth;
+
+	List<Local> locals = current.locals;
+	while (!locals.isEmpty() && locals.get(locals.size() - 1).depth > current.scopeDepth) {
+	    Local local = locals.remove(locals.size() - 1);
+	    emitOp(local.isCaptured ? OpCode.CLOSE_UPVALUE : OpCode.POP);
+	}
+    }
+
+    /** Binds the value on top of the stack to name in the current scope. */
+    private void defineVariable(Token name) {
+	if (current.scopeDepth > 0) {
+	    addLocal(name); // the value's stack slot becomes the local's slot
+	}
+	else {
+	    emitConstantOp(OpCode.DEFINE_GLOBAL, identifierConstant(name));
+	}
+    }
+
+    private void addLocal(Token name) {
+	if (current.locals.size() > MAX_SHORT) {
+	    error(name.line, "Too many local variables in function.");
+	    return;
+	}
+
+	current.locals.add(new Local(name.lexeme, current.scopeDepth));
+    }
+
+    private static int resolveLocal(FunctionState state, String name) {
+	for (int i = state.locals.size() - 1; i >= 0; --i) {
+	    if (state.locals.get(i).name.equals(name)) { return i; }
+	}
+
+	return -1;
+    }
+
+    private int resolveUpvalue(FunctionState state, String name) {
+	if (state.enclosing == null) { return -1; }
+
+	int local = resolveLocal(state.enclosing, name);
+	if (local != -1) {
+	    state.enclosing.locals.get(local).isCaptured = true;
+	    return addUpvalue(state, true, local);
+	}
+
+	int upvalue = resolveUpvalue(state.enclosing, name);
+	if (upvalue != -1) {
+	    return addUpvalue(state, false, upvalue);
+	}
+
+	return -1;
+    }
+
+    private int addUpvalue(FunctionState state, boolean isLocal, int index) {
+	for (int i = 0; i < state.upvalues.size(); ++i) {
+	    UpvalueRef upvalue = state.upvalues.get(i);
+	    if (upvalue.isLocal == isLocal && upvalue.index == index) { return i; }
+	}
+
+	if (state.upvalues.size() > MAX_SHORT) {
+	    error(line, "Too many closure variables in function.");
+	    return 0;
+	}
+
+	state.upvalues.add(new UpvalueRef(isLocal, index));
+	return state.upvalues.size() - 1;
+    }
+
+    private int identifierConstant(Token name) {
+	return makeConstant(name.lexeme);
+    }
+
+    private int makeConstant(Object value) {
+	int index = chunk().addConstant(value);
+	if (index > MAX_MEDIUM) {
+	    if (!current.tooManyConstants) { error(line, "Too many constants in one chunk."); }
+	    current.tooManyConstants = true;
+	    return 0;
+	}
+
+	return index;
+    }
+
+    private Chunk chunk() {
+	return current.function.chunk;
+    }
+
+    private void emitByte(int b) {
+	chunk().write(b, line);
+    }
+
+    private void emitShort(int value) {
+	emitByte((value >> 8) & 0xff);
+	emitByte(value & 0xff);
+    }
+
+    private void emitMedium(int value) {
+	emitByte((value >> 16) & 0xff);
+	emitShort(value & 0xffff);
+    }
+
+    private void emitOp(byte op) {
+	emitByte(op);
+	adjustStack(STACK_EFFECT[op]);
+    }
+
+    private void emitOp(byte op, int operand) {
+	emitOp(op);
+	emitShort(operand);
+    }
+
+    private void emitConstantOp(byte op, int index) {
+	emitOp(op);
+	emitMedium(index);
+    }
+
+    private void emitReturn() {
+	emitOp(OpCode.NIL);
+	emitOp(OpCode.RETURN);
+    }
+
+    /** Emits a jump with a placeholder offset and returns the offset's position. */
+    private int emitJump(byte op) {
+	emitOp(op);
+	emitMedium(MAX_MEDIUM);
+	return chunk().count - 3;
+    }
+
+    private void patchJump(int offset) {
+	int jump = chunk().count - offset - 3;
+	if (jump > MAX_MEDIUM) {
+	    error(line, "Too much code to jump over.");
+	}
+
+	chunk().code[offset] = (byte) ((jump >> 16) & 0xff);
+	chunk().code[offset + 1] = (byte) ((jump >> 8) & 0xff);
+	chunk().code[offset + 2] = (byte) (jump & 0xff);
+    }
+
+    private void emitLoop(int loopStart) {
+	emitOp(OpCode.LOOP);
+
+	int offset = chunk().count - loopStart + 3;
+	if (offset > MAX_MEDIUM) {
+	    error(line, "Loop body too large.");
+	}
+	emitMedium(offset);
+    }
+
+    private void adjustStack(int delta) {
+	current.stackHeight += delta;
+	if (current.stackHeight > current.function.maxSlots) {
+	    current.function.maxSlots = current.stackHeight;
+	}
+    }
+
+    private void error(int line, String message) {
+	Luca.error(line, message);
+	hadError = true;
+    }
+
+}
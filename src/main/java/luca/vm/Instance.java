@@ -0,0 +1,20 @@
+package luca.vm;
+
+import java.util.Map;
+import java.util.HashMap;
+
+final class Instance {
+
+    private final ClassObject _class;
+    final Map<String,Object> fields = new HashMap<>();
+
+    Instance(ClassObject _class) {
+	this._class = _class;
+    }
+
+    @Override
+    public String toString() {
+	return _class.name + " instance";
+    }
+    
+}
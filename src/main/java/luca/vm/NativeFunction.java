@@ -0,0 +1,19 @@
+package luca.vm;
+
+/** A function implemented in Java and exposed to scripts as a global. */
+abstract class NativeFunction {
+
+    final int arity;
+
+    NativeFunction(int arity) {
+	this.arity = arity;
+    }
+
+    abstract Object call(Object[] arguments);
+
+    @Override
+    public String toString() {
+	return "<native fn>";
+    }
+    
+}
@@ -0,0 +1,49 @@
+package luca.vm;
+
+/**
+ * Instruction set of the bytecode VM. Each opcode is one byte; operands
+ * follow it inline. Constant indices and jump offsets are unsigned 24-bit
+ * values, so that generated scripts of any realistic size fit, and the
+ * other operands, unless noted, unsigned 16-bit values.
+ */
+final class OpCode {
+
+    static final byte CONSTANT      = 0;  // constant index
+    static final byte NIL           = 1;
+    static final byte TRUE          = 2;
+    static final byte FALSE         = 3;
+    static final byte POP           = 4;
+    static final byte GET_LOCAL     = 5;  // frame slot
+    static final byte SET_LOCAL     = 6;  // frame slot
+    static final byte GET_GLOBAL    = 7;  // name constant index
+    static final byte DEFINE_GLOBAL = 8;  // name constant index
+    static final byte SET_GLOBAL    = 9;  // name constant index
+    static final byte GET_UPVALUE   = 10; // upvalue index
+    static final byte SET_UPVALUE   = 11; // upvalue index
+    static final byte GET_PROPERTY  = 12; // name constant index
+    static final byte SET_PROPERTY  = 13; // name constant index
+    static final byte EQUAL         = 14;
+    static final byte GREATER       = 15;
+    static final byte GREATER_EQUAL = 16;
+    static final byte LESS          = 17;
+    static final byte LESS_EQUAL    = 18;
+    static final byte ADD           = 19;
+    static final byte SUBTRACT      = 20;
+    static final byte MULTIPLY      = 21;
+    static final byte DIVIDE        = 22;
+    static final byte NOT           = 23;
+    static final byte NEGATE        = 24;
+    static final byte PRINT         = 25;
+    static final byte JUMP          = 26; // forward offset
+    static final byte JUMP_IF_FALSE = 27; // forward offset, condition left on stack
+    static final byte LOOP          = 28; // backward offset
+    static final byte CALL          = 29; // argument count (one byte)
+    static final byte CLOSURE       = 30; // function constant index, then per upvalue: isLocal (one byte), index
+    static final byte CLOSE_UPVALUE = 31;
+    static final byte RETURN        = 32;
+    static final byte CLASS         = 33; // name constant index
+    static final byte TAIL_CALL     = 34; // argument count (one byte); calls, then returns what the callee does
+
+    private OpCode() {}
+    
+}
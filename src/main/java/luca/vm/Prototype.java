@@ -0,0 +1,22 @@
+package luca.vm;
+
+/** A compiled function body, shared by every closure created from it. */
+final class Prototype {
+
+    final String name;
+    final int arity;
+    final Chunk chunk = new Chunk();
+    int upvalueCount = 0;
+    int maxSlots = 1; // stack slots needed by a frame, including the callee
+
+    Prototype(String name, int arity) {
+	this.name = name;
+	this.arity = arity;
+    }
+
+    @Override
+    public String toString() {
+	return "<fn " + name + ">";
+    }
+    
+}
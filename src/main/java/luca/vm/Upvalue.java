@@ -0,0 +1,40 @@
+package luca.vm;
+
+/**
+ * A variable captured by a closure. While the variable is still live on
+ * the VM stack the upvalue is open and refers to its slot; once the slot
+ * goes out of scope the value is moved into the upvalue itself.
+ */
+final class Upvalue {
+
+    private final VM vm;
+    final int slot;
+    private boolean open = true;
+    private Object closed;
+    Upvalue next; // next open upvalue, ordered by descending slot
+
+    Upvalue(VM vm, int slot, Upvalue next) {
+	this.vm = vm;
+	this.slot = slot;
+	this.next = next;
+    }
+
+    Object get() {
+	return open ? vm.stack[slot] : closed;
+    }
+
+    void set(Object value) {
+	if (open) {
+	    vm.stack[slot] = value;
+	}
+	else {
+	    closed = value;
+	}
+    }
+
+    void close() {
+	closed = vm.stack[slot];
+	open = false;
+    }
+    
+}
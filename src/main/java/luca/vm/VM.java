@@ -0,0 +1,482 @@
+package luca.vm;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.HashMap;
+
+import luca.Luca;
+import luca.RuntimeError;
+import luca.Stmt;
+
+/**
+ * A stack-based virtual machine that runs the bytecode produced by the
+ * Compiler. Luca calls push a CallFrame rather than recursing in Java, so
+ * deep Luca recursion is limited by FRAMES_MAX instead of the Java stack.
+ * A tail call reuses the caller's frame, so it isn't limited at all.
+ */
+public class VM {
+
+    private static final int FRAMES_MAX = 1 << 20;
+
+    private static final class CallFrame {
+	Closure closure;
+	int ip;
+	int base; // stack slot of the callee; locals follow it
+    }
+
+    Object[] stack = new Object[256];
+    private CallFrame[] frames = new CallFrame[64];
+    private int frameCount = 0;
+    private Upvalue openUpvalues = null; // sorted by descending stack slot
+    private final Map<String,Object> globals = new HashMap<>();
+
+    public VM() {
+	globals.put("clock", new NativeFunction(0) {
+		@Override
+		Object call(Object[] arguments) {
+		    return System.currentTimeMillis() / 1000.0;
+		}
+	    });
+    }
+
+    public void interpret(List<Stmt> statements) {
+	Prototype script = new Compiler().compile(statements);
+	if (script == null) { return; }
+
+	try {
+	    Closure closure = new Closure(script);
+	    ensureStack(script.maxSlots);
+	    stack[0] = closure;
+	    pushFrame(closure, 0);
+	    run();
+	}
+	catch (RuntimeError error) {
+	    Luca.runtimeError(error);
+	}
+	finally {
+	    // drop whatever the script left behind, globals survive for the REPL
+	    frameCount = 0;
+	    openUpvalues = null;
+	    Arrays.fill(stack, null);
+	}
+    }
+
+    private void run() {
+	CallFrame frame = frames[frameCount - 1];
+	Closure closure = frame.closure;
+	byte[] code = closure.function.chunk.code;
+	Object[] constants = closure.function.chunk.constants;
+	Object[] stack = this.stack;
+	int ip = frame.ip;
+	int base = frame.base;
+	int sp = base + 1;
+
+	while (true) {
+	    byte instruction = code[ip++];
+	    switch (instruction) {
+		case OpCode.CONSTANT:
+		    stack[sp++] = constants[readMedium(code, ip)];
+		    ip += 3;
+		    break;
+		case OpCode.NIL: stack[sp++] = null; break;
+		case OpCode.TRUE: stack[sp++] = true; break;
+		case OpCode.FALSE: stack[sp++] = false; break;
+		case OpCode.POP: stack[--sp] = null; break;
+		case OpCode.GET_LOCAL:
+		    stack[sp++] = stack[base + readShort(code, ip)];
+		    ip += 2;
+		    break;
+		case OpCode.SET_LOCAL:
+		    stack[base + readShort(code, ip)] = stack[sp - 1];
+		    ip += 2;
+		    break;
+		case OpCode.GET_GLOBAL: {
+		    String name = (String) constants[readMedium(code, ip)];
+		    ip += 3;
+		    Object value = globals.get(name);
+		    if (value == null && !globals.containsKey(name)) {
+			throw error(closure, ip, "Undefined variable '" + name + "'.");
+		    }
+		    stack[sp++] = value;
+		    break;
+		}
+		case OpCode.DEFINE_GLOBAL:
+		    globals.put((String) constants[readMedium(code, ip)], stack[--sp]);
+		    stack[sp] = null;
+		    ip += 3;
+		    break;
+		case OpCode.SET_GLOBAL: {
+		    String name = (String) constants[readMedium(code, ip)];
+		    ip += 3;
+		    if (!globals.containsKey(name)) {
+			throw error(closure, ip, "Undefined variable '" + name + "'.");
+		    }
+		    globals.put(name, stack[sp - 1]);
+		    break;
+		}
+		case OpCode.GET_UPVALUE:
+		    stack[sp++] = closure.upvalues[readShort(code, ip)].get();
+		    ip += 2;
+		    break;
+		case OpCode.SET_UPVALUE:
+		    closure.upvalues[readShort(code, ip)].set(stack[sp - 1]);
+		    ip += 2;
+		    break;
+		case OpCode.GET_PROPERTY: {
+		    String name = (String) constants[readMedium(code, ip)];
+		    ip += 3;
+		    Object object = stack[sp - 1];
+		    if (!(object instanceof Instance)) {
+			throw error(closure, ip, "Only instances have properties.");
+		    }
+		    Map<String,Object> fields = ((Instance) object).fields;
+		    if (!fields.containsKey(name)) {
+			throw error(closure, ip, "Undefined property '" + name + "'.");
+		    }
+		    stack[sp - 1] = fields.get(name);
+		    break;
+		}
+		case OpCode.SET_PROPERTY: {
+		    String name = (String) constants[readMedium(code, ip)];
+		    ip += 3;
+		    Object object = stack[sp - 2];
+		    if (!(object instanceof Instance)) {
+			throw error(closure, ip, "Only instances have fields.");
+		    }
+		    Object value = stack[--sp];
+		    ((Instance) object).fields.put(name, value);
+		    stack[sp - 1] = value;
+		    stack[sp] = null;
+		    break;
+		}
+		case OpCode.EQUAL: {
+		    Object b = stack[--sp];
+		    stack[sp - 1] = isEqual(stack[sp - 1], b);
+		    stack[sp] = null;
+		    break;
+		}
+		case OpCode.GREATER: {
+		    Object b = stack[--sp];
+		    Object a = stack[sp - 1];
+		    checkNumberOperands(closure, ip, a, b);
+		    stack[sp - 1] = (double) a > (double) b;
+		    break;
+		}
+		case OpCode.GREATER_EQUAL: {
+		    Object b = stack[--sp];
+		    Object a = stack[sp - 1];
+		    checkNumberOperands(closure, ip, a, b);
+		    stack[sp - 1] = (double) a >= (double) b;
+		    break;
+		}
+		case OpCode.LESS: {
+		    Object b = stack[--sp];
+		    Object a = stack[sp - 1];
+		    checkNumberOperands(closure, ip, a, b);
+		    stack[sp - 1] = (double) a < (double) b;
+		    break;
+		}
+		case OpCode.LESS_EQUAL: {
+		    Object b = stack[--sp];
+		    Object a = stack[sp - 1];
+		    checkNumberOperands(closure, ip, a, b);
+		    stack[sp - 1] = (double) a <= (double) b;
+		    break;
+		}
+		case OpCode.ADD: {
+		    Object b = stack[--sp];
+		    Object a = stack[sp - 1];
+		    if (a instanceof Double && b instanceof Double) {
+			stack[sp - 1] = (double) a + (double) b;
+		    }
+		    else if (a instanceof String && b instanceof String) {
+			stack[sp - 1] = (String) a + (String) b;
+		    }
+		    else {
+			throw error(closure, ip, "Operands must be two numbers or two strings.");
+		    }
+		    break;
+		}
+		case OpCode.SUBTRACT: {
+		    Object b = stack[--sp];
+		    Object a = stack[sp - 1];
+		    checkNumberOperands(closure, ip, a, b);
+		    stack[sp - 1] = (double) a - (double) b;
+		    break;
+		}
+		case OpCode.MULTIPLY: {
+		    Object b = stack[--sp];
+		    Object a = stack[sp - 1];
+		    checkNumberOperands(closure, ip, a, b);
+		    stack[sp - 1] = (double) a * (double) b;
+		    break;
+		}
+		case OpCode.DIVIDE: {
+		    Object b = stack[--sp];
+		    Object a = stack[sp - 1];
+		    checkNumberOperands(closure, ip, a, b);
+		    stack[sp - 1] = (double) a / (double) b;
+		    break;
+		}
+		case OpCode.NOT:
+		    stack[sp - 1] = !isTruthy(stack[sp - 1]);
+		    break;
+		case OpCode.NEGATE:
+		    if (!(stack[sp - 1] instanceof Double)) {
+			throw error(closure, ip, "Operand must be a number.");
+		    }
+		    stack[sp - 1] = -((double) stack[sp - 1]);
+		    break;
+		case OpCode.PRINT:
+		    System.out.println(stringify(stack[--sp]));
+		    stack[sp] = null;
+		    break;
+		case OpCode.JUMP:
+		    ip += 3 + readMedium(code, ip);
+		    break;
+		case OpCode.JUMP_IF_FALSE:
+		    if (isTruthy(stack[sp - 1])) {
+			ip += 3;
+		    }
+		    else {
+			ip += 3 + readMedium(code, ip);
+		    }
+		    break;
+		case OpCode.LOOP:
+		    ip += 3 - readMedium(code, ip);
+		    break;
+		case OpCode.CALL: {
+		    int argCount = code[ip++] & 0xff;
+		    int calleeSlot = sp - argCount - 1;
+		    Object callee = stack[calleeSlot];
+
+		    if (callee instanceof Closure) {
+			Closure function = (Closure) callee;
+			checkArity(closure, ip, function.function.arity, argCount);
+			if (frameCount == FRAMES_MAX) {
+			    throw error(closure, ip, "Stack overflow.");
+			}
+
+			frame.ip = ip;
+			ensureStack(calleeSlot + function.function.maxSlots);
+			pushFrame(function, calleeSlot);
+
+			frame = frames[frameCount - 1];
+			closure = function;
+			code = closure.function.chunk.code;
+			constants = closure.function.chunk.constants;
+			stack = this.stack;
+			ip = 0;
+			base = calleeSlot;
+		    }
+		    else {
+			sp = callOther(closure, ip, calleeSlot, sp);
+		    }
+		    break;
+		}
+		case OpCode.CLOSURE: {
+		    Closure created = new Closure((Prototype) constants[readMedium(code, ip)]);
+		    ip += 3;
+		    stack[sp++] = created;
+		    for (int i = 0; i < created.upvalues.length; ++i) {
+			boolean isLocal = code[ip++] == 1;
+			int index = readShort(code, ip);
+			ip += 2;
+			created.upvalues[i] = isLocal ? captureUpvalue(base + index) : closure.upvalues[index];
+		    }
+		    break;
+		}
+		case OpCode.CLOSE_UPVALUE:
+		    closeUpvalues(sp - 1);
+		    stack[--sp] = null;
+		    break;
+		case OpCode.TAIL_CALL: {
+		    int argCount = code[ip++] & 0xff;
+		    int calleeSlot = sp - argCount - 1;
+		    Object callee = stack[calleeSlot];
+
+		    if (callee instanceof Closure) {
+			// the callee replaces this frame: its callee and arguments move down to base
+			Closure function = (Closure) callee;
+			checkArity(closure, ip, function.function.arity, argCount);
+			closeUpvalues(base);
+			System.arraycopy(stack, calleeSlot, stack, base, argCount + 1);
+			Arrays.fill(stack, base + argCount + 1, sp, null);
+			ensureStack(base + function.function.maxSlots);
+
+			frame.closure = function;
+			closure = function;
+			code = closure.function.chunk.code;
+			constants = closure.function.chunk.constants;
+			stack = this.stack;
+			ip = 0;
+			sp = base + argCount + 1;
+			break;
+		    }
+
+		    sp = callOther(closure, ip, calleeSlot, sp);
+		    // and return the result
+		}
+		// fall through
+		case OpCode.RETURN: {
+		    Object result = stack[--sp];
+		    closeUpvalues(base);
+		    Arrays.fill(stack, base, sp, null);
+		    --frameCount;
+		    if (frameCount == 0) { return; }
+
+		    sp = base;
+		    stack[sp++] = result;
+
+		    frame = frames[frameCount - 1];
+		    closure = frame.closure;
+		    code = closure.function.chunk.code;
+		    constants = closure.function.chunk.constants;
+		    ip = frame.ip;
+		    base = frame.base;
+		    break;
+		}
+		case OpCode.CLASS:
+		    stack[sp++] = new ClassObject((String) constants[readMedium(code, ip)]);
+		    ip += 3;
+		    break;
+	    }
+	}
+    }
+
+    /** Calls a native function or class, leaving the result at calleeSlot, and returns the new stack top. */
+    private int callOther(Closure closure, int ip, int calleeSlot, int sp) {
+	Object callee = stack[calleeSlot];
+	int argCount = sp - calleeSlot - 1;
+	if (callee instanceof NativeFunction) {
+	    NativeFunction function = (NativeFunction) callee;
+	    checkArity(closure, ip, function.arity, argCount);
+	    Object[] arguments = Arrays.copyOfRange(stack, calleeSlot + 1, sp);
+	    Object result = function.call(arguments);
+	    Arrays.fill(stack, calleeSlot, sp, null);
+	    stack[calleeSlot] = result;
+	}
+	else if (callee instanceof ClassObject) {
+	    checkArity(closure, ip, 0, argCount);
+	    stack[calleeSlot] = new Instance((ClassObject) callee);
+	    Arrays.fill(stack, calleeSlot + 1, sp, null);
+	}
+	else {
+	    throw error(closure, ip, "Can only call functions and classes.");
+	}
+
+	return calleeSlot + 1;
+    }
+
+    private static int readShort(byte[] code, int offset) {
+	return ((code[offset] & 0xff) << 8) | (code[offset + 1] & 0xff);
+    }
+
+    private static int readMedium(byte[] code, int offset) {
+	return ((code[offset] & 0xff) << 16) | ((code[offset + 1] & 0xff) << 8) | (code[offset + 2] & 0xff);
+    }
+
+    private void pushFrame(Closure closure, int base) {
+	if (frameCount == frames.length) {
+	    frames = Arrays.copyOf(frames, frameCount * 2);
+	}
+
+	CallFrame frame = frames[frameCount];
+	if (frame == null) {
+	    frame = new CallFrame();
+	    frames[frameCount] = frame;
+	}
+
+	frame.closure = closure;
+	frame.ip = 0;
+	frame.base = base;
+	++frameCount;
+    }
+
+    private void ensureStack(int size) {
+	if (size > stack.length) {
+	    stack = Arrays.copyOf(stack, Math.max(size, stack.length * 2));
+	}
+    }
+
+    private Upvalue captureUpvalue(int slot) {
+	Upvalue previous = null;
+	Upvalue upvalue = openUpvalues;
+	while (upvalue != null && upvalue.slot > slot) {
+	    previous = upvalue;
+	    upvalue = upvalue.next;
+	}
+
+	if (upvalue != null && upvalue.slot == slot) { return upvalue; }
+
+	Upvalue created = new Upvalue(this, slot, upvalue);
+	if (previous == null) {
+	    openUpvalues = created;
+	}
+	else {
+	    previous.next = created;
+	}
+
+	return created;
+    }
+
+    /** Closes every open upvalue at or above the given stack slot. */
+    private void closeUpvalues(int last) {
+	while (openUpvalues != null && openUpvalues.slot >= last) {
+	    openUpvalues.close();
+	    openUpvalues = openUpvalues.next;
+	}
+    }
+
+    private void checkArity(Closure closure, int ip, int arity, int argCount) {
+	if (argCount != arity) {
+	    throw error(closure, ip, "Expected " + arity + " arguments but got " + argCount + ".");
+	}
+    }
+
+    private void checkNumberOperands(Closure closure, int ip, Object left, Object right) {
+	if (left instanceof Double && right instanceof Double) { return; }
+	throw error(closure, ip, "Operands must be numbers.");
+    }
+
+    /** Builds an error for the instruction whose last byte precedes ip. */
+    private RuntimeError error(Closure closure, int ip, String message) {
+	return new RuntimeError(closure.function.chunk.lines[ip - 1], message);
+    }
+
+    private static boolean isTruthy(Object obj) {
+	// false and null are false, all else is true
+	if (obj == null) { return false; }
+	else if (obj instanceof Boolean) { return (boolean) obj; }
+	else { return true; }
+    }
+
+    private static boolean isEqual(Object a, Object b) {
+	if (a == null && b == null) {
+	    return true;
+	}
+	else if (a == null) {
+	    return false;
+	}
+	else {
+	    return a.equals(b);
+	}
+    }
+
+    private static String stringify(Object object) {
+	if (object == null) { return "nil"; }
+
+	if (object instanceof Double) {
+	    String text = object.toString();
+	    if (text.endsWith(".0")) {
+		text = text.substring(0, text.length() - 2);
+	    }
+
+	    return text;
+	}
+
+	return object.toString();
+    }
+
+}
@@ -0,0 +1,97 @@
+package luca;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeFalse;
+import static org.junit.Assume.assumeNotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import javax.tools.ToolProvider;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * Runs each script in the corpus on every backend, which must all print
+ * what the tree-walker prints. The ahead-of-time compiled jar runs in a
+ * JVM of its own.
+ */
+@RunWith(Parameterized.class)
+public class BackendsTest {
+
+    @Parameters(name = "{0}")
+    public static List<Object[]> scripts() throws IOException {
+	List<Object[]> scripts = new ArrayList<>();
+	for (Path script : Bench.scripts(Scripts.corpus())) {
+	    scripts.add(new Object[] { script.getFileName().toString(), script });
+	}
+	return scripts;
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Path script;
+    private final String source;
+
+    public BackendsTest(String name, Path script) {
+	this.script = script;
+	this.source = Scripts.read(script);
+    }
+
+    private String expected() {
+	return Scripts.run(source, Scripts.Backend.TREE_WALKER);
+    }
+
+    @Test
+    public void vm() {
+	assertEquals(expected(), Scripts.run(source, Scripts.Backend.VM));
+    }
+
+    @Test
+    public void closures() {
+	assertEquals(expected(), Scripts.run(source, Scripts.Backend.CLOSURES));
+    }
+
+    @Test
+    public void jit() {
+	assertEquals(expected(), Scripts.run(source, Scripts.Backend.JIT));
+    }
+
+    @Test
+    public void compiled() throws IOException, InterruptedException {
+	String expected = expected();
+	assumeFalse("only scripts without static errors compile", expected.endsWith("exit 65" + System.lineSeparator()));
+	assumeNotNull(ToolProvider.getSystemJavaCompiler());
+
+	Path jar = folder.getRoot().toPath().resolve("script.jar");
+	new JvmCompiler().compile(Luca.compile(new Scanner(source)), jar);
+
+	Process process = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+					     "-jar", jar.toString())
+	    .redirectErrorStream(true)
+	    .start();
+	ByteArrayOutputStream printed = new ByteArrayOutputStream();
+	try (InputStream in = process.getInputStream()) {
+	    byte[] chunk = new byte[4096];
+	    for (int n; (n = in.read(chunk)) != -1; ) {
+		printed.write(chunk, 0, n);
+	    }
+	}
+	int status = process.waitFor();
+
+	assertEquals(expected, new String(printed.toByteArray(), StandardCharsets.UTF_8)
+		     + "exit " + status + System.lineSeparator());
+    }
+
+}
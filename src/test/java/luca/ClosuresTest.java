@@ -0,0 +1,56 @@
+package luca;
+
+import static luca.Scripts.assertPrints;
+
+import org.junit.Test;
+
+/** What captured variables must do, which the corpus only checks the backends agree on. */
+public class ClosuresTest {
+
+    @Test
+    public void eachCallCapturesItsOwnVariable() {
+	assertPrints("fun counter() { var i = 0; fun count() { i = i + 1; return i; } return count; }\n"
+		     + "var a = counter(); var b = counter();\n"
+		     + "a(); a(); print a(); print b();",
+		     "3", "1");
+    }
+
+    @Test
+    public void closuresShareTheVariableTheyCapture() {
+	assertPrints("fun pair() { var x = 1; fun get() { return x; } fun set(v) { x = v; }\n"
+		     + "  set(42); print x; return get; }\n"
+		     + "print pair()();",
+		     "42", "42");
+    }
+
+    @Test
+    public void eachLoopIterationHasItsOwnBodyVariable() {
+	assertPrints("var f0; var f1; var f2;\n"
+		     + "for (var i = 0; i < 3; i = i + 1) { var j = i * 10; fun f() { return j; }\n"
+		     + "  if (i == 0) f0 = f; if (i == 1) f1 = f; if (i == 2) f2 = f; }\n"
+		     + "print f0(); print f1(); print f2();",
+		     "0", "10", "20");
+    }
+
+    @Test
+    public void capturedParametersOutliveTheirCall() {
+	assertPrints("fun adder(x) { fun add(y) { return x + y; } return add; }\n"
+		     + "var add3 = adder(3); print add3(4); print adder(10)(add3(0));",
+		     "7", "13");
+    }
+
+    @Test
+    public void capturesThroughFunctionsThatDontUseTheVariable() {
+	assertPrints("fun a() { var x = \"x\"; fun b() { fun c() { return x; } return c; } return b(); }\n"
+		     + "print a()();",
+		     "x");
+    }
+
+    @Test
+    public void writesAfterCaptureAreSeen() {
+	assertPrints("fun f() { var x = 1; fun get() { return x; } x = 2; return get; }\n"
+		     + "print f()();",
+		     "2");
+    }
+
+}
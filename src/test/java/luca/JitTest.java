@@ -0,0 +1,116 @@
+package luca;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNotNull;
+
+import java.util.List;
+import javax.tools.ToolProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Functions compiled by the Jit, which the corpus runs too briefly to be
+ * sure of. The build lowers Jit.THRESHOLD so this takes seconds.
+ */
+public class JitTest {
+
+    private static final String ADD = "var k = 1;\nfun add(a) { return a + k; }\n";
+    private static final long WAIT = 60_000; // ms for javac, on a slow machine
+
+    /** A compiled body that counts its runs. */
+    private static final class Counted implements Jit.Code {
+	final Jit.Code code;
+	int runs = 0;
+
+	Counted(Jit.Code code) {
+	    this.code = code;
+	}
+
+	@Override
+	public Object run(Interpreter interpreter, Cell[] upvalues, List<Object> arguments) {
+	    ++runs;
+	    return code.run(interpreter, upvalues, arguments);
+	}
+
+	@Override
+	public Jit owner() {
+	    return code.owner();
+	}
+    }
+
+    private Interpreter interpreter;
+    private List<Stmt> statements;
+    private Stmt.Function add;
+
+    @Before
+    public void compileAdd() throws InterruptedException {
+	assumeNotNull(ToolProvider.getSystemJavaCompiler());
+
+	Jit.enabled = true;
+	interpreter = new Interpreter();
+	statements = Luca.compile(new Scanner(ADD));
+	add = (Stmt.Function) statements.get(1);
+	Scripts.capture(() -> interpreter.interpret(statements));
+
+	long deadline = System.currentTimeMillis() + WAIT;
+	while (add.compiled == null && System.currentTimeMillis() < deadline) {
+	    run(interpreter, "for (var i = 0; i < " + Jit.THRESHOLD + "; i = i + 1) add(i);");
+	    Thread.sleep(10); // let the compiler thread have the CPU
+	}
+	assertNotNull("add was never compiled", add.compiled);
+    }
+
+    @After
+    public void close() {
+	Jit.enabled = false;
+	if (interpreter != null) { interpreter.close(); }
+    }
+
+    /** Runs the script on the Interpreter, after the ones it has run, and returns what it printed. */
+    private static String run(Interpreter interpreter, String script) {
+	return Scripts.capture(() -> interpreter.interpret(Luca.compile(new Scanner(script))));
+    }
+
+    @Test
+    public void callsRunTheCompiledBody() {
+	assertSame(interpreter.jit, add.compiled.owner());
+	Counted counted = new Counted(add.compiled);
+	add.compiled = counted;
+
+	assertEquals(Scripts.printed("3", "101"), run(interpreter, "print add(2); print add(100);"));
+	assertEquals(2, counted.runs);
+    }
+
+    @Test
+    public void redefiningAGlobalSendsTheFunctionBackToTheInterpreter() {
+	Counted counted = new Counted(add.compiled);
+	add.compiled = counted;
+
+	// a + k was specialized for numbers, and now k is a string
+	assertEquals(Scripts.printed("a!", "b!"), run(interpreter, "var k = \"!\"; print add(\"a\"); print add(\"b\");"));
+	assertEquals(1, counted.runs);
+	assertNull(add.compiled);
+	assertTrue("add is never hot again", add.hotness < 0);
+    }
+
+    @Test
+    public void anotherInterpreterDoesNotRunTheCode() {
+	Counted counted = new Counted(add.compiled);
+	add.compiled = counted;
+
+	try (Interpreter other = new Interpreter()) {
+	    Scripts.capture(() -> other.interpret(statements));
+	    assertEquals(Scripts.printed("12"), run(other, "k = 10; print add(2);"));
+	}
+	assertEquals(0, counted.runs);
+	assertEquals(Scripts.printed("3"), run(interpreter, "print add(2);"));
+	assertEquals(1, counted.runs);
+    }
+
+}
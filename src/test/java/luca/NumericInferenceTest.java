@@ -0,0 +1,77 @@
+package luca;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import luca.opt.Optimizer;
+
+/**
+ * Runs scripts with and without NumericInference, which must print the
+ * same: the unboxed paths it picks are only ever a faster way to the
+ * same values.
+ */
+public class NumericInferenceTest {
+
+    /** Returns what the tree-walker prints for the source compiled as Luca does, but without the inference. */
+    private static String runBoxed(String source) {
+	return Scripts.capture(() -> {
+		List<Stmt> statements = new Parser(new Scanner(source)).parse();
+		new Resolver().resolve(statements);
+		new Interpreter().interpret(new Optimizer().optimize(statements));
+	    });
+    }
+
+    private static void assertSameAsBoxed(String source) {
+	assertEquals(runBoxed(source), Scripts.run(source, Scripts.Backend.TREE_WALKER));
+    }
+
+    @Test
+    public void corpus() {
+	assertSameAsBoxed(Scripts.read(Scripts.corpus().resolve("numeric.luca")));
+	assertSameAsBoxed(Scripts.read(Scripts.corpus().resolve("poly.luca")));
+    }
+
+    @Test
+    public void signedZeroAndNaN() {
+	String source = "{ var z = 0; var n = -0; var nan = 0 / 0;\n"
+	    + "  print z == n; print z < n; print nan == nan; print nan != nan; print nan < 1; print 1 / n; }";
+	assertSameAsBoxed(source);
+	assertTrue(Scripts.run(source, Scripts.Backend.TREE_WALKER).contains("-Infinity"));
+    }
+
+    @Test
+    public void localSpoiledByAClosure() {
+	assertSameAsBoxed("{ var d = 2; fun spoil() { d = \"x\"; }\n"
+			  + "  print d + 1; spoil(); print d + \"y\"; }");
+    }
+
+    @Test
+    public void localSpoiledLaterInALoop() {
+	assertSameAsBoxed("{ var v = 0;\n"
+			  + "  for (var i = 0; i < 5; i = i + 1) { if (i == 3) v = \"s\"; else v = v + i; print v; } }");
+    }
+
+    @Test
+    public void localsFedByCallsAndParameters() {
+	assertSameAsBoxed("fun id(x) { return x; }\n"
+			  + "fun f(p) { var a = id(p); var b = p; return a + b; }\n"
+			  + "print f(1); print f(\"s\");");
+    }
+
+    @Test
+    public void uninitializedLocal() {
+	assertSameAsBoxed("{ var e; print e; e = 4; print e - 1; var g; g = \"a\"; print g + \"b\"; }");
+    }
+
+    @Test
+    public void typeErrorsAreStillReported() {
+	String source = "{ var a = 1; var b = nil; b = \"x\"; print a - b; }";
+	assertSameAsBoxed(source);
+	assertTrue(Scripts.run(source, Scripts.Backend.TREE_WALKER).endsWith("exit 70" + System.lineSeparator()));
+    }
+
+}
@@ -0,0 +1,118 @@
+package luca;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import luca.opt.Optimizer;
+
+/** What the Optimizer folds and prunes, and what it must leave for the runtime. */
+public class OptimizerTest {
+
+    private static List<Stmt> resolve(String source) {
+	List<Stmt> statements = new Parser(new Scanner(source)).parse();
+	new Resolver().resolve(statements);
+	assertTrue("static errors", !Luca.hadError);
+	return statements;
+    }
+
+    private static List<Stmt> optimize(String source) {
+	return new Optimizer().optimize(resolve(source));
+    }
+
+    /** Returns the value of the one print statement the source comes to, which must be a literal. */
+    private static Object printedLiteral(String source) {
+	List<Stmt> statements = optimize(source);
+	assertEquals(1, statements.size());
+	Expr printed = ((Stmt.Print) statements.get(0)).expression;
+	assertTrue(printed.getClass().getSimpleName(), printed instanceof Expr.Literal);
+	return ((Expr.Literal) printed).value;
+    }
+
+    @Test
+    public void foldsArithmetic() {
+	assertEquals(86400.0, printedLiteral("print 60 * 60 * 24;"));
+	assertEquals(3.0, printedLiteral("print -(2 - 5);"));
+	assertEquals(Double.POSITIVE_INFINITY, printedLiteral("print 1 / 0;"));
+    }
+
+    @Test
+    public void foldsStringsComparisonsAndLogic() {
+	assertEquals("abc", printedLiteral("print \"a\" + \"b\" + \"c\";"));
+	assertEquals(true, printedLiteral("print !false;"));
+	assertEquals(true, printedLiteral("print nil == nil;"));
+	assertEquals(false, printedLiteral("print \"x\" != \"x\";"));
+	assertEquals("dflt", printedLiteral("print nil or \"dflt\";"));
+	assertEquals(false, printedLiteral("print false and 1;"));
+    }
+
+    @Test
+    public void leavesOperationsThatFail() {
+	List<Stmt> statements = optimize("print 1 + \"a\";");
+	assertTrue(((Stmt.Print) statements.get(0)).expression instanceof Expr.Binary);
+
+	statements = optimize("print -\"a\";");
+	assertTrue(((Stmt.Print) statements.get(0)).expression instanceof Expr.Unary);
+    }
+
+    @Test
+    public void prunesLiteralBranches() {
+	List<Stmt> statements = optimize("if (false) print \"no\"; else print \"yes\";");
+	assertEquals(1, statements.size());
+	assertEquals("yes", ((Expr.Literal) ((Stmt.Print) statements.get(0)).expression).value);
+
+	assertTrue(optimize("if (nil) print 1;").isEmpty());
+    }
+
+    @Test
+    public void removesLoopsThatNeverRun() {
+	assertTrue(optimize("while (false) print \"never\";").isEmpty());
+
+	// the initializer still runs
+	List<Stmt> statements = optimize("for (var i = 0; false; i = i + 1) print i;");
+	assertEquals(1, statements.size());
+	assertEquals(1, ((Stmt.Block) statements.get(0)).statements.size());
+    }
+
+    @Test
+    public void dropsCodeAfterReturn() {
+	List<Stmt> statements = optimize("fun f() { return 1; print \"dead\"; }");
+	assertEquals(1, ((Stmt.Function) statements.get(0)).body.size());
+
+	statements = optimize("fun g(n) { if (n) return 1; else return 2; print \"dead\"; }");
+	assertEquals(1, ((Stmt.Function) statements.get(0)).body.size());
+
+	statements = optimize("fun h(n) { if (n) return 1; print \"live\"; }");
+	assertEquals(2, ((Stmt.Function) statements.get(0)).body.size());
+    }
+
+    @Test
+    public void dropsLiteralExpressionStatements() {
+	assertTrue(optimize("1 + 2; \"s\";").isEmpty());
+    }
+
+    @Test
+    public void keepsTreesWithNothingToDo() {
+	List<Stmt> resolved = resolve("var a = 1; fun f(x) { return x + a; } print f(2);");
+	List<Stmt> optimized = new Optimizer().optimize(resolved);
+	for (int i = 0; i < resolved.size(); ++i) {
+	    assertSame(resolved.get(i), optimized.get(i));
+	}
+    }
+
+    @Test
+    public void foldedScriptsPrintTheSame() {
+	String source = Scripts.read(Scripts.corpus().resolve("fold.luca"));
+	String unoptimized = Scripts.capture(() -> {
+		List<Stmt> statements = new Parser(new Scanner(source)).parse();
+		new Resolver().resolve(statements);
+		new Interpreter().interpret(statements);
+	    });
+	assertEquals(unoptimized, Scripts.run(source, Scripts.Backend.TREE_WALKER));
+    }
+
+}
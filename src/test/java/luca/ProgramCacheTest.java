@@ -0,0 +1,123 @@
+package luca;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import luca.vm.VM;
+
+/** Entries that round-trip, and entries that are corrupt or cut short, which must read as missing. */
+public class ProgramCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ProgramCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+	cache = new ProgramCache(folder.newFolder("cache").toPath());
+    }
+
+    private Path script(String name, String source) throws IOException {
+	Path script = folder.getRoot().toPath().resolve(name);
+	Files.write(script, source.getBytes(StandardCharsets.UTF_8));
+	return script;
+    }
+
+    /** Stores the script's tree and returns its entry's key. */
+    private String store(Path script) throws IOException {
+	String key = cache.key(script, StandardCharsets.UTF_8);
+	List<Stmt> statements = Luca.compile(new Scanner(Scripts.read(script)));
+	assertNotNull(statements);
+	cache.store(key, statements);
+	return key;
+    }
+
+    @Test
+    public void roundTripsTheCorpus() throws IOException {
+	for (Path script : Bench.scripts(Scripts.corpus())) {
+	    String source = Scripts.read(script);
+	    if (!Scripts.run(source, Scripts.Backend.TREE_WALKER).endsWith("exit 65" + System.lineSeparator())) {
+		String key = store(script);
+		String name = script.getFileName().toString();
+		assertEquals(name, Scripts.run(source, Scripts.Backend.TREE_WALKER),
+			     Scripts.capture(() -> new Interpreter().interpret(cache.load(key))));
+		assertEquals(name, Scripts.run(source, Scripts.Backend.VM),
+			     Scripts.capture(() -> new VM().interpret(cache.load(key))));
+	    }
+	}
+    }
+
+    @Test
+    public void keysFollowTheBytesAndCharset() throws IOException {
+	Path a = script("a.luca", "print 1;");
+	Path same = script("same.luca", "print 1;");
+	Path b = script("b.luca", "print 2;");
+
+	assertEquals(cache.key(a, StandardCharsets.UTF_8), cache.key(same, StandardCharsets.UTF_8));
+	assertNotEquals(cache.key(a, StandardCharsets.UTF_8), cache.key(b, StandardCharsets.UTF_8));
+	assertNotEquals(cache.key(a, StandardCharsets.UTF_8), cache.key(a, StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    public void missingEntry() {
+	assertNull(cache.load("0000"));
+    }
+
+    @Test
+    public void truncatedEntries() throws IOException {
+	String key = store(Scripts.corpus().resolve("closures.luca"));
+	Path entry = folder.getRoot().toPath().resolve("cache").resolve(key);
+	byte[] bytes = Files.readAllBytes(entry);
+
+	for (int length = 0; length < bytes.length; ++length) {
+	    Files.write(entry, Arrays.copyOf(bytes, length));
+	    assertNull("cut to " + length + " bytes", cache.load(key));
+	}
+    }
+
+    @Test
+    public void corruptEntries() throws IOException {
+	String key = store(Scripts.corpus().resolve("closures.luca"));
+	Path entry = folder.getRoot().toPath().resolve("cache").resolve(key);
+	byte[] bytes = Files.readAllBytes(entry);
+
+	// whatever a flipped byte reads as, it must not throw
+	for (int i = 0; i < bytes.length; ++i) {
+	    for (int flip : new int[] { 0x01, 0x80, 0xff }) {
+		byte[] corrupt = bytes.clone();
+		corrupt[i] ^= flip;
+		Files.write(entry, corrupt);
+		cache.load(key);
+	    }
+	}
+
+	byte[] wrongFormat = bytes.clone();
+	wrongFormat[4] ^= 1;
+	Files.write(entry, wrongFormat);
+	assertNull(cache.load(key));
+    }
+
+    @Test
+    public void hugeCountsAreRejectedBeforeAllocating() throws IOException {
+	// the header, then a statement count of 2^31 - 1
+	byte[] entry = { 'L', 'U', 'C', 'A', 1, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07 };
+	Files.write(folder.getRoot().toPath().resolve("cache").resolve("huge"), entry);
+	assertNull(cache.load("huge"));
+    }
+
+}
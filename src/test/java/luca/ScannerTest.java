@@ -0,0 +1,168 @@
+package luca;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tokens that straddle the edges the Scanner works in: its batches of
+ * 1024 tokens, the chunks it refills its buffer by, and the windows a
+ * MappedFileReader maps.
+ */
+public class ScannerTest {
+
+    private static final int BATCH = 1024;
+    private static final int CHUNK = 1 << 16;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void clearErrors() {
+	Luca.hadError = false;
+    }
+
+    /** Hands out the source a few chars at a time, as a slow stream would. */
+    private static final class Trickle extends Reader {
+	private final Reader source;
+	private final int most;
+
+	Trickle(String source, int most) {
+	    this.source = new StringReader(source);
+	    this.most = most;
+	}
+
+	@Override
+	public int read(char[] chars, int offset, int length) throws IOException {
+	    return source.read(chars, offset, Math.min(length, most));
+	}
+
+	@Override
+	public void close() {}
+    }
+
+    private static List<String> tokens(Scanner scanner) {
+	List<String> tokens = new ArrayList<>();
+	while (true) {
+	    Token token = scanner.token();
+	    tokens.add(token.type + " " + token.lexeme + " " + token.literal + " " + token.line);
+	    if (token.type == TokenType.EOF) { return tokens; }
+	    scanner.advance();
+	}
+    }
+
+    /** Returns n identifiers, one to a line, with what follows them. */
+    private static String identifiers(int n, String then) {
+	StringBuilder source = new StringBuilder();
+	for (int i = 0; i < n; ++i) {
+	    source.append('v').append(i).append('\n');
+	}
+	return source.append(then).toString();
+    }
+
+    @Test
+    public void tokensAcrossABatch() {
+	String then = "\"a string\" 12.5 and or";
+	List<String> tokens = tokens(new Scanner(identifiers(BATCH - 2, then)));
+
+	assertEquals(BATCH - 2 + 5, tokens.size());
+	assertEquals("IDENTIFIER v1021 null 1022", tokens.get(BATCH - 3));
+	assertEquals("STRING \"a string\" a string 1023", tokens.get(BATCH - 2));
+	assertEquals("NUMBER 12.5 12.5 1023", tokens.get(BATCH - 1));
+	assertEquals("AND and null 1023", tokens.get(BATCH));
+	assertEquals("OR or null 1023", tokens.get(BATCH + 1));
+	assertEquals("EOF  null 1023", tokens.get(BATCH + 2));
+    }
+
+    @Test
+    public void everyTokenAtTheBatchEdge() {
+	String[] kinds = { "name", "\"str\"", "3.25", "!=", "while", "\"line\nbreak\"" };
+	for (int before = BATCH - 3; before <= BATCH + 1; ++before) {
+	    for (String kind : kinds) {
+		String source = identifiers(before, kind + " tail");
+		List<String> tokens = tokens(new Scanner(source));
+		assertEquals(kind + " after " + before, before + 3, tokens.size());
+		assertEquals(tokens, tokens(new Scanner(new Trickle(source, 7))));
+		assertTrue(tokens.get(before + 1).startsWith("IDENTIFIER tail"));
+	    }
+	}
+    }
+
+    @Test
+    public void errorsAtTheBatchEdgeAreReportedOnce() {
+	List<String> tokens = new ArrayList<>();
+	String printed = Scripts.capture(() -> tokens.addAll(tokens(new Scanner(identifiers(BATCH - 1, "@ after")))));
+	assertEquals("[line 1024] Error: Unexpected character." + System.lineSeparator() + "exit 65" + System.lineSeparator(),
+		     printed);
+	assertEquals(BATCH + 1, tokens.size());
+	assertEquals("IDENTIFIER after null 1024", tokens.get(BATCH - 1));
+    }
+
+    @Test
+    public void readsOneCharAtATime() {
+	String source = Scripts.read(Scripts.corpus().resolve("closures.luca"));
+	assertEquals(tokens(new Scanner(source)), tokens(new Scanner(new Trickle(source, 1))));
+    }
+
+    @Test
+    public void lexemeAcrossARefill() {
+	StringBuilder source = new StringBuilder();
+	while (source.length() < CHUNK - 4) {
+	    source.append("x ");
+	}
+	source.append("\"spans the chunk\" identifierSpanningTheChunk 123456.75");
+	List<String> tokens = tokens(new Scanner(source.toString()));
+	int n = tokens.size();
+
+	assertEquals("STRING \"spans the chunk\" spans the chunk 1", tokens.get(n - 4));
+	assertEquals("IDENTIFIER identifierSpanningTheChunk null 1", tokens.get(n - 3));
+	assertEquals("NUMBER 123456.75 123456.75 1", tokens.get(n - 2));
+	assertEquals(tokens, tokens(new Scanner(new Trickle(source.toString(), 1000))));
+    }
+
+    @Test
+    public void lexemeLongerThanTheBuffer() {
+	char[] body = new char[3 * CHUNK];
+	Arrays.fill(body, 'z');
+	String string = "\"" + new String(body) + "\"";
+	List<String> tokens = tokens(new Scanner("a " + string + " b"));
+
+	assertEquals(4, tokens.size());
+	assertEquals("STRING " + string + " " + new String(body) + " 1", tokens.get(1));
+	assertEquals("IDENTIFIER b null 1", tokens.get(2));
+    }
+
+    @Test
+    public void multiByteCharsAcrossMappedWindows() throws IOException {
+	StringBuilder text = new StringBuilder();
+	for (int i = 0; i < 200; ++i) {
+	    text.append("é€😀a"); // 2, 3 and 4 bytes, then 1
+	}
+	String source = "var s = \"" + text + "\";\nprint s;\n";
+	Path script = folder.newFile("wide.luca").toPath();
+	Files.write(script, source.getBytes(StandardCharsets.UTF_8));
+
+	for (long window = 4; window <= 11; ++window) { // at least the longest char
+	    try (MappedFileReader reader = new MappedFileReader(script, StandardCharsets.UTF_8, window)) {
+		assertEquals("window " + window, tokens(new Scanner(source)), tokens(new Scanner(reader)));
+	    }
+	}
+	assertFalse(Luca.hadError);
+    }
+
+}
@@ -0,0 +1,115 @@
+package luca;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import luca.vm.VM;
+
+/**
+ * Runs scripts in this JVM, as Luca would, and returns what they printed:
+ * standard output and error as they were interleaved, then the status Luca
+ * would exit with.
+ */
+final class Scripts {
+
+    enum Backend { TREE_WALKER, VM, CLOSURES, JIT }
+
+    private Scripts() {}
+
+    static String run(String source, Backend backend) {
+	return capture(() -> {
+		List<Stmt> statements = Luca.compile(new Scanner(source));
+		if (statements != null) { execute(statements, backend); }
+	    });
+    }
+
+    /** Returns what running the script printed, as run() does, with Luca's error flags reset. */
+    static String capture(Runnable script) {
+	PrintStream out = System.out;
+	PrintStream err = System.err;
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	PrintStream printed = new PrintStream(bytes, true);
+	System.setOut(printed);
+	System.setErr(printed);
+	try {
+	    script.run();
+	    printed.println("exit " + (Luca.hadError ? 65 : Luca.hadRuntimeError ? 70 : 0));
+	    return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+	}
+	finally {
+	    System.setOut(out);
+	    System.setErr(err);
+	    Luca.hadError = false;
+	    Luca.hadRuntimeError = false;
+	}
+    }
+
+    /** Returns what a script that prints the lines, and no errors, returns from run(). */
+    static String printed(String... lines) {
+	StringBuilder printed = new StringBuilder();
+	for (String line : lines) {
+	    printed.append(line).append(System.lineSeparator());
+	}
+	return printed.append("exit 0").append(System.lineSeparator()).toString();
+    }
+
+    /** Asserts the script prints the lines, and no errors, on every backend. */
+    static void assertPrints(String source, String... lines) {
+	for (Backend backend : Backend.values()) {
+	    assertEquals(backend.toString(), printed(lines), run(source, backend));
+	}
+    }
+
+    private static void execute(List<Stmt> statements, Backend backend) {
+	switch (backend) {
+	case TREE_WALKER:
+	    new Interpreter().interpret(statements);
+	    break;
+	case VM:
+	    new VM().interpret(statements);
+	    break;
+	case CLOSURES:
+	    new ClosureCompiler().interpret(statements);
+	    break;
+	case JIT:
+	    Jit.enabled = true;
+	    try (Interpreter interpreter = new Interpreter()) {
+		interpreter.interpret(statements);
+	    }
+	    finally {
+		Jit.enabled = false;
+	    }
+	    break;
+	}
+    }
+
+    /** Returns the scripts under src/test/resources/corpus. */
+    static Path corpus() {
+	try {
+	    return Paths.get(Scripts.class.getResource("/corpus").toURI());
+	}
+	catch (URISyntaxException e) {
+	    throw new IllegalStateException(e);
+	}
+    }
+
+    static String read(Path script) {
+	try {
+	    return new String(Files.readAllBytes(script), StandardCharsets.UTF_8);
+	}
+	catch (IOException e) {
+	    throw new UncheckedIOException(e);
+	}
+    }
+
+}
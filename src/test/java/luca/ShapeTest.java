@@ -0,0 +1,31 @@
+package luca;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+/** Transitions between shapes, kept inline for the first and in arrays grown for the rest. */
+public class ShapeTest {
+
+    @Test
+    public void transitionsAreShared() {
+	Shape root = Shape.EMPTY.withField(Symbols.intern("shapeTestRoot"));
+	Shape[] children = new Shape[16];
+	for (int i = 0; i < children.length; ++i) {
+	    children[i] = root.withField(Symbols.intern("shapeTestField" + i));
+	    assertNotNull(children[i]);
+	    assertEquals(2, children[i].size());
+	    assertEquals(1, children[i].offsetOf(Symbols.intern("shapeTestField" + i)));
+	}
+	for (int i = 0; i < children.length; ++i) {
+	    assertSame(children[i], root.withField(Symbols.intern("shapeTestField" + i)));
+	}
+
+	// a seventeenth child makes the instance a dictionary
+	assertNull(root.withField(Symbols.intern("shapeTestField16")));
+    }
+
+}
@@ -0,0 +1,67 @@
+package luca;
+
+import static luca.Scripts.assertPrints;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/** Tail calls far deeper than the JVM's stack would allow, on every backend. */
+public class TailCallTest {
+
+    private static final int DEPTH = 3000000; // past VM.FRAMES_MAX, so only a reused frame gets there
+
+    @Test
+    public void selfRecursion() {
+	assertPrints("fun count(n, acc) { if (n == 0) return acc; return count(n - 1, acc + 1); }\n"
+		     + "print count(" + DEPTH + ", 0);",
+		     String.valueOf(DEPTH));
+    }
+
+    @Test
+    public void mutualRecursion() {
+	assertPrints("fun even(n) { if (n == 0) return true; return odd(n - 1); }\n"
+		     + "fun odd(n) { if (n == 0) return false; return even(n - 1); }\n"
+		     + "print even(" + DEPTH + "); print odd(" + (DEPTH + 1) + ");",
+		     "true", "true");
+    }
+
+    @Test
+    public void fromInsideBlocksAndLoops() {
+	assertPrints("fun nested(n) { while (true) { { if (n > 0) return nested(n - 1); return \"done\"; } } }\n"
+		     + "print nested(" + DEPTH + ");",
+		     "done");
+    }
+
+    @Test
+    public void throughClosures() {
+	assertPrints("fun make(step) { fun go(n) { if (n <= 0) return \"landed\"; return go(n - step); } return go; }\n"
+		     + "fun bounce(f, n) { return f(n); }\n"
+		     + "print bounce(make(1), " + DEPTH + ");",
+		     "landed");
+    }
+
+    @Test
+    public void toNativeFunctionsAndClasses() {
+	assertPrints("class Thing {}\n"
+		     + "fun make() { return Thing(); }\n"
+		     + "fun now() { return clock() > 0; }\n"
+		     + "print make(); print now();",
+		     "Thing instance", "true");
+    }
+
+    @Test
+    public void errorsAtTheBottomReportTheirLine() {
+	String source = "fun count(n, acc) { if (n == 0) return acc; return count(n - 1, acc + 1); }\n"
+	    + "fun bad(n) {\n"
+	    + "  if (n == 0) return count(1);\n"
+	    + "  return bad(n - 1);\n"
+	    + "}\n"
+	    + "bad(" + DEPTH + ");";
+	String expected = "Expected 2 arguments but got 1." + System.lineSeparator() + "[line 3]" + System.lineSeparator()
+	    + "exit 70" + System.lineSeparator();
+	for (Scripts.Backend backend : Scripts.Backend.values()) {
+	    assertEquals(backend.toString(), expected, Scripts.run(source, backend));
+	}
+    }
+
+}